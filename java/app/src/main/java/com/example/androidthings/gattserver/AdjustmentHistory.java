@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity history of clock and time zone adjustments.
+ *
+ * Every adjustment gets the next sequence number and is kept in a
+ * preallocated ring until overwritten. There is a single writer, which
+ * never blocks: it announces the slot it is about to overwrite, writes
+ * it and then publishes it. Readers copy records without locking and
+ * discard any the writer may have overwritten meanwhile, so a range
+ * request simply starts later when the writer has lapped it.
+ *
+ * Records are encoded as {@link #RECORD_SIZE} bytes, little-endian:
+ * sequence number (uint32), timestamp in milliseconds since the epoch
+ * (uint48), {@link TimeProfile} adjustment flags (uint8) and the change
+ * of local time in milliseconds (sint48).
+ */
+public class AdjustmentHistory {
+
+    public static final int RECORD_SIZE = 17;
+    /* Size of the marker ending a stream, holding the next sequence number */
+    public static final int END_MARKER_SIZE = 4;
+
+    private final int mCapacity;
+    /* Timestamp, then delta and flags packed as (delta << 8 | flags), per slot */
+    private final AtomicLongArray mRecords;
+    /* Records the writer has started to write, and records published */
+    private volatile long mClaimed;
+    private volatile long mPublished;
+
+    public AdjustmentHistory(int capacity) {
+        mCapacity = capacity;
+        mRecords = new AtomicLongArray(capacity * 2);
+    }
+
+    /**
+     * Append a record. Must only be called from one thread at a time.
+     * @param deltaMillis Change of local time caused by the adjustment.
+     */
+    public void append(long timestamp, byte adjustReason, long deltaMillis) {
+        long sequence = mPublished;
+        mClaimed = sequence + 1;
+        int slot = (int) (sequence % mCapacity) * 2;
+        mRecords.set(slot, timestamp);
+        mRecords.set(slot + 1, (deltaMillis << 8) | (adjustReason & 0xFF));
+        mPublished = sequence + 1;
+    }
+
+    /**
+     * Return the sequence number the next record will get.
+     */
+    public long getNextSequence() {
+        return mPublished;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Encode up to maxRecords records before the limit sequence number
+     * into the buffer, starting at the given sequence number or the oldest
+     * record still held if that is later, and store the sequence number to
+     * continue from in next[0].
+     * @return the number of records encoded.
+     */
+    private int read(long first, long limit, int maxRecords, byte[] buffer, long[] next) {
+        long published = mPublished;
+        long start = Math.max(first, published - mCapacity);
+        long end = Math.min(Math.min(published, limit), start + maxRecords);
+        if (start >= end) {
+            next[0] = Math.max(first, start);
+            return 0;
+        }
+
+        int count = (int) (end - start);
+        long[] timestamps = new long[count];
+        long[] packed = new long[count];
+        for (int i = 0; i < count; i++) {
+            int slot = (int) ((start + i) % mCapacity) * 2;
+            timestamps[i] = mRecords.get(slot);
+            packed[i] = mRecords.get(slot + 1);
+        }
+        // Drop records the writer may have overwritten while they were copied
+        long valid = Math.max(start, mClaimed - mCapacity);
+
+        int offset = 0;
+        for (long sequence = valid; sequence < end; sequence++) {
+            int i = (int) (sequence - start);
+            offset = putUint(buffer, offset, sequence, 4);
+            offset = putUint(buffer, offset, timestamps[i], 6);
+            buffer[offset++] = (byte) packed[i];
+            offset = putUint(buffer, offset, packed[i] >> 8, 6);
+        }
+        next[0] = end;
+        return (int) (end - valid);
+    }
+
+    private static int putUint(byte[] buffer, int offset, long value, int size) {
+        for (int i = 0; i < size; i++) {
+            buffer[offset + i] = (byte) (value >> (i * 8));
+        }
+        return offset + size;
+    }
+
+    /**
+     * Return a source streaming the records with sequence numbers in
+     * [first, first + count), oldest first and as many as fit per chunk,
+     * followed by an {@link #END_MARKER_SIZE}-byte end marker holding the
+     * sequence number to continue from. Records are read as each chunk
+     * is produced, so nothing is copied up front.
+     */
+    public BulkTransfer.Source openRange(long first, int count) {
+        return new Range(first, first + count);
+    }
+
+    private class Range implements BulkTransfer.Source {
+        private final long mEnd;
+        private final long[] mNext = new long[1];
+        private boolean mFinished;
+
+        Range(long first, long end) {
+            mNext[0] = first;
+            mEnd = end;
+        }
+
+        @Override
+        public byte[] nextChunk(int maxLength) {
+            if (mFinished) return null;
+
+            // Retry if the writer lapped every record copied
+            while (mNext[0] < Math.min(mEnd, mPublished)) {
+                int maxRecords = (int) Math.min(mEnd - mNext[0],
+                        Math.max(1, maxLength / RECORD_SIZE));
+                byte[] buffer = new byte[maxRecords * RECORD_SIZE];
+                int records = read(mNext[0], mEnd, maxRecords, buffer, mNext);
+                if (records == maxRecords) {
+                    return buffer;
+                } else if (records > 0) {
+                    byte[] chunk = new byte[records * RECORD_SIZE];
+                    System.arraycopy(buffer, 0, chunk, 0, chunk.length);
+                    return chunk;
+                }
+            }
+
+            mFinished = true;
+            byte[] marker = new byte[END_MARKER_SIZE];
+            putUint(marker, 0, mNext[0], END_MARKER_SIZE);
+            return marker;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+/**
+ * Link between the advertising policy and the radio.
+ *
+ * The Android implementation wraps {@link android.bluetooth.le.AdvertisingSet};
+ * other implementations stand in for it on the host, for example in the
+ * simulator.
+ */
+public interface Advertiser {
+
+    /* Advertising modes, trading discovery latency for power */
+    int MODE_LOW_POWER = 0;
+    int MODE_BALANCED = 1;
+    int MODE_LOW_LATENCY = 2;
+
+    /* Operation status, matching android.bluetooth.le.AdvertisingSetCallback */
+    int STATUS_SUCCESS = 0;
+    int STATUS_DATA_TOO_LARGE = 1;
+    int STATUS_TOO_MANY_ADVERTISERS = 2;
+    int STATUS_ALREADY_STARTED = 3;
+    int STATUS_INTERNAL_ERROR = 4;
+    int STATUS_FEATURE_UNSUPPORTED = 5;
+
+    /**
+     * Receives the results of advertiser operations. Calls may arrive on
+     * any thread, including the calling thread.
+     */
+    interface Callback {
+        void onStarted(int status);
+
+        void onModeChanged(int status);
+    }
+
+    /**
+     * Start advertising in the given mode. The result is reported to
+     * {@link Callback#onStarted(int)}.
+     */
+    void start(int mode, Callback callback);
+
+    /**
+     * Switch a started advertiser to another mode without tearing it
+     * down. The result is reported to {@link Callback#onModeChanged(int)}.
+     */
+    void setMode(int mode);
+
+    /**
+     * Stop advertising. No further results are reported.
+     */
+    void stop();
+}
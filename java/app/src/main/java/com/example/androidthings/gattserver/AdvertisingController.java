@@ -0,0 +1,352 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses the advertising mode from the server load and keeps the
+ * advertiser running.
+ *
+ * With nobody connected the server advertises in low latency mode to be
+ * found quickly; once it is busy serving connections or subscribers it
+ * backs off to low power so advertising competes less with the
+ * connections for air time. Mode changes are at least
+ * {@link #MODE_DWELL_MILLIS} apart, so bursts of connections do not
+ * thrash the radio. Failures to start are retried with exponential
+ * backoff unless the failure is permanent.
+ *
+ * All state is confined to a single controller thread; the public
+ * methods only post work to it.
+ */
+public class AdvertisingController implements Advertiser.Callback {
+
+    /**
+     * Told each time the advertiser starts. Called on the controller thread.
+     */
+    public interface Listener {
+        void onAdvertisingStarted(int mode);
+    }
+
+    /* Load at which advertising drops to low power */
+    private static final int BUSY_CONNECTIONS = 4;
+    private static final int BUSY_SUBSCRIBERS = 4;
+    /* Minimum time between mode changes */
+    private static final long MODE_DWELL_MILLIS = 5000;
+    /* Retry delays after failures to start */
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    /* Advertiser states */
+    private static final int STATE_STOPPED = 0;
+    private static final int STATE_STARTING = 1;
+    private static final int STATE_ADVERTISING = 2;
+    private static final int STATE_CHANGING_MODE = 3;
+    private static final int STATE_BACKOFF = 4;
+
+    private final Advertiser mAdvertiser;
+    private final EventLog<?> mEventLog;
+    private final long mDwellMillis;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private volatile Listener mListener;
+
+    /* Confined to the controller thread */
+    private boolean mEnabled;
+    private int mState = STATE_STOPPED;
+    private int mConnections;
+    private int mSubscribers;
+    /* Mode requested from the advertiser by the operation in progress */
+    private int mRequestedMode;
+    private long mLastModeChange;
+    private int mConsecutiveFailures;
+    private ScheduledFuture<?> mPending;
+
+    /* Mode currently in effect, or -1 while not advertising */
+    private volatile int mMode = -1;
+    private final AtomicLong mStarts = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mModeChanges = new AtomicLong();
+
+    public AdvertisingController(Advertiser advertiser, EventLog<?> eventLog) {
+        this(advertiser, eventLog, MODE_DWELL_MILLIS, INITIAL_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param dwellMillis Minimum time between mode changes.
+     * @param initialBackoffMillis Delay before the first retry of a failed start.
+     * @param maxBackoffMillis Longest delay between retries.
+     */
+    AdvertisingController(Advertiser advertiser, EventLog<?> eventLog, long dwellMillis,
+                          long initialBackoffMillis, long maxBackoffMillis) {
+        mAdvertiser = advertiser;
+        mEventLog = eventLog;
+        mDwellMillis = dwellMillis;
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "advertising-controller");
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Start advertising, in the mode suited to the last reported load.
+     */
+    public void start() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mEnabled = true;
+                mConsecutiveFailures = 0;
+                if (mState == STATE_STOPPED) {
+                    startAdvertiser();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop advertising and cancel any pending retry.
+     */
+    public void stop() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mEnabled = false;
+                cancelPending();
+                if (mState != STATE_STOPPED && mState != STATE_BACKOFF) {
+                    mAdvertiser.stop();
+                }
+                mState = STATE_STOPPED;
+                mMode = -1;
+            }
+        });
+    }
+
+    /**
+     * Release the controller thread. The controller cannot be restarted
+     * afterwards.
+     */
+    public void shutdown() {
+        stop();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Report the current server load. May be called from any thread.
+     */
+    public void onLoadChanged(final int connections, final int subscribers) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mConnections = connections;
+                mSubscribers = subscribers;
+                updateMode();
+            }
+        });
+    }
+
+    @Override
+    public void onStarted(final int status) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                handleStarted(status);
+            }
+        });
+    }
+
+    @Override
+    public void onModeChanged(final int status) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                handleModeChanged(status);
+            }
+        });
+    }
+
+    /**
+     * Return the advertising mode for the given load.
+     */
+    static int selectMode(int connections, int subscribers) {
+        if (connections == 0) {
+            return Advertiser.MODE_LOW_LATENCY;
+        }
+        if (connections >= BUSY_CONNECTIONS || subscribers >= BUSY_SUBSCRIBERS) {
+            return Advertiser.MODE_LOW_POWER;
+        }
+        return Advertiser.MODE_BALANCED;
+    }
+
+    private void startAdvertiser() {
+        mPending = null;
+        if (!mEnabled) return;
+
+        mState = STATE_STARTING;
+        mRequestedMode = selectMode(mConnections, mSubscribers);
+        mAdvertiser.start(mRequestedMode, this);
+    }
+
+    private void handleStarted(int status) {
+        if (mState != STATE_STARTING) return;
+
+        if (status == Advertiser.STATUS_SUCCESS || status == Advertiser.STATUS_ALREADY_STARTED) {
+            mState = STATE_ADVERTISING;
+            mMode = mRequestedMode;
+            mLastModeChange = System.currentTimeMillis();
+            mConsecutiveFailures = 0;
+            mStarts.incrementAndGet();
+            mEventLog.log(EventLog.INFO, EventLog.EVENT_ADVERTISE_STARTED, null, mMode);
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onAdvertisingStarted(mMode);
+            }
+            // The load may have changed while starting
+            updateMode();
+            return;
+        }
+
+        mFailures.incrementAndGet();
+        mEventLog.log(EventLog.WARN, EventLog.EVENT_ADVERTISE_FAILED, null, status);
+        if (status == Advertiser.STATUS_DATA_TOO_LARGE
+                || status == Advertiser.STATUS_FEATURE_UNSUPPORTED) {
+            // Retrying cannot help
+            mState = STATE_STOPPED;
+            return;
+        }
+        scheduleRetry();
+    }
+
+    private void handleModeChanged(int status) {
+        if (mState != STATE_CHANGING_MODE) return;
+
+        if (status != Advertiser.STATUS_SUCCESS) {
+            // Start over with a fresh advertiser
+            mFailures.incrementAndGet();
+            mEventLog.log(EventLog.WARN, EventLog.EVENT_ADVERTISE_FAILED, null, status);
+            mAdvertiser.stop();
+            mMode = -1;
+            scheduleRetry();
+            return;
+        }
+
+        mState = STATE_ADVERTISING;
+        mMode = mRequestedMode;
+        mLastModeChange = System.currentTimeMillis();
+        mModeChanges.incrementAndGet();
+        mEventLog.log(EventLog.INFO, EventLog.EVENT_ADVERTISE_MODE_CHANGED, null, mMode);
+        updateMode();
+    }
+
+    /**
+     * Move the advertiser to the mode suited to the current load, once the
+     * previous change has dwelled long enough.
+     */
+    private void updateMode() {
+        if (mState != STATE_ADVERTISING) return;
+
+        int mode = selectMode(mConnections, mSubscribers);
+        if (mode == mMode) return;
+
+        long remaining = mLastModeChange + mDwellMillis - System.currentTimeMillis();
+        if (remaining > 0) {
+            if (mPending == null) {
+                mPending = mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPending = null;
+                        updateMode();
+                    }
+                }, remaining, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        mState = STATE_CHANGING_MODE;
+        mRequestedMode = mode;
+        mAdvertiser.setMode(mode);
+    }
+
+    private void scheduleRetry() {
+        cancelPending();
+        int shift = Math.min(mConsecutiveFailures++, 16);
+        long delay = Math.min(mInitialBackoffMillis << shift, mMaxBackoffMillis);
+        mRetries.incrementAndGet();
+        mEventLog.log(EventLog.INFO, EventLog.EVENT_ADVERTISE_RETRY, null, (int) delay);
+
+        mState = STATE_BACKOFF;
+        mPending = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                startAdvertiser();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelPending() {
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+    }
+
+    private void post(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down; late advertiser results are dropped
+        }
+    }
+
+    /**
+     * Return the advertising mode in effect, or -1 while not advertising.
+     */
+    public int getMode() {
+        return mMode;
+    }
+
+    public long getStartCount() {
+        return mStarts.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    public long getRetryCount() {
+        return mRetries.get();
+    }
+
+    public long getModeChangeCount() {
+        return mModeChanges.get();
+    }
+}
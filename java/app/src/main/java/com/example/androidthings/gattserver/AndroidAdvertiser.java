@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+
+/**
+ * {@link Advertiser} backed by an Android {@link AdvertisingSet}.
+ *
+ * Mode changes disable the set, update its parameters and enable it
+ * again, so the set and its advertising data are kept across changes.
+ */
+public class AndroidAdvertiser implements Advertiser {
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final AdvertiseData mAdvertiseData;
+    private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
+    private AdvertisingSet mAdvertisingSet;
+    private Callback mCallback;
+    /* Mode being applied by setMode(), or -1 */
+    private int mPendingMode = -1;
+
+    public AndroidAdvertiser(BluetoothAdapter bluetoothAdapter, AdvertiseData advertiseData) {
+        mBluetoothAdapter = bluetoothAdapter;
+        mAdvertiseData = advertiseData;
+    }
+
+    @Override
+    public synchronized void start(int mode, Callback callback) {
+        mCallback = callback;
+        mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
+        if (mBluetoothLeAdvertiser == null) {
+            // The adapter is not (yet) on
+            callback.onStarted(STATUS_INTERNAL_ERROR);
+            return;
+        }
+        try {
+            mBluetoothLeAdvertiser.startAdvertisingSet(getParameters(mode), mAdvertiseData,
+                    null, null, null, mAdvertisingSetCallback);
+        } catch (IllegalStateException e) {
+            // The adapter was turned off since the advertiser was obtained
+            mBluetoothLeAdvertiser = null;
+            callback.onStarted(STATUS_INTERNAL_ERROR);
+        }
+    }
+
+    @Override
+    public synchronized void setMode(int mode) {
+        if (mAdvertisingSet == null) {
+            mCallback.onModeChanged(STATUS_INTERNAL_ERROR);
+            return;
+        }
+        // Parameters can only be changed while the set is disabled
+        mPendingMode = mode;
+        mAdvertisingSet.enableAdvertising(false, 0, 0);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mBluetoothLeAdvertiser == null) return;
+
+        mBluetoothLeAdvertiser.stopAdvertisingSet(mAdvertisingSetCallback);
+        mBluetoothLeAdvertiser = null;
+        mAdvertisingSet = null;
+        mCallback = null;
+        mPendingMode = -1;
+    }
+
+    private static AdvertisingSetParameters getParameters(int mode) {
+        int interval;
+        int txPower;
+        switch (mode) {
+            case MODE_LOW_LATENCY:
+                interval = AdvertisingSetParameters.INTERVAL_LOW;
+                txPower = AdvertisingSetParameters.TX_POWER_MEDIUM;
+                break;
+            case MODE_LOW_POWER:
+                interval = AdvertisingSetParameters.INTERVAL_HIGH;
+                txPower = AdvertisingSetParameters.TX_POWER_LOW;
+                break;
+            default:
+                interval = AdvertisingSetParameters.INTERVAL_MEDIUM;
+                txPower = AdvertisingSetParameters.TX_POWER_MEDIUM;
+                break;
+        }
+
+        // Legacy PDUs so centrals without extended advertising still see us
+        return new AdvertisingSetParameters.Builder()
+                .setLegacyMode(true)
+                .setConnectable(true)
+                .setScannable(true)
+                .setInterval(interval)
+                .setTxPowerLevel(txPower)
+                .build();
+    }
+
+    /**
+     * Callback to receive information about the advertising set.
+     */
+    private final AdvertisingSetCallback mAdvertisingSetCallback = new AdvertisingSetCallback() {
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower,
+                                            int status) {
+            synchronized (AndroidAdvertiser.this) {
+                if (mCallback == null) return;
+
+                if (status == STATUS_SUCCESS) {
+                    mAdvertisingSet = advertisingSet;
+                }
+                mCallback.onStarted(status);
+            }
+        }
+
+        @Override
+        public void onAdvertisingEnabled(AdvertisingSet advertisingSet, boolean enable,
+                                         int status) {
+            synchronized (AndroidAdvertiser.this) {
+                if (mCallback == null || mPendingMode < 0) return;
+
+                if (status != STATUS_SUCCESS) {
+                    mPendingMode = -1;
+                    mCallback.onModeChanged(status);
+                } else if (!enable) {
+                    advertisingSet.setAdvertisingParameters(getParameters(mPendingMode));
+                } else {
+                    mPendingMode = -1;
+                    mCallback.onModeChanged(STATUS_SUCCESS);
+                }
+            }
+        }
+
+        @Override
+        public void onAdvertisingParametersUpdated(AdvertisingSet advertisingSet, int txPower,
+                                                   int status) {
+            synchronized (AndroidAdvertiser.this) {
+                if (mCallback == null || mPendingMode < 0) return;
+
+                if (status != STATUS_SUCCESS) {
+                    mPendingMode = -1;
+                    mCallback.onModeChanged(status);
+                    return;
+                }
+                advertisingSet.enableAdvertising(true, 0, 0);
+            }
+        }
+    };
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * {@link GattTransport} backed by the Android {@link BluetoothGattServer}.
+ *
+ * Notification values are passed straight to the stack on API 33 and
+ * later. Older releases only send the value stored in the shared
+ * characteristic, so concurrent sends of the same characteristic are
+ * serialized to keep one device's value from leaking to another.
+ */
+public class AndroidGattTransport implements GattTransport<BluetoothDevice> {
+    private static final String TAG = AndroidGattTransport.class.getSimpleName();
+
+    /* BluetoothStatusCodes.SUCCESS */
+    private static final int STATUS_SUCCESS = 0;
+    /* BluetoothGattServer.notifyCharacteristicChanged(device, characteristic, confirm, value) */
+    private static final Method NOTIFY_WITH_VALUE = findNotifyWithValue();
+
+    private static Method findNotifyWithValue() {
+        if (Build.VERSION.SDK_INT < 33) return null;
+        try {
+            return BluetoothGattServer.class.getMethod("notifyCharacteristicChanged",
+                    BluetoothDevice.class, BluetoothGattCharacteristic.class,
+                    boolean.class, byte[].class);
+        } catch (NoSuchMethodException e) {
+            Log.w(TAG, "Per-device notification values unavailable", e);
+            return null;
+        }
+    }
+
+    /**
+     * Receives the outcome of each {@link #addService} call.
+     */
+    public interface ServiceListener {
+        void onServiceAdded(BluetoothGattService service, boolean success);
+    }
+
+    private final BluetoothManager mBluetoothManager;
+    private volatile BluetoothGattServer mBluetoothGattServer;
+    private volatile Callback<BluetoothDevice> mCallback;
+    private volatile ServiceListener mServiceListener;
+    /* Characteristics of the added services, for sending notifications */
+    private final HashMap<UUID, BluetoothGattCharacteristic> mCharacteristics = new HashMap<>();
+
+    public AndroidGattTransport(BluetoothManager bluetoothManager) {
+        mBluetoothManager = bluetoothManager;
+    }
+
+    /**
+     * Open the GATT server and deliver its events to the callback.
+     * @return true if the server was opened.
+     */
+    public boolean open(Context context, Callback<BluetoothDevice> callback) {
+        mCallback = callback;
+        mBluetoothGattServer = mBluetoothManager.openGattServer(context, mGattServerCallback);
+        return mBluetoothGattServer != null;
+    }
+
+    public boolean isOpen() {
+        return mBluetoothGattServer != null;
+    }
+
+    public void setServiceListener(ServiceListener listener) {
+        mServiceListener = listener;
+    }
+
+    /**
+     * Start publishing a service on the open GATT server. The stack adds
+     * one service at a time, so the next service must not be added until
+     * the {@link ServiceListener} has been told about this one.
+     * @return true if the addition was started.
+     */
+    public boolean addService(BluetoothGattService service) {
+        BluetoothGattServer server = mBluetoothGattServer;
+        if (server == null) return false;
+
+        synchronized (mCharacteristics) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                mCharacteristics.put(characteristic.getUuid(), characteristic);
+            }
+        }
+        if (!server.addService(service)) {
+            removeCharacteristics(service);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forget the characteristics of a service that could not be added,
+     * unless another service has registered them since.
+     */
+    private void removeCharacteristics(BluetoothGattService service) {
+        synchronized (mCharacteristics) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                mCharacteristics.remove(characteristic.getUuid(), characteristic);
+            }
+        }
+    }
+
+    /**
+     * Close the GATT server, disconnecting all devices.
+     */
+    public void close() {
+        if (mBluetoothGattServer == null) return;
+
+        mBluetoothGattServer.close();
+        mBluetoothGattServer = null;
+        synchronized (mCharacteristics) {
+            mCharacteristics.clear();
+        }
+    }
+
+    @Override
+    public void sendResponse(BluetoothDevice device, int requestId, int status,
+                             int offset, byte[] value) {
+        BluetoothGattServer server = mBluetoothGattServer;
+        if (server == null) return;
+
+        server.sendResponse(device, requestId, status, offset, value);
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(BluetoothDevice device, UUID characteristic,
+                                               byte[] value, boolean confirm) {
+        BluetoothGattServer server = mBluetoothGattServer;
+        if (server == null) return false;
+
+        BluetoothGattCharacteristic target;
+        synchronized (mCharacteristics) {
+            target = mCharacteristics.get(characteristic);
+        }
+        if (target == null) return false;
+
+        if (NOTIFY_WITH_VALUE != null) {
+            try {
+                Object status = NOTIFY_WITH_VALUE.invoke(server, device, target, confirm, value);
+                return (status instanceof Integer) && (Integer) status == STATUS_SUCCESS;
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                Log.w(TAG, "Failed to notify " + device, e);
+                return false;
+            }
+        }
+        // The stack copies the characteristic value before returning
+        synchronized (target) {
+            target.setValue(value);
+            return server.notifyCharacteristicChanged(device, target, confirm);
+        }
+    }
+
+    @Override
+    public void cancelConnection(BluetoothDevice device) {
+        BluetoothGattServer server = mBluetoothGattServer;
+        if (server == null) return;
+
+        server.cancelConnection(device);
+    }
+
+    /**
+     * Translates GATT server events, received on the binder thread,
+     * into transport callbacks.
+     */
+    private BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mCallback.onConnectionStateChange(device, true);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mCallback.onConnectionStateChange(device, false);
+            }
+        }
+
+        @Override
+        public void onServiceAdded(int status, BluetoothGattService service) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "Failed to add service " + service.getUuid() + ": " + status);
+                removeCharacteristics(service);
+            }
+            ServiceListener listener = mServiceListener;
+            if (listener != null) {
+                listener.onServiceAdded(service, status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            mCallback.onNotificationSent(device, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            mCallback.onMtuChanged(device, mtu);
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId,
+                                                int offset,
+                                                BluetoothGattCharacteristic characteristic) {
+            mCallback.onCharacteristicReadRequest(device, requestId, offset,
+                    characteristic.getUuid());
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
+                                                 BluetoothGattCharacteristic characteristic,
+                                                 boolean preparedWrite, boolean responseNeeded,
+                                                 int offset, byte[] value) {
+            mCallback.onCharacteristicWriteRequest(device, requestId, characteristic.getUuid(),
+                    preparedWrite, responseNeeded, offset, value);
+        }
+
+        @Override
+        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
+                                            BluetoothGattDescriptor descriptor) {
+            mCallback.onDescriptorReadRequest(device, requestId, offset,
+                    descriptor.getCharacteristic().getUuid(), descriptor.getUuid());
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
+                                             BluetoothGattDescriptor descriptor,
+                                             boolean preparedWrite, boolean responseNeeded,
+                                             int offset, byte[] value) {
+            mCallback.onDescriptorWriteRequest(device, requestId,
+                    descriptor.getCharacteristic().getUuid(), descriptor.getUuid(),
+                    preparedWrite, responseNeeded, offset, value);
+        }
+
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            mCallback.onExecuteWrite(device, requestId, execute);
+        }
+    };
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+/**
+ * Bounded pool of fixed-size byte buffers.
+ *
+ * Buffers are created on first use up to the pool capacity and recycled
+ * afterwards, so steady-state acquire/release does not allocate.
+ */
+public class BufferPool {
+
+    private final int mBufferSize;
+    private final byte[][] mFree;
+    private int mFreeCount;
+    private int mCreated;
+
+    public BufferPool(int bufferSize, int capacity) {
+        mBufferSize = bufferSize;
+        mFree = new byte[capacity][];
+    }
+
+    /**
+     * Take a buffer from the pool.
+     * @return a buffer of {@link #getBufferSize()} bytes, or null if all
+     *         buffers are in use.
+     */
+    public synchronized byte[] acquire() {
+        if (mFreeCount > 0) {
+            byte[] buffer = mFree[--mFreeCount];
+            mFree[mFreeCount] = null;
+            return buffer;
+        }
+        if (mCreated < mFree.length) {
+            mCreated++;
+            return new byte[mBufferSize];
+        }
+        return null;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire()} to the pool.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer == null || buffer.length != mBufferSize || mFreeCount == mFree.length) {
+            return;
+        }
+        mFree[mFreeCount++] = buffer;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Return the number of buffers currently handed out.
+     */
+    public synchronized int getInUseCount() {
+        return mCreated - mFreeCount;
+    }
+}
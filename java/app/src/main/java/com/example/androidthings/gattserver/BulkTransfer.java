@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streams a block of data to a device as a series of notifications.
+ *
+ * Only one chunk of a transfer is queued with the
+ * {@link NotificationDispatcher} at a time. The next chunk is produced when
+ * the previous one is reported delivered, sized to the device's current
+ * ATT_MTU, so a transfer never floods the device's outbound queue.
+ *
+ * A device may have one transfer per characteristic at a time, so a
+ * stream on one characteristic never disturbs a stream on another.
+ *
+ * @param <D> remote device type
+ */
+public class BulkTransfer<D> {
+
+    /**
+     * Produces the chunks of a transfer.
+     */
+    public interface Source {
+        /**
+         * Return the next chunk, no longer than maxLength bytes, or null
+         * when the transfer is complete.
+         */
+        byte[] nextChunk(int maxLength);
+    }
+
+    /**
+     * Receives the outcome of each transfer.
+     */
+    public interface Listener<D> {
+        void onTransferFinished(D device, UUID characteristic, int chunks, boolean completed);
+    }
+
+    private static class Transfer {
+        final UUID characteristic;
+        final Source source;
+        int chunks;
+
+        Transfer(UUID characteristic, Source source) {
+            this.characteristic = characteristic;
+            this.source = source;
+        }
+    }
+
+    private final NotificationDispatcher<D> mDispatcher;
+    private final MtuTracker<D> mMtuTracker;
+    private final Listener<D> mListener;
+    /* Active transfers keyed by device and characteristic */
+    private final ConcurrentHashMap<D, ConcurrentHashMap<UUID, Transfer>> mTransfers =
+            new ConcurrentHashMap<>();
+
+    public BulkTransfer(NotificationDispatcher<D> dispatcher, MtuTracker<D> mtuTracker,
+                        Listener<D> listener) {
+        mDispatcher = dispatcher;
+        mMtuTracker = mtuTracker;
+        mListener = listener;
+    }
+
+    /**
+     * Begin streaming to the device, replacing any transfer in progress
+     * on the same characteristic.
+     */
+    public void start(D device, UUID characteristic, Source source) {
+        ConcurrentHashMap<UUID, Transfer> transfers = mTransfers.get(device);
+        if (transfers == null) {
+            ConcurrentHashMap<UUID, Transfer> created = new ConcurrentHashMap<>(4);
+            transfers = mTransfers.putIfAbsent(device, created);
+            if (transfers == null) {
+                transfers = created;
+            }
+        }
+
+        Transfer transfer = new Transfer(characteristic, source);
+        Transfer previous = transfers.put(characteristic, transfer);
+        if (previous != null) {
+            mListener.onTransferFinished(device, characteristic, previous.chunks, false);
+        }
+        sendNext(device, transfers, transfer);
+    }
+
+    /**
+     * Abandon the transfer to the device on the given characteristic, if any.
+     */
+    public void cancel(D device, UUID characteristic) {
+        ConcurrentHashMap<UUID, Transfer> transfers = mTransfers.get(device);
+        if (transfers == null) return;
+
+        Transfer transfer = transfers.remove(characteristic);
+        if (transfer != null) {
+            mListener.onTransferFinished(device, characteristic, transfer.chunks, false);
+        }
+    }
+
+    /**
+     * Delivery callback from the {@link NotificationDispatcher}.
+     */
+    public void onDeliveryResult(D device, UUID characteristic, int status) {
+        ConcurrentHashMap<UUID, Transfer> transfers = mTransfers.get(device);
+        if (transfers == null) return;
+        Transfer transfer = transfers.get(characteristic);
+        if (transfer == null) return;
+
+        if (status == GattStatus.GATT_SUCCESS) {
+            sendNext(device, transfers, transfer);
+        } else if (transfers.remove(characteristic, transfer)) {
+            mListener.onTransferFinished(device, characteristic, transfer.chunks, false);
+        }
+    }
+
+    public void removeDevice(D device) {
+        mTransfers.remove(device);
+    }
+
+    private void sendNext(D device, ConcurrentHashMap<UUID, Transfer> transfers,
+                          Transfer transfer) {
+        byte[] chunk = transfer.source.nextChunk(mMtuTracker.getMaxNotificationLength(device));
+        if (chunk == null) {
+            if (transfers.remove(transfer.characteristic, transfer)) {
+                mListener.onTransferFinished(device, transfer.characteristic,
+                        transfer.chunks, true);
+            }
+            return;
+        }
+        transfer.chunks++;
+        mDispatcher.enqueue(device, transfer.characteristic, chunk);
+    }
+
+    /**
+     * Source packing as many whole fixed-size records as fit in each chunk.
+     */
+    public static class RecordSource implements Source {
+        private final byte[] mRecords;
+        private final int mRecordSize;
+        private int mPosition;
+
+        public RecordSource(byte[] records, int recordSize) {
+            mRecords = records;
+            mRecordSize = recordSize;
+        }
+
+        @Override
+        public byte[] nextChunk(int maxLength) {
+            int remaining = mRecords.length - mPosition;
+            if (remaining <= 0) return null;
+
+            int records = Math.max(1, maxLength / mRecordSize);
+            int length = Math.min(remaining, records * mRecordSize);
+            byte[] chunk = new byte[length];
+            System.arraycopy(mRecords, mPosition, chunk, 0, length);
+            mPosition += length;
+            return chunk;
+        }
+    }
+}
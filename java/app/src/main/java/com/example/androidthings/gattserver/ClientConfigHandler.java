@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+/**
+ * Serves a Client Characteristic Configuration descriptor backed
+ * by a subscriber registry.
+ *
+ * Only the configuration bits enabled by the characteristic's properties
+ * are accepted; enabling any other bit fails with
+ * {@link GattStatus#GATT_REQUEST_NOT_SUPPORTED}. Writing the value already
+ * configured succeeds without reporting a change.
+ *
+ * @param <D> remote device type
+ */
+public class ClientConfigHandler<D> extends GattRequestRouter.AttributeHandler<D> {
+
+    /* Client Characteristic Configuration values, little-endian */
+    private static final byte[][] VALUES = {
+            {0x00, 0x00}, {0x01, 0x00}, {0x02, 0x00}, {0x03, 0x00}
+    };
+
+    private final SubscriberRegistry<D> mSubscribers;
+    private final int mSupported;
+
+    /**
+     * Create a handler for a characteristic that only supports notifications.
+     */
+    public ClientConfigHandler(SubscriberRegistry<D> subscribers) {
+        this(subscribers, SubscriberRegistry.CONFIG_NOTIFY);
+    }
+
+    /**
+     * @param supported Configuration bits the characteristic supports.
+     */
+    public ClientConfigHandler(SubscriberRegistry<D> subscribers, int supported) {
+        mSubscribers = subscribers;
+        mSupported = supported;
+    }
+
+    @Override
+    public byte[] onRead(D device) {
+        return VALUES[mSubscribers.getConfiguration(device) & 0x3];
+    }
+
+    @Override
+    public int onWrite(D device, byte[] value) {
+        if (value == null || value.length != 2) {
+            return GattStatus.GATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+
+        int config = (value[0] & 0xFF) | (value[1] & 0xFF) << 8;
+        if ((config & ~mSupported) != 0) {
+            return GattStatus.GATT_REQUEST_NOT_SUPPORTED;
+        }
+        // Clients may rewrite a CCCD, e.g. on every reconnection
+        if (config == mSubscribers.getConfiguration(device)) {
+            return GattStatus.GATT_SUCCESS;
+        }
+        if (config != SubscriberRegistry.CONFIG_NONE) {
+            mSubscribers.setConfiguration(device, config);
+            onConfigurationChanged(device, true);
+        } else {
+            mSubscribers.remove(device);
+            onConfigurationChanged(device, false);
+        }
+        return GattStatus.GATT_SUCCESS;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    /**
+     * Called after a device enables or disables notifications or indications.
+     */
+    protected void onConfigurationChanged(D device, boolean enabled) {
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for connections.
+ *
+ * Tracks the last activity of every admitted connection in
+ * least-recently-active order. The controller has a small, fixed number
+ * of connection slots, so once the cap is reached connections idle for
+ * longer than the idle timeout are cancelled, oldest first, to keep a
+ * slot free for devices that actually use the server. A connection over
+ * the cap with no idle connection to make room for it is cancelled
+ * instead.
+ *
+ * @param <D> remote device type
+ */
+public class ConnectionManager<D> {
+
+    /**
+     * Receives admission decisions. Called without the manager's lock held.
+     */
+    public interface Listener<D> {
+        void onConnectionRejected(D device);
+
+        void onConnectionEvicted(D device, long idleMillis);
+    }
+
+    private final GattTransport<D> mTransport;
+    private final int mMaxConnections;
+    private final long mIdleTimeoutNanos;
+    private final Listener<D> mListener;
+    /* Last activity of each admitted device, least recently active first */
+    private final LinkedHashMap<D, Long> mLastActivity = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mEvicted = new AtomicLong();
+
+    /**
+     * @param maxConnections Connections admitted at once.
+     * @param idleTimeoutMillis Time without activity after which a
+     *                          connection may be evicted.
+     */
+    public ConnectionManager(GattTransport<D> transport, int maxConnections,
+                             long idleTimeoutMillis, Listener<D> listener) {
+        mTransport = transport;
+        mMaxConnections = maxConnections;
+        mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        mListener = listener;
+    }
+
+    /**
+     * Admit a new connection, evicting an idle one if the cap is exceeded.
+     * @return false if the connection was rejected and is being cancelled.
+     */
+    public boolean onConnected(D device) {
+        long now = System.nanoTime();
+        List<Map.Entry<D, Long>> evicted;
+        boolean admitted;
+        synchronized (mLastActivity) {
+            mLastActivity.put(device, now);
+            evicted = removeIdle(now, mMaxConnections, device);
+            admitted = mLastActivity.size() <= mMaxConnections;
+            if (!admitted) {
+                mLastActivity.remove(device);
+            }
+        }
+
+        cancel(evicted, now);
+        if (!admitted) {
+            mRejected.incrementAndGet();
+            mListener.onConnectionRejected(device);
+            mTransport.cancelConnection(device);
+        }
+        return admitted;
+    }
+
+    public void onDisconnected(D device) {
+        synchronized (mLastActivity) {
+            mLastActivity.remove(device);
+        }
+    }
+
+    /**
+     * Record activity of a connected device, e.g. a request.
+     */
+    public void onActivity(D device) {
+        long now = System.nanoTime();
+        synchronized (mLastActivity) {
+            // Only refresh admitted devices; put() moves the entry to the tail
+            if (mLastActivity.containsKey(device)) {
+                mLastActivity.put(device, now);
+            }
+        }
+    }
+
+    /**
+     * Evict idle connections while all slots are taken. Called
+     * periodically, so a slot is freed before the next device needs it.
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        List<Map.Entry<D, Long>> evicted;
+        synchronized (mLastActivity) {
+            if (mLastActivity.size() < mMaxConnections) return;
+            evicted = removeIdle(now, mMaxConnections - 1, null);
+        }
+        cancel(evicted, now);
+    }
+
+    /**
+     * Remove idle devices, oldest first, until no more than the given
+     * number remain. Must be called with the lock held.
+     * @return the removed entries, or null if there were none.
+     */
+    private List<Map.Entry<D, Long>> removeIdle(long now, int limit, D exclude) {
+        List<Map.Entry<D, Long>> removed = null;
+        Iterator<Map.Entry<D, Long>> entries = mLastActivity.entrySet().iterator();
+        while (mLastActivity.size() > limit && entries.hasNext()) {
+            Map.Entry<D, Long> entry = entries.next();
+            // Later entries were active more recently
+            if (now - entry.getValue() < mIdleTimeoutNanos) break;
+            if (entry.getKey().equals(exclude)) continue;
+
+            if (removed == null) {
+                removed = new ArrayList<>(1);
+            }
+            removed.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            entries.remove();
+        }
+        return removed;
+    }
+
+    private void cancel(List<Map.Entry<D, Long>> evicted, long now) {
+        if (evicted == null) return;
+
+        for (Map.Entry<D, Long> entry : evicted) {
+            mEvicted.incrementAndGet();
+            mListener.onConnectionEvicted(entry.getKey(),
+                    TimeUnit.NANOSECONDS.toMillis(now - entry.getValue()));
+            mTransport.cancelConnection(entry.getKey());
+        }
+    }
+
+    /**
+     * Return the number of admitted connections.
+     */
+    public int getConnectionCount() {
+        synchronized (mLastActivity) {
+            return mLastActivity.size();
+        }
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    public long getEvictedCount() {
+        return mEvicted.get();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.TimeZone;
+
+/**
+ * Allocation-free encoder for the Current Time Service field values.
+ *
+ * Calendar fields are derived from the epoch timestamp with plain integer
+ * arithmetic. Zone and DST offsets come from a {@link ZoneTransitions}
+ * table built when the zone is set, so a lookup is a check of the last
+ * used interval or a binary search; the time zone is only consulted
+ * again when a timestamp falls outside the table window.
+ *
+ * The table takes its offsets from {@link java.util.Calendar}, so the
+ * output matches the Calendar based encoding it replaced, including the
+ * split between zone and DST offset and dates past the end of the
+ * platform's transition data.
+ */
+public class CurrentTimeEncoder {
+
+    /* Encoded field sizes */
+    public static final int EXACT_TIME_SIZE = 10;
+    public static final int LOCAL_TIME_INFO_SIZE = 2;
+    public static final int DATE_TIME_SIZE = 7;
+
+    private static final long DAY_MILLIS = 86400000L;
+    private static final int HOUR_MILLIS = 3600000;
+    private static final int MINUTE_MILLIS = 60000;
+    private static final int SECOND_MILLIS = 1000;
+
+    /* Window of the transition table around the time it is built */
+    private static final long TABLE_PAST_MILLIS = 366 * DAY_MILLIS;
+    private static final long TABLE_FUTURE_MILLIS = 10 * 366 * DAY_MILLIS;
+
+    /* Time bucket constants for local time information */
+    private static final int FIFTEEN_MINUTE_MILLIS = 900000;
+    static final int HALF_HOUR_MILLIS = 1800000;
+
+    /* Bluetooth Weekday Codes */
+    private static final byte DAY_MONDAY = 1;
+
+    /* Bluetooth DST Offset Codes */
+    private static final byte DST_STANDARD = 0x0;
+    private static final byte DST_HALF     = 0x2;
+    private static final byte DST_SINGLE   = 0x4;
+    private static final byte DST_DOUBLE   = 0x8;
+    static final byte DST_UNKNOWN = (byte) 0xFF;
+
+    private volatile TimeZone mTimeZone;
+    private volatile ZoneTransitions mTransitions;
+    /* Index of the most recently used interval, checked before searching */
+    private volatile int mLastIndex;
+
+    public CurrentTimeEncoder(TimeZone timeZone) {
+        setTimeZone(timeZone);
+    }
+
+    /**
+     * Switch the encoder to a new time zone, rebuilding the transition table.
+     */
+    public void setTimeZone(TimeZone timeZone) {
+        // The caller may go on to modify its instance
+        timeZone = (TimeZone) timeZone.clone();
+        mTransitions = buildTransitions(timeZone, System.currentTimeMillis());
+        mTimeZone = timeZone;
+    }
+
+    /**
+     * Move the transition table window if the system clock was set
+     * outside of it, so the rebuild happens off the request path.
+     */
+    public void onClockChanged(long timestamp) {
+        getTransitions(timestamp);
+    }
+
+    /**
+     * Return the transition table of the encoder's time zone.
+     */
+    public ZoneTransitions getZoneTransitions() {
+        return mTransitions;
+    }
+
+    /**
+     * Write the Exact Time 256 field values for a Current Time characteristic
+     * into the buffer at the given offset.
+     * @return the buffer offset following the encoded value.
+     */
+    public int encodeExactTime(long timestamp, byte adjustReason, byte[] buffer, int offset) {
+        ZoneTransitions transitions = getTransitions(timestamp);
+        int index = indexOf(transitions, timestamp);
+        long local = timestamp
+                + transitions.getZoneOffset(index) + transitions.getDstOffset(index);
+
+        encodeDateTime(local, buffer, offset);
+        long days = Math.floorDiv(local, DAY_MILLIS);
+        int millisOfDay = (int) Math.floorMod(local, DAY_MILLIS);
+        // Day of Week (1-7), epoch day 0 was a Thursday
+        buffer[offset + 7] = (byte) (Math.floorMod(days + 3, 7) + DAY_MONDAY);
+        // Fractions256
+        buffer[offset + 8] = (byte) (millisOfDay % SECOND_MILLIS / 256);
+
+        buffer[offset + 9] = adjustReason;
+
+        return offset + EXACT_TIME_SIZE;
+    }
+
+    /**
+     * Write a Date Time field value for the given local time, in
+     * milliseconds since the local epoch, into the buffer.
+     * @return the buffer offset following the encoded value.
+     */
+    static int encodeDateTime(long local, byte[] buffer, int offset) {
+        long days = Math.floorDiv(local, DAY_MILLIS);
+        int millisOfDay = (int) Math.floorMod(local, DAY_MILLIS);
+
+        // Civil date from day count (proleptic Gregorian, March-based year)
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+        // Year
+        buffer[offset] = (byte) (year & 0xFF);
+        buffer[offset + 1] = (byte) ((year >> 8) & 0xFF);
+        // Month
+        buffer[offset + 2] = (byte) month;
+        // Day
+        buffer[offset + 3] = (byte) day;
+        // Hours
+        buffer[offset + 4] = (byte) (millisOfDay / HOUR_MILLIS);
+        // Minutes
+        buffer[offset + 5] = (byte) (millisOfDay % HOUR_MILLIS / MINUTE_MILLIS);
+        // Seconds
+        buffer[offset + 6] = (byte) (millisOfDay % MINUTE_MILLIS / SECOND_MILLIS);
+
+        return offset + DATE_TIME_SIZE;
+    }
+
+    /**
+     * Write the field values for a Local Time Information characteristic
+     * into the buffer at the given offset.
+     * @return the buffer offset following the encoded value.
+     */
+    public int encodeLocalTimeInfo(long timestamp, byte[] buffer, int offset) {
+        ZoneTransitions transitions = getTransitions(timestamp);
+        int index = indexOf(transitions, timestamp);
+
+        // Time zone
+        buffer[offset] = (byte) (transitions.getZoneOffset(index) / FIFTEEN_MINUTE_MILLIS); // 15 minute intervals
+        // DST Offset
+        buffer[offset + 1] = getDstOffsetCode(transitions.getDstOffset(index) / HALF_HOUR_MILLIS); // 30 minute intervals
+
+        return offset + LOCAL_TIME_INFO_SIZE;
+    }
+
+    /**
+     * Return the first instant after the timestamp at which the zone or DST
+     * offset may change. For the last interval of the table this is the end
+     * of the table window.
+     */
+    public long getOffsetValidUntil(long timestamp) {
+        ZoneTransitions transitions = getTransitions(timestamp);
+        return transitions.getEnd(indexOf(transitions, timestamp));
+    }
+
+    /**
+     * Return the transition table, rebuilding it around the timestamp when
+     * the timestamp falls outside its window.
+     */
+    private ZoneTransitions getTransitions(long timestamp) {
+        ZoneTransitions transitions = mTransitions;
+        if (!transitions.covers(timestamp)) {
+            transitions = buildTransitions(mTimeZone, timestamp);
+            mTransitions = transitions;
+        }
+        return transitions;
+    }
+
+    /**
+     * Return the index of the interval containing the timestamp, which
+     * must be covered by the table. Consecutive requests almost always
+     * land in the same interval, so that one is tried first.
+     */
+    private int indexOf(ZoneTransitions transitions, long timestamp) {
+        int index = mLastIndex;
+        if (index < transitions.size()
+                && timestamp >= transitions.getStart(index)
+                && timestamp < transitions.getEnd(index)) {
+            return index;
+        }
+        index = transitions.indexOf(timestamp);
+        mLastIndex = index;
+        return index;
+    }
+
+    private static ZoneTransitions buildTransitions(TimeZone timeZone, long timestamp) {
+        return ZoneTransitions.build(timeZone,
+                timestamp - TABLE_PAST_MILLIS, timestamp + TABLE_FUTURE_MILLIS);
+    }
+
+    /**
+     * Convert a raw DST offset (in 30 minute intervals) to the
+     * corresponding Bluetooth DST offset code.
+     */
+    static byte getDstOffsetCode(int rawOffset) {
+        switch (rawOffset) {
+            case 0:
+                return DST_STANDARD;
+            case 1:
+                return DST_HALF;
+            case 2:
+                return DST_SINGLE;
+            case 4:
+                return DST_DOUBLE;
+            default:
+                return DST_UNKNOWN;
+        }
+    }
+}
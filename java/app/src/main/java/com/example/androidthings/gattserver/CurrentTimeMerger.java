@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.UUID;
+
+/**
+ * Replaces a Current Time value still queued for a device with the
+ * latest one, keeping the adjustments the device was not told about yet.
+ * Values of other characteristics are queued as usual.
+ */
+public class CurrentTimeMerger implements NotificationDispatcher.Merger {
+
+    /* Offset of the Adjust Reason field in a Current Time value */
+    private static final int ADJUST_REASON_OFFSET = CurrentTimeEncoder.EXACT_TIME_SIZE - 1;
+
+    private final ServerMetrics mMetrics;
+
+    /**
+     * @param metrics Counts every merge as {@link ServerMetrics#COUNT_NOTIFICATIONS_MERGED}.
+     */
+    public CurrentTimeMerger(ServerMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    public byte[] merge(UUID characteristic, byte[] queued, byte[] latest) {
+        if (!characteristic.equals(TimeProfile.CURRENT_TIME)) return null;
+
+        mMetrics.increment(ServerMetrics.COUNT_NOTIFICATIONS_MERGED);
+        byte reasons = (byte) (queued[ADJUST_REASON_OFFSET] | latest[ADJUST_REASON_OFFSET]);
+        if (reasons == latest[ADJUST_REASON_OFFSET]) {
+            return latest;
+        }
+        // The latest value is shared by all subscribers
+        byte[] merged = latest.clone();
+        merged[ADJUST_REASON_OFFSET] = reasons;
+        return merged;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.UUID;
+
+/**
+ * Vendor service exposing server diagnostics to any BLE client.
+ */
+public class DiagnosticsProfile {
+
+    /* Vendor Diagnostics Service UUID */
+    public static UUID DIAGNOSTICS_SERVICE = UUID.fromString("a1b70100-3c6d-4f0e-9a52-7d0c8e4b2f61");
+    /* Metrics Snapshot Characteristic, see ServerMetrics for the format */
+    public static UUID METRICS_SNAPSHOT    = UUID.fromString("a1b70101-3c6d-4f0e-9a52-7d0c8e4b2f61");
+
+    /**
+     * Return a configured {@link BluetoothGattService} instance for the
+     * Diagnostics Service.
+     */
+    public static BluetoothGattService createDiagnosticsService() {
+        BluetoothGattService service = new BluetoothGattService(DIAGNOSTICS_SERVICE,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+
+        // Metrics Snapshot characteristic
+        BluetoothGattCharacteristic snapshot = new BluetoothGattCharacteristic(METRICS_SNAPSHOT,
+                //Read-only characteristic
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+
+        service.addCharacteristic(snapshot);
+
+        return service;
+    }
+}
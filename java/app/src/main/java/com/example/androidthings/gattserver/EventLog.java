@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Level-gated binary event log in a preallocated ring buffer.
+ *
+ * Each event is two longs: the wall clock time, and the event type,
+ * level, device index and a 32-bit value packed together. Recording an
+ * event below the current level costs a single field read; recording
+ * one above it costs a device index lookup and two array stores, with
+ * no allocation or string formatting. Events are only decoded into text
+ * when the log is dumped.
+ *
+ * Devices are given an index on first use. The index is released when the
+ * device is removed, and released indexes are reused oldest first once no
+ * unused ones remain, so a dump can usually still name devices that have
+ * since disconnected. Events recorded before their index was reused are
+ * dumped without the name.
+ *
+ * @param <D> remote device type
+ */
+public class EventLog<D> {
+
+    /* Levels, matching android.util.Log */
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    /* Level that disables recording */
+    public static final int OFF = 7;
+
+    /* Event types; the meaning of the value is given for each */
+    public static final int EVENT_CONNECTED = 0;
+    public static final int EVENT_DISCONNECTED = 1;
+    /* value: new ATT_MTU */
+    public static final int EVENT_MTU_CHANGED = 2;
+    /* value: 16-bit characteristic UUID, or -1 */
+    public static final int EVENT_CHARACTERISTIC_READ = 3;
+    public static final int EVENT_CHARACTERISTIC_WRITE = 4;
+    public static final int EVENT_DESCRIPTOR_READ = 5;
+    public static final int EVENT_DESCRIPTOR_WRITE = 6;
+    public static final int EVENT_UNKNOWN_ATTRIBUTE = 7;
+    public static final int EVENT_SUBSCRIBED = 8;
+    public static final int EVENT_UNSUBSCRIBED = 9;
+    /* value: 0 */
+    public static final int EVENT_REQUEST_REJECTED = 10;
+    /* value: number of subscribers */
+    public static final int EVENT_NOTIFY = 11;
+    /* value: delivery status */
+    public static final int EVENT_NOTIFICATION_FAILED = 12;
+    /* value: notifications sent */
+    public static final int EVENT_TRANSFER_COMPLETED = 13;
+    public static final int EVENT_TRANSFER_ABORTED = 14;
+    /* value: 0 */
+    public static final int EVENT_TRANSFER_REJECTED = 15;
+    /* value: advertising mode */
+    public static final int EVENT_ADVERTISE_STARTED = 16;
+    /* value: advertise error code */
+    public static final int EVENT_ADVERTISE_FAILED = 17;
+    /* value: advertising mode */
+    public static final int EVENT_ADVERTISE_MODE_CHANGED = 18;
+    /* value: retry delay in milliseconds */
+    public static final int EVENT_ADVERTISE_RETRY = 19;
+    /* value: milliseconds from registration until all services were added */
+    public static final int EVENT_SERVICES_READY = 20;
+    /* value: 0 */
+    public static final int EVENT_CONNECTION_REJECTED = 21;
+    /* value: seconds since the last activity */
+    public static final int EVENT_CONNECTION_EVICTED = 22;
+    /* value: average and maximum confirmation round trip in microseconds */
+    public static final int EVENT_INDICATION_LATENCY = 23;
+    public static final int EVENT_INDICATION_LATENCY_MAX = 24;
+    /* value: restored Current Time and Time History (<< 8) configurations */
+    public static final int EVENT_SUBSCRIPTIONS_RESTORED = 25;
+
+    private static final String[] EVENT_NAMES = {
+            "CONNECTED", "DISCONNECTED", "MTU_CHANGED", "CHARACTERISTIC_READ",
+            "CHARACTERISTIC_WRITE", "DESCRIPTOR_READ", "DESCRIPTOR_WRITE", "UNKNOWN_ATTRIBUTE",
+            "SUBSCRIBED", "UNSUBSCRIBED", "REQUEST_REJECTED", "NOTIFY", "NOTIFICATION_FAILED",
+            "TRANSFER_COMPLETED", "TRANSFER_ABORTED", "TRANSFER_REJECTED", "ADVERTISE_STARTED",
+            "ADVERTISE_FAILED", "ADVERTISE_MODE_CHANGED", "ADVERTISE_RETRY",
+            "SERVICES_READY", "CONNECTION_REJECTED", "CONNECTION_EVICTED",
+            "INDICATION_LATENCY", "INDICATION_LATENCY_MAX", "SUBSCRIPTIONS_RESTORED"
+    };
+    private static final String LEVEL_NAMES = "??VDIWE";
+
+    /* Device index recorded for events without a device */
+    private static final int NO_DEVICE = 0xFFFF;
+    /* Largest device table, leaving NO_DEVICE unused */
+    public static final int MAX_DEVICES = NO_DEVICE;
+
+    private final long[] mEvents;
+    private final int mCapacity;
+    private final AtomicLong mNextEvent = new AtomicLong();
+    private volatile int mLevel;
+
+    private final ConcurrentHashMap<D, Integer> mDeviceIndexes = new ConcurrentHashMap<>();
+    /* Device at each index, and the first event recorded for it */
+    private final Object[] mDevices;
+    private final long[] mFirstEvents;
+    /* Indexes handed out so far */
+    private int mDeviceCount;
+    /* Removed indexes, reused oldest first */
+    private final int[] mFreeIndexes;
+    private int mFreeHead;
+    private int mFreeCount;
+
+    /**
+     * @param capacity Number of most recent events kept.
+     * @param level Lowest level recorded.
+     * @param maxDevices Devices given an index at once, at most
+     *                   {@link #MAX_DEVICES}. Events for further devices
+     *                   are recorded without one.
+     */
+    public EventLog(int capacity, int level, int maxDevices) {
+        if (maxDevices < 0 || maxDevices > MAX_DEVICES) {
+            throw new IllegalArgumentException("Invalid device count " + maxDevices);
+        }
+        mCapacity = capacity;
+        mEvents = new long[capacity * 2];
+        mLevel = level;
+        mDevices = new Object[maxDevices];
+        mFirstEvents = new long[maxDevices];
+        mFreeIndexes = new int[maxDevices];
+    }
+
+    public void setLevel(int level) {
+        mLevel = level;
+    }
+
+    public boolean isLoggable(int level) {
+        return level >= mLevel;
+    }
+
+    /**
+     * Record an event.
+     * @param device Device the event relates to, or null.
+     */
+    public void log(int level, int type, D device, int value) {
+        if (level < mLevel) return;
+
+        // Looked up first, so the event is numbered after the index was assigned
+        int deviceIndex = indexOf(device);
+        long slot = mNextEvent.getAndIncrement() % mCapacity;
+        int index = (int) slot * 2;
+        mEvents[index] = System.currentTimeMillis();
+        mEvents[index + 1] = (long) type << 56
+                | (long) level << 48
+                | (long) deviceIndex << 32
+                | (value & 0xFFFFFFFFL);
+    }
+
+    private int indexOf(D device) {
+        if (device == null) return NO_DEVICE;
+
+        Integer index = mDeviceIndexes.get(device);
+        if (index != null) return index;
+
+        synchronized (mDevices) {
+            index = mDeviceIndexes.get(device);
+            if (index == null) {
+                // Reuse an index only once none are left unused
+                if (mDeviceCount < mDevices.length) {
+                    index = mDeviceCount++;
+                } else if (mFreeCount > 0) {
+                    index = mFreeIndexes[mFreeHead];
+                    mFreeHead = (mFreeHead + 1) % mFreeIndexes.length;
+                    mFreeCount--;
+                } else {
+                    return NO_DEVICE;
+                }
+                mDevices[index] = device;
+                mFirstEvents[index] = mNextEvent.get();
+                mDeviceIndexes.put(device, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Release the device's index for reuse. Called once the device has
+     * disconnected and no further events are expected for it.
+     */
+    public void removeDevice(D device) {
+        synchronized (mDevices) {
+            Integer index = mDeviceIndexes.remove(device);
+            if (index == null) return;
+
+            mFreeIndexes[(mFreeHead + mFreeCount) % mFreeIndexes.length] = index;
+            mFreeCount++;
+        }
+    }
+
+    /**
+     * Return the device an event was recorded for, or null if its index
+     * has since been given to another device.
+     */
+    private Object getDevice(int index, long event) {
+        synchronized (mDevices) {
+            return (event >= mFirstEvents[index]) ? mDevices[index] : null;
+        }
+    }
+
+    /**
+     * Write the buffered events to the writer, oldest first. Events
+     * recorded while dumping may appear out of order.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        long next = mNextEvent.get();
+        long first = Math.max(0, next - mCapacity);
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+
+        writer.println(prefix + "Events: " + (next - first) + " of " + next);
+        for (long i = first; i < next; i++) {
+            int index = (int) (i % mCapacity) * 2;
+            long timestamp = mEvents[index];
+            long packed = mEvents[index + 1];
+            int type = (int) (packed >>> 56);
+            int level = (int) (packed >>> 48) & 0xFF;
+            int device = (int) (packed >>> 32) & 0xFFFF;
+            int value = (int) packed;
+
+            StringBuilder line = new StringBuilder(prefix)
+                    .append(format.format(new Date(timestamp)))
+                    .append(' ').append(LEVEL_NAMES.charAt(Math.min(level, ERROR)))
+                    .append(' ').append((type < EVENT_NAMES.length) ? EVENT_NAMES[type] : "?");
+            if (device != NO_DEVICE) {
+                line.append(" #").append(device);
+                Object name = getDevice(device, i);
+                if (name != null) {
+                    line.append(' ').append(name);
+                }
+            }
+            if (type >= EVENT_CHARACTERISTIC_READ && type <= EVENT_UNSUBSCRIBED) {
+                line.append((value < 0) ? " vendor" : String.format(" 0x%04X", value));
+            } else {
+                line.append(' ').append(value);
+            }
+            writer.println(line);
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table-driven dispatch of GATT server requests to per-attribute handlers.
+ *
+ * Handlers are registered by characteristic UUID, or by characteristic and
+ * descriptor UUID pair. Attributes using the Bluetooth base UUID are looked
+ * up by their 16-bit alias in an open-addressed table; other UUIDs fall
+ * back to a hash map. Either way dispatch cost does not grow with the
+ * number of registered attributes.
+ *
+ * Reads at a non-zero offset (Read Blob) are served from the value captured
+ * by the device's preceding offset-zero read, so a long value stays
+ * consistent across fragments. Prepared writes are staged per device in
+ * buffers drawn from a bounded {@link BufferPool} and handed to the
+ * handler as a whole on execute. Each device may stage a limited number
+ * of attributes at once, and fragments must not leave gaps, so a staged
+ * value never exposes bytes left in a recycled buffer.
+ *
+ * Handlers must be registered before requests are dispatched.
+ *
+ * @param <D> remote device type
+ */
+public class GattRequestRouter<D> {
+
+    /* Bluetooth base UUID: 0000xxxx-0000-1000-8000-00805f9b34fb */
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    /* Maximum length of an attribute value */
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+    /* Longest value that fits a read response at the default ATT_MTU */
+    private static final int DEFAULT_READ_PAYLOAD = 22;
+
+    /**
+     * Sends the response for a request back to the remote device.
+     * The value array is only valid for the duration of the call.
+     */
+    public interface Responder<D> {
+        void sendResponse(D device, int requestId, int status, int offset, byte[] value);
+    }
+
+    /**
+     * Serves requests for a single characteristic or descriptor.
+     * The default implementations reject the request.
+     */
+    public static abstract class AttributeHandler<D> {
+        /**
+         * @return the attribute value, or null if reads are not permitted.
+         */
+        public byte[] onRead(D device) {
+            return null;
+        }
+
+        /**
+         * @return the GATT status of the write.
+         */
+        public int onWrite(D device, byte[] value) {
+            return GattStatus.GATT_WRITE_NOT_PERMITTED;
+        }
+
+        /**
+         * @return true if the attribute accepts writes. Prepared writes
+         *         are refused up front for attributes that do not.
+         */
+        public boolean isWritable() {
+            return false;
+        }
+    }
+
+    /**
+     * Value being staged by a sequence of prepared writes to one attribute.
+     */
+    private static class PreparedWrite<D> {
+        final AttributeHandler<D> handler;
+        final byte[] buffer;
+        int length;
+
+        PreparedWrite(AttributeHandler<D> handler, byte[] buffer) {
+            this.handler = handler;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Long read and prepared write state of one device.
+     */
+    private static class DeviceState<D> {
+        AttributeHandler<D> readHandler;
+        byte[] readValue;
+        final ArrayList<PreparedWrite<D>> preparedWrites = new ArrayList<>();
+    }
+
+    private final Responder<D> mResponder;
+    private final BufferPool mBufferPool;
+    private final int mMaxPreparedWrites;
+    private final ConcurrentHashMap<D, DeviceState<D>> mDeviceStates = new ConcurrentHashMap<>();
+
+    /* Per-thread response slices indexed by length, reused across fragments */
+    private final ThreadLocal<byte[][]> mSlices = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[MAX_ATTRIBUTE_LENGTH + 1][];
+        }
+    };
+
+    private final ShortUuidTable mShortCharacteristics = new ShortUuidTable();
+    private final ShortUuidTable mShortDescriptors = new ShortUuidTable();
+    private final HashMap<UUID, AttributeHandler<D>> mCharacteristics = new HashMap<>();
+    private final HashMap<UUID, HashMap<UUID, AttributeHandler<D>>> mDescriptors =
+            new HashMap<>();
+
+    /**
+     * @param bufferPool Pool of staging buffers for prepared writes, sized
+     *                   at least {@link #MAX_ATTRIBUTE_LENGTH}.
+     * @param maxPreparedWrites Attributes a single device may stage
+     *                          prepared writes for at once.
+     */
+    public GattRequestRouter(Responder<D> responder, BufferPool bufferPool,
+                             int maxPreparedWrites) {
+        mResponder = responder;
+        mBufferPool = bufferPool;
+        mMaxPreparedWrites = maxPreparedWrites;
+    }
+
+    /**
+     * Register the handler serving a characteristic value.
+     */
+    public void registerCharacteristic(UUID characteristic, AttributeHandler<D> handler) {
+        int alias = getShortUuid(characteristic);
+        if (alias >= 0) {
+            mShortCharacteristics.put(alias, handler);
+        } else {
+            mCharacteristics.put(characteristic, handler);
+        }
+    }
+
+    /**
+     * Register the handler serving a descriptor of a characteristic.
+     */
+    public void registerDescriptor(UUID characteristic, UUID descriptor,
+                                   AttributeHandler<D> handler) {
+        int characteristicAlias = getShortUuid(characteristic);
+        int descriptorAlias = getShortUuid(descriptor);
+        if (characteristicAlias >= 0 && descriptorAlias >= 0) {
+            mShortDescriptors.put((characteristicAlias << 16) | descriptorAlias, handler);
+        } else {
+            HashMap<UUID, AttributeHandler<D>> descriptors = mDescriptors.get(characteristic);
+            if (descriptors == null) {
+                descriptors = new HashMap<>();
+                mDescriptors.put(characteristic, descriptors);
+            }
+            descriptors.put(descriptor, handler);
+        }
+    }
+
+    /**
+     * Serve a characteristic read request.
+     * @return false if no handler is registered for the characteristic.
+     */
+    public boolean dispatchCharacteristicRead(D device, int requestId, int offset,
+                                              UUID characteristic) {
+        AttributeHandler<D> handler = findCharacteristic(characteristic);
+        return dispatchRead(handler, device, requestId, offset);
+    }
+
+    /**
+     * Serve a characteristic write request.
+     * @return false if no handler is registered for the characteristic.
+     */
+    public boolean dispatchCharacteristicWrite(D device, int requestId, UUID characteristic,
+                                               boolean preparedWrite, boolean responseNeeded,
+                                               int offset, byte[] value) {
+        AttributeHandler<D> handler = findCharacteristic(characteristic);
+        return dispatchWrite(handler, device, requestId, preparedWrite, responseNeeded,
+                offset, value);
+    }
+
+    /**
+     * Serve a descriptor read request.
+     * @return false if no handler is registered for the descriptor.
+     */
+    public boolean dispatchDescriptorRead(D device, int requestId, int offset,
+                                          UUID characteristic, UUID descriptor) {
+        AttributeHandler<D> handler = findDescriptor(characteristic, descriptor);
+        return dispatchRead(handler, device, requestId, offset);
+    }
+
+    /**
+     * Serve a descriptor write request.
+     * @return false if no handler is registered for the descriptor.
+     */
+    public boolean dispatchDescriptorWrite(D device, int requestId,
+                                           UUID characteristic, UUID descriptor,
+                                           boolean preparedWrite, boolean responseNeeded,
+                                           int offset, byte[] value) {
+        AttributeHandler<D> handler = findDescriptor(characteristic, descriptor);
+        return dispatchWrite(handler, device, requestId, preparedWrite, responseNeeded,
+                offset, value);
+    }
+
+    /**
+     * Commit or discard the writes prepared by a device.
+     */
+    public void dispatchExecuteWrite(D device, int requestId, boolean execute) {
+        int status = GattStatus.GATT_SUCCESS;
+        DeviceState<D> state = mDeviceStates.get(device);
+        if (state != null) {
+            synchronized (state) {
+                for (PreparedWrite<D> write : state.preparedWrites) {
+                    if (execute && status == GattStatus.GATT_SUCCESS) {
+                        status = write.handler.onWrite(device,
+                                Arrays.copyOf(write.buffer, write.length));
+                    }
+                    mBufferPool.release(write.buffer);
+                }
+                state.preparedWrites.clear();
+            }
+        }
+        mResponder.sendResponse(device, requestId, status, 0, null);
+    }
+
+    /**
+     * Release all long read and prepared write state of a device,
+     * e.g. after it disconnects.
+     */
+    public void removeDevice(D device) {
+        DeviceState<D> state = mDeviceStates.remove(device);
+        if (state == null) return;
+
+        synchronized (state) {
+            for (PreparedWrite<D> write : state.preparedWrites) {
+                mBufferPool.release(write.buffer);
+            }
+            state.preparedWrites.clear();
+            state.readHandler = null;
+            state.readValue = null;
+        }
+    }
+
+    private boolean dispatchRead(AttributeHandler<D> handler, D device, int requestId,
+                                 int offset) {
+        if (handler == null) {
+            mResponder.sendResponse(device, requestId, GattStatus.GATT_FAILURE, offset, null);
+            return false;
+        }
+
+        byte[] value;
+        if (offset == 0) {
+            value = handler.onRead(device);
+            if (value != null && value.length > DEFAULT_READ_PAYLOAD) {
+                // Remember the value in case the client continues with Read Blob
+                DeviceState<D> state = getDeviceState(device);
+                synchronized (state) {
+                    state.readHandler = handler;
+                    state.readValue = value;
+                }
+            }
+        } else {
+            value = null;
+            DeviceState<D> state = mDeviceStates.get(device);
+            if (state != null) {
+                synchronized (state) {
+                    if (state.readHandler == handler) {
+                        value = state.readValue;
+                    }
+                }
+            }
+            if (value == null) {
+                value = handler.onRead(device);
+            }
+        }
+
+        if (value == null) {
+            mResponder.sendResponse(device, requestId,
+                    GattStatus.GATT_READ_NOT_PERMITTED, offset, null);
+        } else if (offset > value.length) {
+            mResponder.sendResponse(device, requestId,
+                    GattStatus.GATT_INVALID_OFFSET, offset, null);
+        } else {
+            mResponder.sendResponse(device, requestId,
+                    GattStatus.GATT_SUCCESS, offset, slice(value, offset));
+        }
+        return true;
+    }
+
+    private boolean dispatchWrite(AttributeHandler<D> handler, D device, int requestId,
+                                  boolean preparedWrite, boolean responseNeeded,
+                                  int offset, byte[] value) {
+        if (handler == null) {
+            if (responseNeeded) {
+                mResponder.sendResponse(device, requestId, GattStatus.GATT_FAILURE, offset, null);
+            }
+            return false;
+        }
+
+        if (preparedWrite) {
+            int status = prepareWrite(handler, device, offset, value);
+            if (responseNeeded) {
+                // Prepare Write responses echo the received value
+                mResponder.sendResponse(device, requestId, status, offset,
+                        (status == GattStatus.GATT_SUCCESS) ? value : null);
+            }
+        } else {
+            int status = handler.onWrite(device, value);
+            if (responseNeeded) {
+                mResponder.sendResponse(device, requestId, status, 0, null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stage a fragment of a reliable write in the device's buffer
+     * for the attribute.
+     */
+    private int prepareWrite(AttributeHandler<D> handler, D device, int offset, byte[] value) {
+        if (!handler.isWritable()) {
+            return GattStatus.GATT_WRITE_NOT_PERMITTED;
+        }
+        int length = (value == null) ? 0 : value.length;
+        if (offset < 0 || offset > MAX_ATTRIBUTE_LENGTH) {
+            return GattStatus.GATT_INVALID_OFFSET;
+        }
+        if (offset + length > MAX_ATTRIBUTE_LENGTH) {
+            return GattStatus.GATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+
+        DeviceState<D> state = getDeviceState(device);
+        synchronized (state) {
+            PreparedWrite<D> write = null;
+            for (PreparedWrite<D> staged : state.preparedWrites) {
+                if (staged.handler == handler) {
+                    write = staged;
+                    break;
+                }
+            }
+            // Pooled buffers are not cleared, so every byte up to the
+            // staged length must come from this device
+            if (offset > ((write == null) ? 0 : write.length)) {
+                return GattStatus.GATT_INVALID_OFFSET;
+            }
+            if (write == null) {
+                if (state.preparedWrites.size() >= mMaxPreparedWrites) {
+                    return GattStatus.GATT_PREPARE_QUEUE_FULL;
+                }
+                byte[] buffer = mBufferPool.acquire();
+                if (buffer == null) {
+                    return GattStatus.GATT_PREPARE_QUEUE_FULL;
+                }
+                write = new PreparedWrite<>(handler, buffer);
+                state.preparedWrites.add(write);
+            }
+
+            if (length > 0) {
+                System.arraycopy(value, 0, write.buffer, offset, length);
+            }
+            write.length = Math.max(write.length, offset + length);
+        }
+        return GattStatus.GATT_SUCCESS;
+    }
+
+    private DeviceState<D> getDeviceState(D device) {
+        DeviceState<D> state = mDeviceStates.get(device);
+        if (state == null) {
+            DeviceState<D> created = new DeviceState<>();
+            state = mDeviceStates.putIfAbsent(device, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Return the tail of the value starting at offset, using a reusable
+     * per-thread array of the exact length.
+     */
+    private byte[] slice(byte[] value, int offset) {
+        if (offset == 0) {
+            return value;
+        }
+        int length = value.length - offset;
+        byte[] slice;
+        if (length > MAX_ATTRIBUTE_LENGTH) {
+            slice = new byte[length];
+        } else {
+            byte[][] slices = mSlices.get();
+            slice = slices[length];
+            if (slice == null) {
+                slice = new byte[length];
+                slices[length] = slice;
+            }
+        }
+        System.arraycopy(value, offset, slice, 0, length);
+        return slice;
+    }
+
+    private AttributeHandler<D> findCharacteristic(UUID characteristic) {
+        int alias = getShortUuid(characteristic);
+        if (alias >= 0) {
+            return mShortCharacteristics.get(alias);
+        }
+        return mCharacteristics.get(characteristic);
+    }
+
+    private AttributeHandler<D> findDescriptor(UUID characteristic, UUID descriptor) {
+        int characteristicAlias = getShortUuid(characteristic);
+        int descriptorAlias = getShortUuid(descriptor);
+        if (characteristicAlias >= 0 && descriptorAlias >= 0) {
+            return mShortDescriptors.get((characteristicAlias << 16) | descriptorAlias);
+        }
+        HashMap<UUID, AttributeHandler<D>> descriptors = mDescriptors.get(characteristic);
+        return (descriptors == null) ? null : descriptors.get(descriptor);
+    }
+
+    /**
+     * Return the 16-bit alias of a Bluetooth base UUID, or -1 if the UUID
+     * is not derived from the base UUID.
+     */
+    public static int getShortUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LSB
+                || (msb & 0xFFFF0000FFFFFFFFL) != BASE_UUID_MSB) {
+            return -1;
+        }
+        return (int) (msb >>> 32);
+    }
+
+    /**
+     * Open-addressed int to handler table with linear probing.
+     */
+    private class ShortUuidTable {
+        private int[] mKeys = new int[16];
+        private Object[] mValues = new Object[16];
+        private int mSize;
+
+        void put(int key, AttributeHandler<D> handler) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                resize();
+            }
+            int mask = mKeys.length - 1;
+            int index = hash(key) & mask;
+            while (mValues[index] != null && mKeys[index] != key) {
+                index = (index + 1) & mask;
+            }
+            if (mValues[index] == null) {
+                mSize++;
+            }
+            mKeys[index] = key;
+            mValues[index] = handler;
+        }
+
+        @SuppressWarnings("unchecked")
+        AttributeHandler<D> get(int key) {
+            int mask = mKeys.length - 1;
+            int index = hash(key) & mask;
+            Object value;
+            while ((value = mValues[index]) != null) {
+                if (mKeys[index] == key) {
+                    return (AttributeHandler<D>) value;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void resize() {
+            int[] keys = mKeys;
+            Object[] values = mValues;
+            mKeys = new int[keys.length * 2];
+            mValues = new Object[values.length * 2];
+            mSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null) {
+                    put(keys[i], (AttributeHandler<D>) values[i]);
+                }
+            }
+        }
+
+        private int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
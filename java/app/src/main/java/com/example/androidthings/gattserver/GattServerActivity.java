@@ -19,45 +19,67 @@ package com.example.androidthings.gattserver;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattServer;
-import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
-import android.bluetooth.le.AdvertiseSettings;
-import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.hardware.display.DisplayManager;
 import android.os.Bundle;
 import android.os.ParcelUuid;
-import android.text.format.DateFormat;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.WindowManager;
 import android.widget.TextView;
 
-import java.util.Arrays;
-import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.TimeZone;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 public class GattServerActivity extends Activity {
     private static final String TAG = GattServerActivity.class.getSimpleName();
 
+    /* CCCD values of bonded devices, in the app's files directory */
+    private static final String SUBSCRIPTIONS_FILE = "subscriptions.bin";
+    /* Interval between Current Time notifications to subscribers */
+    private static final long NOTIFY_PERIOD_MILLIS = NotificationScheduler.PERIOD_PER_MINUTE;
+
     /* Local UI */
     private TextView mLocalTimeView;
+    private LocalTimeRenderer mLocalTimeRenderer;
+    /* True when the board has no display to render the local UI on */
+    private boolean mHeadless;
     /* Bluetooth API */
     private BluetoothManager mBluetoothManager;
-    private BluetoothGattServer mBluetoothGattServer;
-    private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
-    /* Collection of notification subscribers */
-    private Set<BluetoothDevice> mRegisteredDevices = new HashSet<>();
+    private AndroidGattTransport mGattTransport;
+    private ServiceRegistry mServiceRegistry;
+    private AdvertisingController mAdvertisingController;
+    /* Current Time Service logic */
+    private TimeServer<BluetoothDevice> mTimeServer;
+    /* Subscriptions of bonded devices, restored across restarts */
+    private SubscriptionStore<BluetoothDevice> mSubscriptionStore;
+    /* Startup stages, from process start to the first connectable advertisement */
+    private StartupSequencer mStartupSequencer;
+    /* Completed once the adapter is on at startup */
+    private final CompletableFuture<Void> mAdapterReady = new CompletableFuture<>();
+    /* Completed when advertising first starts */
+    private final CompletableFuture<Void> mFirstAdvertisement = new CompletableFuture<>();
+    /* Wall clock minus elapsed realtime, and time zone, as of the last adjustment */
+    private long mClockOffset;
+    private TimeZone mTimeZone;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -65,6 +87,10 @@ public class GattServerActivity extends Activity {
         setContentView(R.layout.activity_server);
 
         mLocalTimeView = (TextView) findViewById(R.id.text_time);
+        mLocalTimeRenderer = new LocalTimeRenderer(this, mLocalTimeView);
+        DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
+        mHeadless = displayManager.getDisplays().length == 0;
+        mLocalTimeRenderer.setEnabled(false);
 
         // Devices with a display should not go to sleep
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -76,34 +102,220 @@ public class GattServerActivity extends Activity {
             finish();
         }
 
+        mGattTransport = new AndroidGattTransport(mBluetoothManager);
+        mTimeServer = new TimeServer<>(mGattTransport, NOTIFY_PERIOD_MILLIS);
+        mSubscriptionStore = new SubscriptionStore<>(
+                new File(getFilesDir(), SUBSCRIPTIONS_FILE),
+                new SubscriptionStore.KeyResolver<BluetoothDevice>() {
+            @Override
+            public long getBondedKey(BluetoothDevice device) {
+                if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
+                    return SubscriptionStore.NO_KEY;
+                }
+                return SubscriptionStore.parseAddress(device.getAddress());
+            }
+        });
+        mTimeServer.setSubscriptionStore(mSubscriptionStore);
+
+        // Services published by the GATT server, in registration order
+        mServiceRegistry = new ServiceRegistry(mGattTransport)
+                .declare(new ServiceRegistry.ServiceFactory() {
+                    @Override
+                    public BluetoothGattService createService() {
+                        return TimeProfile.createTimeService();
+                    }
+                })
+                .declare(new ServiceRegistry.ServiceFactory() {
+                    @Override
+                    public BluetoothGattService createService() {
+                        return TimeProfile.createNextDstChangeService();
+                    }
+                })
+                .declare(new ServiceRegistry.ServiceFactory() {
+                    @Override
+                    public BluetoothGattService createService() {
+                        return TimeProfile.createReferenceTimeUpdateService();
+                    }
+                })
+                .declare(new ServiceRegistry.ServiceFactory() {
+                    @Override
+                    public BluetoothGattService createService() {
+                        return DiagnosticsProfile.createDiagnosticsService();
+                    }
+                });
+
+        AdvertiseData data = new AdvertiseData.Builder()
+                .setIncludeDeviceName(true)
+                .setIncludeTxPowerLevel(false)
+                .addServiceUuid(new ParcelUuid(TimeProfile.TIME_SERVICE))
+                .build();
+        mAdvertisingController = new AdvertisingController(
+                new AndroidAdvertiser(bluetoothAdapter, data), mTimeServer.getEventLog());
+        // Advertise according to the load on the server
+        mTimeServer.setLoadListener(new TimeServer.LoadListener() {
+            @Override
+            public void onLoadChanged(int connections, int subscribers) {
+                mAdvertisingController.onLoadChanged(connections, subscribers);
+            }
+        });
+        mAdvertisingController.setListener(new AdvertisingController.Listener() {
+            @Override
+            public void onAdvertisingStarted(int mode) {
+                mFirstAdvertisement.complete(null);
+            }
+        });
+
+        // Register for system clock events
+        mClockOffset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        mTimeZone = TimeZone.getDefault();
+        IntentFilter timeFilter = new IntentFilter();
+        timeFilter.addAction(Intent.ACTION_TIME_CHANGED);
+        timeFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        registerReceiver(mTimeReceiver, timeFilter);
+
         // Register for system Bluetooth events
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
         registerReceiver(mBluetoothReceiver, filter);
-        if (!bluetoothAdapter.isEnabled()) {
-            Log.d(TAG, "Bluetooth is currently disabled...enabling");
-            bluetoothAdapter.enable();
-        } else {
-            Log.d(TAG, "Bluetooth enabled...starting services");
-            startAdvertising();
-            startServer();
-        }
+
+        // Bring up Bluetooth, the server and advertising off the main thread
+        mStartupSequencer = createStartupSequencer();
+        mStartupSequencer.start().whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                Log.i(TAG, "Startup timeline (ms since process start): "
+                        + mStartupSequencer.getTimeline());
+            }
+        });
+    }
+
+    /**
+     * Build the startup stages. Enabling the adapter and preparing the
+     * local UI run concurrently; the server is opened once the adapter is
+     * on, and advertising waits for all services to be added so no central
+     * connects to a partial attribute database.
+     */
+    private StartupSequencer createStartupSequencer() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "startup");
+            }
+        });
+        // Nothing to run once started
+        executor.allowCoreThreadTimeOut(true);
+
+        StartupSequencer sequencer = new StartupSequencer(ServerMetrics.STAGE_COUNT,
+                Process.getStartElapsedRealtime(), executor, new StartupSequencer.Listener() {
+            @Override
+            public void onStageFinished(int stage, long startMillis, long endMillis,
+                                        Throwable error) {
+                if (error != null) {
+                    Log.w(TAG, "Startup stage " + ServerMetrics.getStageName(stage)
+                            + " failed: " + error.getMessage());
+                    return;
+                }
+                mTimeServer.getMetrics().recordStartupStage(stage, startMillis, endMillis);
+            }
+        });
+
+        sequencer.setStage(ServerMetrics.STAGE_ADAPTER,
+                ServerMetrics.getStageName(ServerMetrics.STAGE_ADAPTER),
+                new StartupSequencer.Stage() {
+            @Override
+            public CompletableFuture<?> start() {
+                BluetoothAdapter bluetoothAdapter = mBluetoothManager.getAdapter();
+                if (bluetoothAdapter.isEnabled()) {
+                    mAdapterReady.complete(null);
+                } else {
+                    Log.d(TAG, "Bluetooth is currently disabled...enabling");
+                    bluetoothAdapter.enable();
+                }
+                // Completed by mBluetoothReceiver otherwise
+                return mAdapterReady;
+            }
+        });
+        sequencer.setStage(ServerMetrics.STAGE_UI,
+                ServerMetrics.getStageName(ServerMetrics.STAGE_UI),
+                new StartupSequencer.Stage() {
+            @Override
+            public CompletableFuture<?> start() {
+                // Nothing is rendered without a display
+                if (mHeadless) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                final CompletableFuture<Void> prepared = new CompletableFuture<>();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLocalTimeRenderer.prepare();
+                        mLocalTimeRenderer.update(System.currentTimeMillis());
+                        prepared.complete(null);
+                    }
+                });
+                return prepared;
+            }
+        });
+        sequencer.setStage(ServerMetrics.STAGE_SERVER,
+                ServerMetrics.getStageName(ServerMetrics.STAGE_SERVER),
+                new StartupSequencer.Stage() {
+            @Override
+            public CompletableFuture<?> start() {
+                if (!openServer()) {
+                    throw new IllegalStateException("Unable to create GATT server");
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+        }, ServerMetrics.STAGE_ADAPTER);
+        sequencer.setStage(ServerMetrics.STAGE_SERVICES,
+                ServerMetrics.getStageName(ServerMetrics.STAGE_SERVICES),
+                new StartupSequencer.Stage() {
+            @Override
+            public CompletableFuture<?> start() {
+                return registerServices().exceptionally(new Function<Throwable, Void>() {
+                    @Override
+                    public Void apply(Throwable error) {
+                        if (error instanceof CancellationException) {
+                            throw (CancellationException) error;
+                        }
+                        // Already logged; advertise the services that were added
+                        return null;
+                    }
+                });
+            }
+        }, ServerMetrics.STAGE_SERVER);
+        sequencer.setStage(ServerMetrics.STAGE_ADVERTISING,
+                ServerMetrics.getStageName(ServerMetrics.STAGE_ADVERTISING),
+                new StartupSequencer.Stage() {
+            @Override
+            public CompletableFuture<?> start() {
+                startAdvertising();
+                return mFirstAdvertisement;
+            }
+        }, ServerMetrics.STAGE_SERVICES);
+
+        return sequencer;
     }
 
     @Override
     protected void onStart() {
         super.onStart();
-        // Register for system clock events
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(Intent.ACTION_TIME_TICK);
-        filter.addAction(Intent.ACTION_TIME_CHANGED);
-        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
-        registerReceiver(mTimeReceiver, filter);
+        // Nothing to refresh without a display
+        if (mHeadless) return;
+
+        // Register for minute ticks to refresh the local UI
+        registerReceiver(mTimeTickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
+        mLocalTimeRenderer.setEnabled(true);
+        mLocalTimeRenderer.update(System.currentTimeMillis());
     }
 
     @Override
     protected void onStop() {
         super.onStop();
-        unregisterReceiver(mTimeReceiver);
+        if (mHeadless) return;
+
+        unregisterReceiver(mTimeTickReceiver);
+        mLocalTimeRenderer.setEnabled(false);
     }
 
     @Override
@@ -117,6 +329,66 @@ public class GattServerActivity extends Activity {
         }
 
         unregisterReceiver(mBluetoothReceiver);
+        unregisterReceiver(mTimeReceiver);
+        mTimeServer.shutdown();
+        mAdvertisingController.shutdown();
+        Log.d(TAG, "Advertising starts: " + mAdvertisingController.getStartCount()
+                + ", failures: " + mAdvertisingController.getFailureCount()
+                + ", retries: " + mAdvertisingController.getRetryCount()
+                + ", mode changes: " + mAdvertisingController.getModeChangeCount());
+        Log.d(TAG, "UI renders: " + mLocalTimeRenderer.getRenderCount()
+                + " of " + mLocalTimeRenderer.getRequestCount() + " requests"
+                + ", avg: " + mLocalTimeRenderer.getAverageRenderNanos() / 1000 + "us"
+                + ", max: " + mLocalTimeRenderer.getMaxRenderNanos() / 1000 + "us"
+                + ", formatter builds: " + mLocalTimeRenderer.getFormatBuildCount()
+                + " at " + mLocalTimeRenderer.getAverageFormatNanos() / 1000 + "us");
+        Log.d(TAG, getTickCostSummary());
+    }
+
+    /**
+     * Return the main thread time per local UI update, against the
+     * estimated cost of formatting each one from scratch.
+     */
+    private String getTickCostSummary() {
+        long tickNanos = mLocalTimeRenderer.getAverageTickNanos();
+        long uncachedNanos = mLocalTimeRenderer.getUncachedTickNanos();
+        return "UI per tick: " + tickNanos / 1000 + "us"
+                + ", uncached estimate: " + uncachedNanos / 1000 + "us"
+                + ", saved: " + (uncachedNanos - tickNanos) / 1000 + "us";
+    }
+
+    /**
+     * Dump the server metrics and event log, e.g. with
+     * {@code adb shell dumpsys activity com.example.androidthings.gattserver}.
+     * Passing the arguments {@code level <V|D|I|W|E>} changes the lowest
+     * level recorded instead.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+
+        if (args != null && args.length == 2 && args[0].equals("level")) {
+            int level = "??VDIWE".indexOf(args[1]);
+            if (level < EventLog.VERBOSE) {
+                writer.println(prefix + "Unknown level " + args[1]);
+            } else {
+                mTimeServer.getEventLog().setLevel(level);
+                writer.println(prefix + "Event log level set to " + args[1]);
+            }
+            return;
+        }
+        writer.println(prefix + "Startup (ms since process start): "
+                + mStartupSequencer.getTimeline());
+        ServerMetrics metrics = mTimeServer.getMetrics();
+        for (int op = 0; op < ServerMetrics.OP_COUNT; op++) {
+            LatencyHistogram latencies = metrics.getLatencies(op);
+            writer.println(prefix + ServerMetrics.getOperationName(op)
+                    + " count: " + latencies.getCount()
+                    + ", avg: " + latencies.getAverageNanos() / 1000 + "us"
+                    + ", max: " + latencies.getMaxNanos() / 1000 + "us");
+        }
+        writer.println(prefix + getTickCostSummary());
+        mTimeServer.getEventLog().dump(prefix, writer);
     }
 
     /**
@@ -141,27 +413,47 @@ public class GattServerActivity extends Activity {
 
     /**
      * Listens for system time changes and triggers a notification to
-     * Bluetooth subscribers.
+     * Bluetooth subscribers. Registered for the lifetime of the Activity
+     * so adjustments are reported even while it is stopped.
      */
     private BroadcastReceiver mTimeReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            long now = System.currentTimeMillis();
             byte adjustReason;
+            long delta = 0;
             switch (intent.getAction()) {
                 case Intent.ACTION_TIME_CHANGED:
                     adjustReason = TimeProfile.ADJUST_MANUAL;
+                    // Elapsed realtime is unaffected, so the step shows in the offset
+                    long clockOffset = now - SystemClock.elapsedRealtime();
+                    delta = clockOffset - mClockOffset;
+                    mClockOffset = clockOffset;
                     break;
                 case Intent.ACTION_TIMEZONE_CHANGED:
                     adjustReason = TimeProfile.ADJUST_TIMEZONE;
+                    TimeZone timeZone = TimeZone.getDefault();
+                    delta = timeZone.getOffset(now) - mTimeZone.getOffset(now);
+                    mTimeZone = timeZone;
                     break;
                 default:
-                case Intent.ACTION_TIME_TICK:
                     adjustReason = TimeProfile.ADJUST_NONE;
                     break;
             }
-            long now = System.currentTimeMillis();
-            notifyRegisteredDevices(now, adjustReason);
-            updateLocalUi(now);
+            mTimeServer.onTimeChanged(now, adjustReason, delta);
+            // Zone and 12/24-hour setting changes are baked into the formatters
+            mLocalTimeRenderer.invalidateFormats();
+            mLocalTimeRenderer.update(now);
+        }
+    };
+
+    /**
+     * Refreshes the local UI once a minute while the Activity is visible.
+     */
+    private BroadcastReceiver mTimeTickReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mLocalTimeRenderer.update(System.currentTimeMillis());
         }
     };
 
@@ -176,8 +468,11 @@ public class GattServerActivity extends Activity {
 
             switch (state) {
                 case BluetoothAdapter.STATE_ON:
-                    startAdvertising();
-                    startServer();
+                    // The first time, the startup stages take over
+                    if (!mAdapterReady.complete(null)) {
+                        startServer();
+                        startAdvertising();
+                    }
                     break;
                 case BluetoothAdapter.STATE_OFF:
                     stopServer();
@@ -192,218 +487,83 @@ public class GattServerActivity extends Activity {
 
     /**
      * Begin advertising over Bluetooth that this device is connectable
-     * and supports the Current Time Service.
+     * and supports the Current Time Service. The advertising mode then
+     * follows the server load.
      */
     private void startAdvertising() {
-        BluetoothAdapter bluetoothAdapter = mBluetoothManager.getAdapter();
-        mBluetoothLeAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
-        if (mBluetoothLeAdvertiser == null) {
-            Log.w(TAG, "Failed to create advertiser");
-            return;
-        }
-
-        AdvertiseSettings settings = new AdvertiseSettings.Builder()
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED)
-                .setConnectable(true)
-                .setTimeout(0)
-                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
-                .build();
-
-        AdvertiseData data = new AdvertiseData.Builder()
-                .setIncludeDeviceName(true)
-                .setIncludeTxPowerLevel(false)
-                .addServiceUuid(new ParcelUuid(TimeProfile.TIME_SERVICE))
-                .build();
-
-        mBluetoothLeAdvertiser
-                .startAdvertising(settings, data, mAdvertiseCallback);
+        mAdvertisingController.start();
     }
 
     /**
      * Stop Bluetooth advertisements.
      */
     private void stopAdvertising() {
-        if (mBluetoothLeAdvertiser == null) return;
-
-        mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
+        mAdvertisingController.stop();
     }
 
     /**
      * Initialize the GATT server instance with the services/characteristics
-     * from the Time Profile.
+     * declared in the service registry.
      */
     private void startServer() {
-        mBluetoothGattServer = mBluetoothManager.openGattServer(this, mGattServerCallback);
-        if (mBluetoothGattServer == null) {
-            Log.w(TAG, "Unable to create GATT server");
-            return;
-        }
-
-        mBluetoothGattServer.addService(TimeProfile.createTimeService());
+        if (!openServer()) return;
 
+        registerServices();
         // Initialize the local UI
-        updateLocalUi(System.currentTimeMillis());
+        mLocalTimeRenderer.update(System.currentTimeMillis());
     }
 
     /**
-     * Shut down the GATT server.
+     * Open the GATT server and start serving time. Stored subscriptions
+     * are loaded first, so bonded devices get them from their first
+     * connection on.
+     * @return true if the server was opened.
      */
-    private void stopServer() {
-        if (mBluetoothGattServer == null) return;
+    private boolean openServer() {
+        int restored = mSubscriptionStore.load();
+        Log.d(TAG, "Loaded " + restored + " stored subscriptions in "
+                + mSubscriptionStore.getLoadNanos() / 1000 + "us");
 
-        mBluetoothGattServer.close();
-    }
-
-    /**
-     * Callback to receive information about the advertisement process.
-     */
-    private AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
-        @Override
-        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-            Log.i(TAG, "LE Advertise Started.");
-        }
-
-        @Override
-        public void onStartFailure(int errorCode) {
-            Log.w(TAG, "LE Advertise Failed: "+errorCode);
-        }
-    };
-
-    /**
-     * Send a time service notification to any devices that are subscribed
-     * to the characteristic.
-     */
-    private void notifyRegisteredDevices(long timestamp, byte adjustReason) {
-        if (mRegisteredDevices.isEmpty()) {
-            Log.i(TAG, "No subscribers registered");
-            return;
-        }
-        byte[] exactTime = TimeProfile.getExactTime(timestamp, adjustReason);
-
-        Log.i(TAG, "Sending update to " + mRegisteredDevices.size() + " subscribers");
-        for (BluetoothDevice device : mRegisteredDevices) {
-            BluetoothGattCharacteristic timeCharacteristic = mBluetoothGattServer
-                    .getService(TimeProfile.TIME_SERVICE)
-                    .getCharacteristic(TimeProfile.CURRENT_TIME);
-            timeCharacteristic.setValue(exactTime);
-            mBluetoothGattServer.notifyCharacteristicChanged(device, timeCharacteristic, false);
+        if (!mGattTransport.open(this, mTimeServer)) {
+            Log.w(TAG, "Unable to create GATT server");
+            return false;
         }
+        mTimeServer.start();
+        return true;
     }
 
     /**
-     * Update graphical UI on devices that support it with the current time.
+     * Add the declared services to the open GATT server.
+     * @return a future that completes once all services are live.
      */
-    private void updateLocalUi(long timestamp) {
-        Date date = new Date(timestamp);
-        String displayDate = DateFormat.getMediumDateFormat(this).format(date)
-                + "\n"
-                + DateFormat.getTimeFormat(this).format(date);
-        mLocalTimeView.setText(displayDate);
+    private CompletableFuture<Void> registerServices() {
+        CompletableFuture<Void> ready = mServiceRegistry.register();
+        ready.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                if (error instanceof CancellationException) return;
+
+                long millis = TimeUnit.NANOSECONDS.toMillis(
+                        mServiceRegistry.getTimeToReadyNanos());
+                if (error != null) {
+                    Log.w(TAG, error.getMessage() + " after " + millis + "ms");
+                    return;
+                }
+                mTimeServer.getEventLog().log(EventLog.INFO, EventLog.EVENT_SERVICES_READY,
+                        null, (int) millis);
+            }
+        });
+        return ready;
     }
 
     /**
-     * Callback to handle incoming requests to the GATT server.
-     * All read/write requests for characteristics and descriptors are handled here.
+     * Shut down the GATT server.
      */
-    private BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
-
-        @Override
-        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.i(TAG, "BluetoothDevice CONNECTED: " + device);
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.i(TAG, "BluetoothDevice DISCONNECTED: " + device);
-                //Remove device from any active subscriptions
-                mRegisteredDevices.remove(device);
-            }
-        }
-
-        @Override
-        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
-                                                BluetoothGattCharacteristic characteristic) {
-            long now = System.currentTimeMillis();
-            if (TimeProfile.CURRENT_TIME.equals(characteristic.getUuid())) {
-                Log.i(TAG, "Read CurrentTime");
-                mBluetoothGattServer.sendResponse(device,
-                        requestId,
-                        BluetoothGatt.GATT_SUCCESS,
-                        0,
-                        TimeProfile.getExactTime(now, TimeProfile.ADJUST_NONE));
-            } else if (TimeProfile.LOCAL_TIME_INFO.equals(characteristic.getUuid())) {
-                Log.i(TAG, "Read LocalTimeInfo");
-                mBluetoothGattServer.sendResponse(device,
-                        requestId,
-                        BluetoothGatt.GATT_SUCCESS,
-                        0,
-                        TimeProfile.getLocalTimeInfo(now));
-            } else {
-                // Invalid characteristic
-                Log.w(TAG, "Invalid Characteristic Read: " + characteristic.getUuid());
-                mBluetoothGattServer.sendResponse(device,
-                        requestId,
-                        BluetoothGatt.GATT_FAILURE,
-                        0,
-                        null);
-            }
-        }
-
-        @Override
-        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
-                                            BluetoothGattDescriptor descriptor) {
-            if (TimeProfile.CLIENT_CONFIG.equals(descriptor.getUuid())) {
-                Log.d(TAG, "Config descriptor read");
-                byte[] returnValue;
-                if (mRegisteredDevices.contains(device)) {
-                    returnValue = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
-                } else {
-                    returnValue = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
-                }
-                mBluetoothGattServer.sendResponse(device,
-                        requestId,
-                        BluetoothGatt.GATT_FAILURE,
-                        0,
-                        returnValue);
-            } else {
-                Log.w(TAG, "Unknown descriptor read request");
-                mBluetoothGattServer.sendResponse(device,
-                        requestId,
-                        BluetoothGatt.GATT_FAILURE,
-                        0,
-                        null);
-            }
-        }
-
-        @Override
-        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
-                                             BluetoothGattDescriptor descriptor,
-                                             boolean preparedWrite, boolean responseNeeded,
-                                             int offset, byte[] value) {
-            if (TimeProfile.CLIENT_CONFIG.equals(descriptor.getUuid())) {
-                if (Arrays.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, value)) {
-                    Log.d(TAG, "Subscribe device to notifications: " + device);
-                    mRegisteredDevices.add(device);
-                } else if (Arrays.equals(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, value)) {
-                    Log.d(TAG, "Unsubscribe device from notifications: " + device);
-                    mRegisteredDevices.remove(device);
-                }
+    private void stopServer() {
+        if (!mGattTransport.isOpen()) return;
 
-                if (responseNeeded) {
-                    mBluetoothGattServer.sendResponse(device,
-                            requestId,
-                            BluetoothGatt.GATT_SUCCESS,
-                            0,
-                            null);
-                }
-            } else {
-                Log.w(TAG, "Unknown descriptor write request");
-                if (responseNeeded) {
-                    mBluetoothGattServer.sendResponse(device,
-                            requestId,
-                            BluetoothGatt.GATT_FAILURE,
-                            0,
-                            null);
-                }
-            }
-        }
-    };
+        mServiceRegistry.cancel();
+        mTimeServer.stop();
+        mGattTransport.close();
+    }
 }
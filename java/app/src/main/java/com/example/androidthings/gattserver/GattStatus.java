@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+/**
+ * GATT status codes, mirroring the values in {@link android.bluetooth.BluetoothGatt}
+ * so the server logic can be exercised off-device.
+ */
+public final class GattStatus {
+    public static final int GATT_SUCCESS = 0;
+    public static final int GATT_READ_NOT_PERMITTED = 0x2;
+    public static final int GATT_WRITE_NOT_PERMITTED = 0x3;
+    public static final int GATT_REQUEST_NOT_SUPPORTED = 0x6;
+    public static final int GATT_INVALID_OFFSET = 0x7;
+    public static final int GATT_INVALID_ATTRIBUTE_LENGTH = 0xd;
+    /* ATT error codes, no BluetoothGatt equivalent */
+    public static final int GATT_PREPARE_QUEUE_FULL = 0x9;
+    public static final int GATT_INSUFFICIENT_RESOURCES = 0x11;
+    /* Common profile error, a required CCCD is not enabled */
+    public static final int GATT_CCCD_IMPROPERLY_CONFIGURED = 0xFD;
+    public static final int GATT_FAILURE = 0x101;
+
+    private GattStatus() {
+    }
+}
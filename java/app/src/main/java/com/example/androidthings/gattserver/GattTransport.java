@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.UUID;
+
+/**
+ * Link between the GATT server logic and the radio.
+ *
+ * The Android implementation wraps {@link android.bluetooth.BluetoothGattServer};
+ * other implementations let the server run without Bluetooth hardware,
+ * for example in a host-side simulator.
+ *
+ * @param <D> remote device type
+ */
+public interface GattTransport<D> {
+
+    /**
+     * Receives events from the transport. Calls may arrive on any thread.
+     */
+    interface Callback<D> {
+        void onConnectionStateChange(D device, boolean connected);
+
+        void onNotificationSent(D device, int status);
+
+        void onMtuChanged(D device, int mtu);
+
+        void onCharacteristicReadRequest(D device, int requestId, int offset,
+                                         UUID characteristic);
+
+        void onCharacteristicWriteRequest(D device, int requestId, UUID characteristic,
+                                          boolean preparedWrite, boolean responseNeeded,
+                                          int offset, byte[] value);
+
+        void onDescriptorReadRequest(D device, int requestId, int offset,
+                                     UUID characteristic, UUID descriptor);
+
+        void onDescriptorWriteRequest(D device, int requestId,
+                                      UUID characteristic, UUID descriptor,
+                                      boolean preparedWrite, boolean responseNeeded,
+                                      int offset, byte[] value);
+
+        void onExecuteWrite(D device, int requestId, boolean execute);
+    }
+
+    /**
+     * Send the response to a read or write request.
+     * The value array is only valid for the duration of the call.
+     */
+    void sendResponse(D device, int requestId, int status, int offset, byte[] value);
+
+    /**
+     * Send a notification or indication of a characteristic value.
+     * The same value array may be sent to every subscriber of a fan-out,
+     * and possibly from several threads at once, so it must be treated
+     * as immutable.
+     * @param confirm true to send an indication, which the device confirms.
+     * @return true if the notification was accepted, in which case a
+     *         matching {@link Callback#onNotificationSent(Object, int)} follows,
+     *         for an indication once the confirmation arrives.
+     */
+    boolean notifyCharacteristicChanged(D device, UUID characteristic, byte[] value,
+                                        boolean confirm);
+
+    /**
+     * Disconnect a remote device.
+     */
+    void cancelConnection(D device);
+}
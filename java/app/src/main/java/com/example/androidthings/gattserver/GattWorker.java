@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded worker that takes GATT callback work off the binder thread.
+ *
+ * Work is spread over a fixed number of single-threaded lanes, and every
+ * job for a given device key lands on the same lane, so jobs for one
+ * device run in submission order. Each lane admits a bounded number of
+ * waiting jobs; when it is full the job is refused and
+ * {@link Job#onRejected()} is called on the submitting thread. Refused
+ * jobs are never run inline, which would put them ahead of the device's
+ * queued jobs. State events that must not be lost are queued with
+ * {@link #executeEvent}, which ignores the bound but keeps their order
+ * relative to the device's other jobs.
+ */
+public class GattWorker {
+
+    /**
+     * Unit of work submitted to the worker.
+     */
+    public static abstract class Job implements Runnable {
+        long enqueuedAt;
+
+        /**
+         * Called on the submitting thread instead of {@link #run()} when
+         * the job is refused. Requests should answer the peer here.
+         */
+        public void onRejected() {
+        }
+    }
+
+    private final ThreadPoolExecutor[] mLanes;
+    /* Bounded jobs waiting on each lane */
+    private final AtomicInteger[] mPending;
+    private final int mQueueCapacity;
+
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+    private final AtomicLong mMaxQueueDepth = new AtomicLong();
+
+    /**
+     * @param name Thread name prefix.
+     * @param lanes Number of worker threads.
+     * @param queueCapacity Jobs allowed to wait on each lane.
+     */
+    public GattWorker(final String name, int lanes, int queueCapacity) {
+        mQueueCapacity = queueCapacity;
+        mLanes = new ThreadPoolExecutor[lanes];
+        mPending = new AtomicInteger[lanes];
+        for (int i = 0; i < lanes; i++) {
+            final String threadName = name + "-" + i;
+            mPending[i] = new AtomicInteger();
+            mLanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, threadName);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Queue a job on the lane owned by the given device key.
+     */
+    public void execute(Object key, final Job job) {
+        mSubmitted.incrementAndGet();
+        int index = laneOf(key);
+        ThreadPoolExecutor lane = mLanes[index];
+        final AtomicInteger pending = mPending[index];
+
+        job.enqueuedAt = System.nanoTime();
+        if (pending.incrementAndGet() > mQueueCapacity) {
+            pending.decrementAndGet();
+            reject(job);
+            return;
+        }
+        try {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pending.decrementAndGet();
+                    runJob(job);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            reject(job);
+            return;
+        }
+
+        updateMax(mMaxQueueDepth, lane.getQueue().size());
+    }
+
+    /**
+     * Queue a state event on the lane owned by the given device key.
+     * Events are never refused for lack of space, and run in order with
+     * the device's requests on the lane's thread. Events submitted after
+     * {@link #shutdown()} are dropped.
+     */
+    public void executeEvent(Object key, final Job job) {
+        mSubmitted.incrementAndGet();
+        ThreadPoolExecutor lane = mLanes[laneOf(key)];
+
+        job.enqueuedAt = System.nanoTime();
+        try {
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runJob(job);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mRejected.incrementAndGet();
+            return;
+        }
+
+        updateMax(mMaxQueueDepth, lane.getQueue().size());
+    }
+
+    private int laneOf(Object key) {
+        return (key.hashCode() & 0x7FFFFFFF) % mLanes.length;
+    }
+
+    private void reject(Job job) {
+        mRejected.incrementAndGet();
+        job.onRejected();
+    }
+
+    /**
+     * Stop accepting jobs. Queued jobs are still run.
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : mLanes) {
+            lane.shutdown();
+        }
+    }
+
+    private void runJob(Job job) {
+        long wait = System.nanoTime() - job.enqueuedAt;
+        mTotalWaitNanos.addAndGet(wait);
+        updateMax(mMaxWaitNanos, wait);
+
+        job.run();
+        mCompleted.incrementAndGet();
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) return;
+        }
+    }
+
+    /**
+     * Return the number of jobs currently waiting across all lanes.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor lane : mLanes) {
+            depth += lane.getQueue().size();
+        }
+        return depth;
+    }
+
+    public long getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmitted.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    /**
+     * Return the average time jobs spent queued, in nanoseconds.
+     */
+    public long getAverageWaitNanos() {
+        long completed = mCompleted.get();
+        return (completed == 0) ? 0 : mTotalWaitNanos.get() / completed;
+    }
+
+    public long getMaxWaitNanos() {
+        return mMaxWaitNanos.get();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket latency histogram.
+ *
+ * Bucket boundaries are powers of two in microseconds, so recording is a
+ * couple of atomic increments with no allocation or locking. Percentiles
+ * are reported as the upper bound of the bucket holding the requested
+ * rank, i.e. to within a factor of two.
+ */
+public class LatencyHistogram {
+
+    /* Bucket i holds samples below 2^i microseconds; the last is unbounded */
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+
+        mBuckets.incrementAndGet(bucketFor(nanos));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get())) {
+            if (mMaxNanos.compareAndSet(max, nanos)) break;
+        }
+    }
+
+    private static int bucketFor(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getAverageNanos() {
+        long count = mCount.get();
+        return (count == 0) ? 0 : mTotalNanos.get() / count;
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * Return an upper bound of the given percentile, in nanoseconds.
+     * @param percentile Percentile between 0 and 100.
+     */
+    public long getPercentileNanos(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // Never report more than the largest sample seen
+                return Math.min((1L << i) * 1000, mMaxNanos.get());
+            }
+        }
+        return mMaxNanos.get();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import android.content.Context;
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import java.util.Date;
+
+/**
+ * Renders the local time into a {@link TextView} on the main thread.
+ *
+ * Requests are coalesced so the view is updated at most once per frame
+ * with the latest timestamp. The date and time formatters are cached
+ * and only rebuilt after {@link #invalidateFormats()}, e.g. on a locale
+ * or time zone change. A disabled renderer, such as on a board without
+ * a display, ignores requests entirely.
+ *
+ * All methods must be called on the main thread, except the statistics
+ * getters, which may be called from any thread, e.g. while dumping.
+ */
+public class LocalTimeRenderer {
+
+    private final Context mContext;
+    private final TextView mView;
+    private final Choreographer mChoreographer;
+
+    private java.text.DateFormat mDateFormat;
+    private java.text.DateFormat mTimeFormat;
+    private final Date mDate = new Date();
+    private String mText;
+
+    private boolean mEnabled = true;
+    private boolean mFramePending;
+    private long mPendingTimestamp;
+
+    /* Statistics, written on the main thread only */
+    private volatile long mRequests;
+    private volatile long mRenders;
+    private volatile long mTotalRenderNanos;
+    private volatile long mMaxRenderNanos;
+    private volatile long mFormatBuilds;
+    private volatile long mTotalFormatNanos;
+    /* Part of mTotalRenderNanos spent building formatters */
+    private volatile long mRenderFormatNanos;
+
+    public LocalTimeRenderer(Context context, TextView view) {
+        mContext = context;
+        mView = view;
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Enable or disable rendering. Disabling drops any pending update.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled && mFramePending) {
+            mChoreographer.removeFrameCallback(mFrameCallback);
+            mFramePending = false;
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Rebuild the formatters on the next render, picking up the current
+     * locale, time zone and 12/24-hour setting.
+     */
+    public void invalidateFormats() {
+        mDateFormat = null;
+        mTimeFormat = null;
+        mText = null;
+    }
+
+    /**
+     * Build the formatters ahead of the first render, so the first frame
+     * does not pay for it.
+     */
+    public void prepare() {
+        if (mDateFormat != null) return;
+
+        long start = System.nanoTime();
+        mDateFormat = android.text.format.DateFormat.getMediumDateFormat(mContext);
+        mTimeFormat = android.text.format.DateFormat.getTimeFormat(mContext);
+        mFormatBuilds++;
+        mTotalFormatNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Show the given time on the next frame.
+     */
+    public void update(long timestamp) {
+        if (!mEnabled) return;
+
+        mRequests++;
+        mPendingTimestamp = timestamp;
+        if (!mFramePending) {
+            mFramePending = true;
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+    }
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFramePending = false;
+            render(mPendingTimestamp);
+        }
+    };
+
+    private void render(long timestamp) {
+        long start = System.nanoTime();
+        long formatNanos = mTotalFormatNanos;
+        prepare();
+        formatNanos = mTotalFormatNanos - formatNanos;
+
+        mDate.setTime(timestamp);
+        String text = mDateFormat.format(mDate) + "\n" + mTimeFormat.format(mDate);
+        // Skip relayout when the displayed minute has not changed
+        if (!text.equals(mText)) {
+            mText = text;
+            mView.setText(text);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        mRenders++;
+        mTotalRenderNanos += elapsed;
+        mRenderFormatNanos += formatNanos;
+        mMaxRenderNanos = Math.max(mMaxRenderNanos, elapsed);
+    }
+
+    /**
+     * Return the number of update requests received while enabled.
+     */
+    public long getRequestCount() {
+        return mRequests;
+    }
+
+    /**
+     * Return the number of frames rendered. Requests beyond this
+     * number were coalesced.
+     */
+    public long getRenderCount() {
+        return mRenders;
+    }
+
+    /**
+     * Return the average main thread time per render, in nanoseconds.
+     */
+    public long getAverageRenderNanos() {
+        return (mRenders == 0) ? 0 : mTotalRenderNanos / mRenders;
+    }
+
+    public long getMaxRenderNanos() {
+        return mMaxRenderNanos;
+    }
+
+    /**
+     * Return the average time taken to build the formatters, in
+     * nanoseconds.
+     */
+    public long getAverageFormatNanos() {
+        return (mFormatBuilds == 0) ? 0 : mTotalFormatNanos / mFormatBuilds;
+    }
+
+    public long getFormatBuildCount() {
+        return mFormatBuilds;
+    }
+
+    /**
+     * Return the average main thread time per update request, in
+     * nanoseconds, including coalesced requests that rendered nothing.
+     */
+    public long getAverageTickNanos() {
+        long requests = mRequests;
+        return (requests == 0) ? 0 : mTotalRenderNanos / requests;
+    }
+
+    /**
+     * Return an estimate of the main thread time per update request
+     * without coalescing or cached formatters, in nanoseconds: a formatter
+     * build plus a render that did not build one. It is a lower bound, as
+     * renders that skip an unchanged text are included.
+     */
+    public long getUncachedTickNanos() {
+        long renders = mRenders;
+        if (renders == 0) return 0;
+        return getAverageFormatNanos() + (mTotalRenderNanos - mRenderFormatNanos) / renders;
+    }
+}
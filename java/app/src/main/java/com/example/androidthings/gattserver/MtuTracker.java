@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the ATT_MTU negotiated with each connected device.
+ *
+ * @param <D> remote device type
+ */
+public class MtuTracker<D> {
+
+    /* ATT_MTU in effect until the client negotiates a larger one */
+    public static final int DEFAULT_MTU = 23;
+    /* Opcode and attribute handle preceding a notification value */
+    private static final int NOTIFICATION_HEADER_SIZE = 3;
+
+    private final ConcurrentHashMap<D, Integer> mMtus = new ConcurrentHashMap<>();
+
+    public void onMtuChanged(D device, int mtu) {
+        mMtus.put(device, mtu);
+    }
+
+    /**
+     * Return the ATT_MTU for the device, or {@link #DEFAULT_MTU}.
+     */
+    public int getMtu(D device) {
+        Integer mtu = mMtus.get(device);
+        return (mtu == null) ? DEFAULT_MTU : mtu;
+    }
+
+    /**
+     * Return the largest value that fits in a single notification
+     * to the device.
+     */
+    public int getMaxNotificationLength(D device) {
+        return getMtu(device) - NOTIFICATION_HEADER_SIZE;
+    }
+
+    public void removeDevice(D device) {
+        mMtus.remove(device);
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flow-controlled notification fan-out.
+ *
+ * Each device has its own outbound queue, and only one notification per
+ * device is handed to the stack at a time. The next one is released when
+ * the stack reports {@link #onNotificationSent(Object, int)} for that device,
+ * so a large subscriber set never overflows the stack's own queue.
+ *
+ * Indications use the same pipeline, which also gives them the single
+ * outstanding transaction per device that ATT requires; the completion
+ * callback is then the client's confirmation. An indication that is not
+ * confirmed within the timeout is reported with {@link #STATUS_TIMEOUT}.
+ * As with an ATT transaction timeout, the link is then unusable: nothing
+ * more is sent to the device, and a late confirmation is ignored, until
+ * the device is removed. The round trip of each confirmation is recorded
+ * per device.
+ *
+ * A plain notification whose completion never arrives within the send
+ * timeout is reported as {@link GattStatus#GATT_FAILURE} and the next one
+ * is sent, so a lost callback does not stall the device's queue.
+ *
+ * Devices must be added with {@link #addDevice(Object)} before anything is
+ * queued for them. Notifications for a device that was never added, or
+ * has been removed, are dropped, so a fan-out racing a disconnect cannot
+ * leave a queue behind for a device that is gone.
+ *
+ * With a {@link Merger}, a value queued for a characteristic that still
+ * has an unsent value queued for the device replaces that value instead
+ * of queueing behind it, so a slow device gets the latest value rather
+ * than a backlog of stale ones.
+ *
+ * @param <D> remote device type
+ */
+public class NotificationDispatcher<D> {
+
+    /* Delivery status reported when a queued notification is discarded */
+    public static final int STATUS_DROPPED = -1;
+    /* Delivery status reported when an indication is never confirmed */
+    public static final int STATUS_TIMEOUT = -2;
+
+    /**
+     * Hands a single notification to the underlying GATT server.
+     */
+    public interface Sender<D> {
+        /**
+         * @param confirm true to send an indication rather than a notification.
+         * @return true if the notification was accepted, in which case a
+         *         matching {@link #onNotificationSent(Object, int)} must follow.
+         */
+        boolean send(D device, UUID characteristic, byte[] value, boolean confirm);
+    }
+
+    /**
+     * Receives the outcome of every notification queued for a device.
+     */
+    public interface Listener<D> {
+        void onDeliveryResult(D device, UUID characteristic, int status);
+
+        /**
+         * Called when the device confirms an indication.
+         * @param roundTripNanos Time since the indication was last sent.
+         */
+        void onIndicationConfirmed(D device, long roundTripNanos);
+    }
+
+    /**
+     * Combines a queued value with a newer one for the same characteristic.
+     */
+    public interface Merger {
+        /**
+         * @return the value to send in place of both, or null to queue
+         *         the latest value behind the queued one.
+         */
+        byte[] merge(UUID characteristic, byte[] queued, byte[] latest);
+    }
+
+    private static class Notification {
+        final UUID characteristic;
+        /* Replaced by merges until the notification is sent */
+        byte[] value;
+        final boolean confirm;
+        /* Time the notification was handed to the stack, guarded by the queue */
+        long sentNanos;
+
+        Notification(UUID characteristic, byte[] value, boolean confirm) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.confirm = confirm;
+        }
+    }
+
+    /* Per-device queue state, guarded by its own monitor */
+    private static class DeviceQueue {
+        final ArrayDeque<Notification> pending = new ArrayDeque<>();
+        Notification inFlight;
+        /* Set once an indication times out; nothing more is sent */
+        boolean timedOut;
+        /* Set once the device is removed; nothing more is queued */
+        boolean removed;
+        final LatencyHistogram confirmations = new LatencyHistogram();
+    }
+
+    private final Sender<D> mSender;
+    private final Listener<D> mListener;
+    private final int mMaxQueueDepth;
+    private final long mConfirmTimeoutNanos;
+    private final long mSendTimeoutNanos;
+    private final ConcurrentHashMap<D, DeviceQueue> mQueues = new ConcurrentHashMap<>();
+
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mTimedOut = new AtomicLong();
+    private final AtomicLong mMerged = new AtomicLong();
+    private volatile Merger mMerger;
+
+    /**
+     * @param maxQueueDepth Pending notifications allowed per device before
+     *                      the oldest is dropped.
+     * @param confirmTimeoutMillis Time to wait for an indication to be
+     *                             confirmed before giving up on the device.
+     * @param sendTimeoutMillis Time to wait for the completion of a plain
+     *                          notification before moving on to the next.
+     */
+    public NotificationDispatcher(Sender<D> sender, Listener<D> listener, int maxQueueDepth,
+                                  long confirmTimeoutMillis, long sendTimeoutMillis) {
+        mSender = sender;
+        mListener = listener;
+        mMaxQueueDepth = maxQueueDepth;
+        mConfirmTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(confirmTimeoutMillis);
+        mSendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+    }
+
+    public void setMerger(Merger merger) {
+        mMerger = merger;
+    }
+
+    /**
+     * Start accepting notifications for a device, e.g. after it connects.
+     * Does nothing if the device was already added.
+     */
+    public void addDevice(D device) {
+        if (!mQueues.containsKey(device)) {
+            mQueues.putIfAbsent(device, new DeviceQueue());
+        }
+    }
+
+    /**
+     * Queue a notification for the device, sending it right away if
+     * nothing is outstanding.
+     */
+    public void enqueue(D device, UUID characteristic, byte[] value) {
+        enqueue(device, characteristic, value, false);
+    }
+
+    /**
+     * Queue a notification, or an indication if confirm is true, for the
+     * device, sending it right away if nothing is outstanding.
+     */
+    public void enqueue(D device, UUID characteristic, byte[] value, boolean confirm) {
+        DeviceQueue queue = mQueues.get(device);
+        if (queue == null) {
+            mDropped.incrementAndGet();
+            return;
+        }
+
+        Notification dropped = null;
+        Merger merger = mMerger;
+        synchronized (queue) {
+            if (queue.timedOut || queue.removed) {
+                mDropped.incrementAndGet();
+                return;
+            }
+            if (merger != null) {
+                for (Notification queued : queue.pending) {
+                    if (queued.confirm != confirm
+                            || !queued.characteristic.equals(characteristic)) {
+                        continue;
+                    }
+                    byte[] merged = merger.merge(characteristic, queued.value, value);
+                    if (merged != null) {
+                        queued.value = merged;
+                        mMerged.incrementAndGet();
+                        return;
+                    }
+                }
+            }
+            if (queue.pending.size() >= mMaxQueueDepth) {
+                dropped = queue.pending.poll();
+            }
+            queue.pending.add(new Notification(characteristic, value, confirm));
+        }
+        if (dropped != null) {
+            report(device, dropped, STATUS_DROPPED);
+        }
+
+        pump(device, queue);
+    }
+
+    /**
+     * Completion callback from the stack for the outstanding notification.
+     */
+    public void onNotificationSent(D device, int status) {
+        DeviceQueue queue = mQueues.get(device);
+        if (queue == null) return;
+
+        Notification sent;
+        long roundTripNanos = 0;
+        synchronized (queue) {
+            sent = queue.inFlight;
+            queue.inFlight = null;
+            if (sent != null && sent.confirm && status == GattStatus.GATT_SUCCESS) {
+                roundTripNanos = System.nanoTime() - sent.sentNanos;
+                queue.confirmations.record(roundTripNanos);
+            }
+        }
+        if (sent != null) {
+            if (roundTripNanos != 0) {
+                mListener.onIndicationConfirmed(device, roundTripNanos);
+            }
+            report(device, sent, status);
+        }
+
+        pump(device, queue);
+    }
+
+    /**
+     * Give up on devices whose indication has waited longer than the
+     * timeout for its confirmation. The indication is reported with
+     * {@link #STATUS_TIMEOUT} and anything still queued for the device is
+     * dropped. A plain notification that has waited longer than the send
+     * timeout for its completion is reported as failed and the next one
+     * is sent. Called periodically, so the timeouts are only as precise as
+     * the call period.
+     */
+    public void checkTimeouts() {
+        long now = System.nanoTime();
+        for (Map.Entry<D, DeviceQueue> entry : mQueues.entrySet()) {
+            D device = entry.getKey();
+            DeviceQueue queue = entry.getValue();
+            Notification expired;
+            Notification[] discarded = null;
+            synchronized (queue) {
+                expired = queue.inFlight;
+                if (expired == null || now - expired.sentNanos
+                        < (expired.confirm ? mConfirmTimeoutNanos : mSendTimeoutNanos)) {
+                    continue;
+                }
+                queue.inFlight = null;
+                if (expired.confirm) {
+                    queue.timedOut = true;
+                    discarded = queue.pending.toArray(new Notification[queue.pending.size()]);
+                    queue.pending.clear();
+                }
+            }
+
+            if (discarded == null) {
+                report(device, expired, GattStatus.GATT_FAILURE);
+                pump(device, queue);
+                continue;
+            }
+            report(device, expired, STATUS_TIMEOUT);
+            for (Notification notification : discarded) {
+                report(device, notification, STATUS_DROPPED);
+            }
+        }
+    }
+
+    /**
+     * Return the confirmation round trips of a device,
+     * or null if it has not been added.
+     */
+    public LatencyHistogram getConfirmationLatencies(D device) {
+        DeviceQueue queue = mQueues.get(device);
+        return (queue == null) ? null : queue.confirmations;
+    }
+
+    /**
+     * Discard all state for a device, e.g. after it disconnects.
+     */
+    public void removeDevice(D device) {
+        DeviceQueue queue = mQueues.remove(device);
+        if (queue == null) return;
+
+        synchronized (queue) {
+            queue.removed = true;
+            mDropped.addAndGet(queue.pending.size());
+            queue.pending.clear();
+            queue.inFlight = null;
+        }
+    }
+
+    /**
+     * Send queued notifications until one is accepted by the stack
+     * or the queue is empty.
+     */
+    private void pump(D device, DeviceQueue queue) {
+        while (true) {
+            Notification next;
+            synchronized (queue) {
+                if (queue.inFlight != null || queue.timedOut || queue.removed) return;
+                next = queue.pending.poll();
+                if (next == null) return;
+                queue.inFlight = next;
+                next.sentNanos = System.nanoTime();
+            }
+
+            if (send(device, queue, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hand the in-flight notification to the stack.
+     * @return true if it was accepted, otherwise it has been reported as failed.
+     */
+    private boolean send(D device, DeviceQueue queue, Notification notification) {
+        if (mSender.send(device, notification.characteristic, notification.value,
+                notification.confirm)) {
+            return true;
+        }
+
+        // Rejected outright, no completion callback will follow
+        synchronized (queue) {
+            if (queue.inFlight == notification) {
+                queue.inFlight = null;
+            }
+        }
+        report(device, notification, GattStatus.GATT_FAILURE);
+        return false;
+    }
+
+    private void report(D device, Notification notification, int status) {
+        if (status == GattStatus.GATT_SUCCESS) {
+            mDelivered.incrementAndGet();
+        } else if (status == STATUS_DROPPED) {
+            mDropped.incrementAndGet();
+        } else if (status == STATUS_TIMEOUT) {
+            mTimedOut.incrementAndGet();
+        } else {
+            mFailed.incrementAndGet();
+        }
+        mListener.onDeliveryResult(device, notification.characteristic, status);
+    }
+
+    public long getDeliveredCount() {
+        return mDelivered.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Return the number of indications given up on for lack of a confirmation.
+     */
+    public long getTimedOutCount() {
+        return mTimedOut.get();
+    }
+
+    /**
+     * Return the number of values merged into one already queued,
+     * each saving a notification.
+     */
+    public long getMergedCount() {
+        return mMerged.get();
+    }
+}
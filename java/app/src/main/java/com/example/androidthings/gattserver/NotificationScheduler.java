@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodic tick source aligned to wall clock boundaries.
+ *
+ * Each tick is scheduled for the next multiple of the period in wall clock
+ * time, computed from the clock at the end of the previous tick rather
+ * than by adding the period to a timer, so scheduling delays do not
+ * accumulate into drift. The lateness of every tick relative to its
+ * scheduled instant is recorded as jitter.
+ */
+public class NotificationScheduler {
+
+    /* Common tick periods */
+    public static final long PERIOD_4_HZ = 250;
+    public static final long PERIOD_1_HZ = 1000;
+    public static final long PERIOD_PER_MINUTE = 60000;
+
+    /**
+     * Receives each tick on the scheduler thread.
+     */
+    public interface Listener {
+        void onTick(long timestamp);
+    }
+
+    private final long mPeriodMillis;
+    private final Listener mListener;
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mPending;
+    /* Wall clock boundary of the most recently scheduled tick */
+    private long mLastTarget = Long.MIN_VALUE;
+    /* Bumped to retire ticks scheduled before a stop or realign */
+    private int mGeneration;
+
+    private final AtomicLong mTicks = new AtomicLong();
+    private final AtomicLong mLastJitterNanos = new AtomicLong();
+    private final AtomicLong mMaxJitterNanos = new AtomicLong();
+    private final AtomicLong mTotalJitterNanos = new AtomicLong();
+
+    public NotificationScheduler(long periodMillis, Listener listener) {
+        mPeriodMillis = periodMillis;
+        mListener = listener;
+    }
+
+    /**
+     * Start ticking on a dedicated thread. Has no effect if already started.
+     */
+    public synchronized void start() {
+        if (mExecutor != null) return;
+
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "notification-scheduler");
+            }
+        });
+        scheduleNext();
+    }
+
+    /**
+     * Stop ticking. A tick already in progress is allowed to finish.
+     */
+    public synchronized void stop() {
+        if (mExecutor == null) return;
+
+        mExecutor.shutdownNow();
+        mGeneration++;
+        mExecutor = null;
+        mPending = null;
+        mLastTarget = Long.MIN_VALUE;
+    }
+
+    /**
+     * Re-align the next tick to the wall clock, e.g. after the system
+     * clock has been set.
+     */
+    public synchronized void realign() {
+        if (mExecutor == null) return;
+
+        if (mPending != null) {
+            mPending.cancel(false);
+        }
+        mLastTarget = Long.MIN_VALUE;
+        mGeneration++;
+        scheduleNext();
+    }
+
+    private synchronized void scheduleNext() {
+        if (mExecutor == null) return;
+
+        long now = System.currentTimeMillis();
+        long target = Math.floorDiv(now, mPeriodMillis) * mPeriodMillis + mPeriodMillis;
+        // A tick that fired marginally early must not repeat its boundary
+        if (target <= mLastTarget) {
+            target = mLastTarget + mPeriodMillis;
+        }
+        mLastTarget = target;
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(target - now);
+        final long deadline = System.nanoTime() + delayNanos;
+        final int generation = mGeneration;
+
+        mPending = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTick(deadline, generation);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void onTick(long deadline, int generation) {
+        long jitter = System.nanoTime() - deadline;
+        mTicks.incrementAndGet();
+        mLastJitterNanos.set(jitter);
+        mTotalJitterNanos.addAndGet(jitter);
+        long max;
+        while (jitter > (max = mMaxJitterNanos.get())) {
+            if (mMaxJitterNanos.compareAndSet(max, jitter)) break;
+        }
+
+        try {
+            mListener.onTick(System.currentTimeMillis());
+        } finally {
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    scheduleNext();
+                }
+            }
+        }
+    }
+
+    public long getPeriodMillis() {
+        return mPeriodMillis;
+    }
+
+    public long getTickCount() {
+        return mTicks.get();
+    }
+
+    /**
+     * Return how late the most recent tick fired, in nanoseconds.
+     */
+    public long getLastJitterNanos() {
+        return mLastJitterNanos.get();
+    }
+
+    public long getMaxJitterNanos() {
+        return mMaxJitterNanos.get();
+    }
+
+    public long getAverageJitterNanos() {
+        long ticks = mTicks.get();
+        return (ticks == 0) ? 0 : mTotalJitterNanos.get() / ticks;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms, event counters and startup timeline of the GATT server.
+ *
+ * The snapshot returned by {@link #encodeSnapshot()} is served by the
+ * diagnostics characteristic. All fields are little-endian unsigned
+ * 32-bit integers, saturating at their maximum, after a four byte header:
+ *
+ * <pre>
+ * uint8  version ({@link #SNAPSHOT_VERSION})
+ * uint8  number of counters (C)
+ * uint8  number of timed operations (O)
+ * uint8  number of startup stages (S)
+ * uint32 uptime in seconds
+ * uint32 counter[C]
+ * O times: uint32 count, average, p50, p90, p99, max (latencies in microseconds)
+ * S times: uint32 start, end (milliseconds since process start, 0xFFFFFFFF if not reached)
+ * </pre>
+ *
+ * Counters, operations and stages appear in the order of their constants below.
+ */
+public class ServerMetrics {
+
+    public static final int SNAPSHOT_VERSION = 3;
+
+    /* Timed operations */
+    public static final int OP_CHARACTERISTIC_READ = 0;
+    public static final int OP_CHARACTERISTIC_WRITE = 1;
+    public static final int OP_DESCRIPTOR_READ = 2;
+    public static final int OP_DESCRIPTOR_WRITE = 3;
+    public static final int OP_EXECUTE_WRITE = 4;
+    public static final int OP_CONNECTION_STATE = 5;
+    public static final int OP_NOTIFICATION_SENT = 6;
+    public static final int OP_MTU_CHANGED = 7;
+    /* Notification fan-out to all subscribers */
+    public static final int OP_NOTIFY = 8;
+    /* Round trip from sending an indication to its confirmation */
+    public static final int OP_INDICATION_CONFIRM = 9;
+    /* Lateness of each notification tick after its scheduled instant */
+    public static final int OP_TICK_LATENESS = 10;
+    public static final int OP_COUNT = 11;
+
+    /* Event counters */
+    public static final int COUNT_CONNECTIONS = 0;
+    public static final int COUNT_DISCONNECTIONS = 1;
+    public static final int COUNT_SUBSCRIPTIONS = 2;
+    public static final int COUNT_UNSUBSCRIPTIONS = 3;
+    /* Requests answered with an error status, including rejected requests */
+    public static final int COUNT_REQUEST_FAILURES = 4;
+    /* Notifications failed or dropped */
+    public static final int COUNT_NOTIFICATION_FAILURES = 5;
+    /* Connections cancelled by admission control */
+    public static final int COUNT_CONNECTIONS_REJECTED = 6;
+    public static final int COUNT_CONNECTIONS_EVICTED = 7;
+    /* Time changes reported together with an earlier one of their burst */
+    public static final int COUNT_TIME_CHANGES_COALESCED = 8;
+    /* Notifications replaced by a newer value while still queued */
+    public static final int COUNT_NOTIFICATIONS_MERGED = 9;
+    public static final int COUNTER_COUNT = 10;
+
+    /* Startup stages */
+    public static final int STAGE_ADAPTER = 0;
+    public static final int STAGE_UI = 1;
+    /* GATT server open */
+    public static final int STAGE_SERVER = 2;
+    /* All services added */
+    public static final int STAGE_SERVICES = 3;
+    /* First connectable advertisement */
+    public static final int STAGE_ADVERTISING = 4;
+    public static final int STAGE_COUNT = 5;
+
+    private static final String[] OP_NAMES = {
+            "Characteristic read", "Characteristic write", "Descriptor read",
+            "Descriptor write", "Execute write", "Connection state", "Notification sent",
+            "MTU changed", "Notify", "Indication confirm", "Tick lateness"
+    };
+    private static final String[] STAGE_NAMES = {
+            "adapter", "ui", "server", "services", "advertising"
+    };
+
+    private static final int HEADER_SIZE = 8;
+    private static final int OP_SIZE = 24;
+    private static final int STAGE_SIZE = 8;
+
+    private final long mStartMillis = System.currentTimeMillis();
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[OP_COUNT];
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+    /* Start and end of each stage, -1 until recorded */
+    private final AtomicLongArray mStages = new AtomicLongArray(STAGE_COUNT * 2);
+
+    public ServerMetrics() {
+        for (int i = 0; i < OP_COUNT; i++) {
+            mLatencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < STAGE_COUNT * 2; i++) {
+            mStages.set(i, -1);
+        }
+    }
+
+    /**
+     * Record the time taken by one operation.
+     * @param op One of the OP_ constants.
+     */
+    public void recordLatency(int op, long nanos) {
+        mLatencies[op].record(nanos);
+    }
+
+    /**
+     * @param counter One of the COUNT_ constants.
+     */
+    public void increment(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    public void add(int counter, long delta) {
+        mCounters.addAndGet(counter, delta);
+    }
+
+    /**
+     * Record when a startup stage ran, in milliseconds since process start.
+     * @param stage One of the STAGE_ constants.
+     */
+    public void recordStartupStage(int stage, long startMillis, long endMillis) {
+        mStages.set(stage * 2, startMillis);
+        mStages.set(stage * 2 + 1, endMillis);
+    }
+
+    public LatencyHistogram getLatencies(int op) {
+        return mLatencies[op];
+    }
+
+    public long getCount(int counter) {
+        return mCounters.get(counter);
+    }
+
+    public static String getOperationName(int op) {
+        return OP_NAMES[op];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * Return the current metrics in the snapshot format.
+     */
+    public byte[] encodeSnapshot() {
+        byte[] snapshot = new byte[HEADER_SIZE + COUNTER_COUNT * 4 + OP_COUNT * OP_SIZE
+                + STAGE_COUNT * STAGE_SIZE];
+        snapshot[0] = SNAPSHOT_VERSION;
+        snapshot[1] = COUNTER_COUNT;
+        snapshot[2] = OP_COUNT;
+        snapshot[3] = STAGE_COUNT;
+        int offset = putUint32(snapshot, 4,
+                (System.currentTimeMillis() - mStartMillis) / 1000);
+
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            offset = putUint32(snapshot, offset, mCounters.get(i));
+        }
+        for (LatencyHistogram latencies : mLatencies) {
+            offset = putUint32(snapshot, offset, latencies.getCount());
+            offset = putUint32(snapshot, offset, latencies.getAverageNanos() / 1000);
+            offset = putUint32(snapshot, offset, latencies.getPercentileNanos(50) / 1000);
+            offset = putUint32(snapshot, offset, latencies.getPercentileNanos(90) / 1000);
+            offset = putUint32(snapshot, offset, latencies.getPercentileNanos(99) / 1000);
+            offset = putUint32(snapshot, offset, latencies.getMaxNanos() / 1000);
+        }
+        for (int i = 0; i < STAGE_COUNT * 2; i++) {
+            long millis = mStages.get(i);
+            offset = putUint32(snapshot, offset, (millis < 0) ? 0xFFFFFFFFL : millis);
+        }
+        return snapshot;
+    }
+
+    private static int putUint32(byte[] buffer, int offset, long value) {
+        int clamped = (int) Math.min(Math.max(value, 0), 0xFFFFFFFFL);
+        buffer[offset] = (byte) clamped;
+        buffer[offset + 1] = (byte) (clamped >> 8);
+        buffer[offset + 2] = (byte) (clamped >> 16);
+        buffer[offset + 3] = (byte) (clamped >> 24);
+        return offset + 4;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Declared set of GATT services published by the server.
+ *
+ * Services are declared once as factories and created afresh for each
+ * registration. The stack drops a service added while the previous
+ * addition is still in progress, so registration adds one service at a
+ * time and issues the next from onServiceAdded(). The future returned by
+ * {@link #register()} completes once every service is live.
+ */
+public class ServiceRegistry implements AndroidGattTransport.ServiceListener {
+    private static final String TAG = ServiceRegistry.class.getSimpleName();
+
+    /**
+     * Creates a service for registration.
+     */
+    public interface ServiceFactory {
+        BluetoothGattService createService();
+    }
+
+    private final AndroidGattTransport mTransport;
+    private final List<ServiceFactory> mFactories = new ArrayList<>();
+
+    /* Registration in progress, guarded by this */
+    private CompletableFuture<Void> mReady;
+    private ArrayDeque<BluetoothGattService> mPending;
+    private BluetoothGattService mAdding;
+    private List<UUID> mFailed;
+    private long mStartNanos;
+
+    private volatile long mTimeToReadyNanos = -1;
+
+    public ServiceRegistry(AndroidGattTransport transport) {
+        mTransport = transport;
+        transport.setServiceListener(this);
+    }
+
+    /**
+     * Declare a service, to be registered after the ones declared before.
+     * @return this registry, for chaining.
+     */
+    public ServiceRegistry declare(ServiceFactory factory) {
+        mFactories.add(factory);
+        return this;
+    }
+
+    public int getServiceCount() {
+        return mFactories.size();
+    }
+
+    /**
+     * Add all declared services to the open GATT server, cancelling any
+     * registration still in progress.
+     * @return a future that completes when every service has been added,
+     *         or completes exceptionally naming the services that failed.
+     */
+    public CompletableFuture<Void> register() {
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        CompletableFuture<Void> previous;
+        synchronized (this) {
+            previous = mReady;
+            mReady = ready;
+            mPending = new ArrayDeque<>();
+            for (ServiceFactory factory : mFactories) {
+                mPending.add(factory.createService());
+            }
+            mFailed = new ArrayList<>();
+            mStartNanos = System.nanoTime();
+            mTimeToReadyNanos = -1;
+        }
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        addNextService();
+        return ready;
+    }
+
+    /**
+     * Abandon the registration in progress, e.g. when the server closes.
+     */
+    public void cancel() {
+        CompletableFuture<Void> ready;
+        synchronized (this) {
+            ready = mReady;
+            mReady = null;
+            mPending = null;
+            mAdding = null;
+        }
+        if (ready != null) {
+            ready.cancel(false);
+        }
+    }
+
+    @Override
+    public void onServiceAdded(BluetoothGattService service, boolean success) {
+        synchronized (this) {
+            // Ignore results for an abandoned or earlier registration,
+            // which created its own instance of the service
+            if (mAdding == null || mAdding != service) return;
+
+            if (!success) {
+                mFailed.add(service.getUuid());
+            }
+            mAdding = null;
+        }
+        addNextService();
+    }
+
+    /**
+     * Start adding the next pending service, or complete the registration
+     * when there are none left.
+     */
+    private void addNextService() {
+        CompletableFuture<Void> ready;
+        List<UUID> failed;
+        synchronized (this) {
+            if (mReady == null || mAdding != null) return;
+
+            BluetoothGattService service;
+            while ((service = mPending.poll()) != null) {
+                mAdding = service;
+                if (mTransport.addService(service)) {
+                    // Continued from onServiceAdded()
+                    return;
+                }
+                mAdding = null;
+                Log.w(TAG, "Unable to add service " + service.getUuid());
+                mFailed.add(service.getUuid());
+            }
+
+            mTimeToReadyNanos = System.nanoTime() - mStartNanos;
+            ready = mReady;
+            failed = mFailed;
+            mReady = null;
+            mPending = null;
+        }
+
+        // Complete outside the lock, dependent actions run on this thread
+        if (failed.isEmpty()) {
+            ready.complete(null);
+        } else {
+            ready.completeExceptionally(
+                    new IllegalStateException("Failed to add services " + failed));
+        }
+    }
+
+    /**
+     * Return the time the last completed registration took from
+     * {@link #register()} until all services were added, or -1.
+     */
+    public long getTimeToReadyNanos() {
+        return mTimeToReadyNanos;
+    }
+}
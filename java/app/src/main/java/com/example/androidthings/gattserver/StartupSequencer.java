@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Runs the startup of the app as a set of stages with dependencies.
+ *
+ * Each stage starts on the executor as soon as the stages it depends on
+ * have finished, so independent stages run concurrently. Stages report
+ * completion through a future, which lets them wait on system events
+ * without holding a thread. The start and end of every stage are
+ * recorded in milliseconds since a given origin, normally the start of
+ * the process. A stage whose dependency failed is skipped and fails too.
+ */
+public class StartupSequencer {
+
+    /**
+     * A step of the startup, run on the sequencer's executor.
+     */
+    public interface Stage {
+        /**
+         * Begin the stage.
+         * @return a future that completes when the stage has finished.
+         */
+        CompletableFuture<?> start();
+    }
+
+    /**
+     * Receives the outcome of each stage. Times are -1 if the stage never
+     * ran; the error is null if it succeeded.
+     */
+    public interface Listener {
+        void onStageFinished(int stage, long startMillis, long endMillis, Throwable error);
+    }
+
+    private final long mOriginMillis;
+    private final Executor mExecutor;
+    private final Listener mListener;
+    private final String[] mNames;
+    private final Stage[] mStages;
+    private final int[][] mDependencies;
+    private final CompletableFuture<?>[] mFinished;
+    private final AtomicLongArray mStartMillis;
+    private final AtomicLongArray mEndMillis;
+
+    /**
+     * @param stageCount Number of stages, identified by 0 to stageCount - 1.
+     * @param originMillis Origin of the timeline, in
+     *                     {@link SystemClock#elapsedRealtime()} time.
+     */
+    public StartupSequencer(int stageCount, long originMillis, Executor executor,
+                            Listener listener) {
+        mOriginMillis = originMillis;
+        mExecutor = executor;
+        mListener = listener;
+        mNames = new String[stageCount];
+        mStages = new Stage[stageCount];
+        mDependencies = new int[stageCount][];
+        mFinished = new CompletableFuture<?>[stageCount];
+        mStartMillis = new AtomicLongArray(stageCount);
+        mEndMillis = new AtomicLongArray(stageCount);
+        for (int i = 0; i < stageCount; i++) {
+            mStartMillis.set(i, -1);
+            mEndMillis.set(i, -1);
+        }
+    }
+
+    /**
+     * Declare a stage. Dependencies must have lower identifiers.
+     */
+    public void setStage(int id, String name, Stage stage, int... dependencies) {
+        for (int dependency : dependencies) {
+            if (dependency >= id) {
+                throw new IllegalArgumentException(name + " depends on a later stage");
+            }
+        }
+        mNames[id] = name;
+        mStages[id] = stage;
+        mDependencies[id] = dependencies;
+    }
+
+    /**
+     * Start all stages.
+     * @return a future that completes when every stage has finished.
+     */
+    public CompletableFuture<Void> start() {
+        for (int i = 0; i < mStages.length; i++) {
+            final int id = i;
+            if (mStages[id] == null) {
+                throw new IllegalStateException("Stage " + id + " was not set");
+            }
+            CompletableFuture<?>[] dependencies = new CompletableFuture<?>[mDependencies[id].length];
+            for (int j = 0; j < dependencies.length; j++) {
+                dependencies[j] = mFinished[mDependencies[id][j]];
+            }
+
+            mFinished[id] = CompletableFuture.allOf(dependencies).thenComposeAsync(
+                    new Function<Void, CompletableFuture<Object>>() {
+                @Override
+                public CompletableFuture<Object> apply(Void result) {
+                    return runStage(id);
+                }
+            }, mExecutor).whenComplete(new BiConsumer<Object, Throwable>() {
+                @Override
+                public void accept(Object result, Throwable error) {
+                    if (mStartMillis.get(id) >= 0) {
+                        mEndMillis.set(id, now());
+                    }
+                    if (mListener != null) {
+                        mListener.onStageFinished(id, mStartMillis.get(id), mEndMillis.get(id),
+                                error);
+                    }
+                }
+            });
+        }
+        return CompletableFuture.allOf(mFinished);
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Object> runStage(int id) {
+        mStartMillis.set(id, now());
+        try {
+            return (CompletableFuture<Object>) mStages[id].start();
+        } catch (RuntimeException e) {
+            CompletableFuture<Object> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private long now() {
+        return SystemClock.elapsedRealtime() - mOriginMillis;
+    }
+
+    public String getName(int id) {
+        return mNames[id];
+    }
+
+    /**
+     * Return when the stage started, in milliseconds since the origin,
+     * or -1 if it has not started.
+     */
+    public long getStartMillis(int id) {
+        return mStartMillis.get(id);
+    }
+
+    /**
+     * Return when the stage finished, in milliseconds since the origin,
+     * or -1 if it has not finished.
+     */
+    public long getEndMillis(int id) {
+        return mEndMillis.get(id);
+    }
+
+    /**
+     * Return the timeline as text, one "name start-end" entry per stage.
+     */
+    public String getTimeline() {
+        StringBuilder timeline = new StringBuilder();
+        for (int i = 0; i < mStages.length; i++) {
+            if (i > 0) timeline.append(", ");
+            timeline.append(mNames[i]).append(' ');
+            long start = mStartMillis.get(i);
+            long end = mEndMillis.get(i);
+            if (start < 0) {
+                timeline.append("skipped");
+            } else {
+                timeline.append(start).append('-').append((end < 0) ? "?" : String.valueOf(end));
+            }
+        }
+        return timeline.toString();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe registry of the Client Characteristic Configuration state
+ * of each subscribed device.
+ *
+ * Mutations go straight to a concurrent map. Readers on the fan-out path
+ * iterate an immutable {@link Snapshot}, which is rebuilt on demand after
+ * the registry changes, so iteration never blocks or throws
+ * {@link java.util.ConcurrentModificationException}.
+ *
+ * @param <D> remote device type
+ */
+public class SubscriberRegistry<D> {
+
+    /* Client Characteristic Configuration bits */
+    public static final int CONFIG_NONE = 0x0;
+    public static final int CONFIG_NOTIFY = 0x1;
+    public static final int CONFIG_INDICATE = 0x2;
+
+    /**
+     * Immutable view of the subscribers at a point in time.
+     */
+    public static class Snapshot<D> {
+        final long version;
+        private final Object[] mDevices;
+        private final int[] mConfigs;
+
+        Snapshot(long version, Object[] devices, int[] configs) {
+            this.version = version;
+            mDevices = devices;
+            mConfigs = configs;
+        }
+
+        public int size() {
+            return mDevices.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public D getDevice(int index) {
+            return (D) mDevices[index];
+        }
+
+        public int getConfiguration(int index) {
+            return mConfigs[index];
+        }
+    }
+
+    private final ConcurrentHashMap<D, Integer> mConfigs = new ConcurrentHashMap<>();
+    /* Bumped after every mutation so stale snapshots are detected */
+    private final AtomicLong mVersion = new AtomicLong();
+    private volatile Snapshot<D> mSnapshot = new Snapshot<>(0, new Object[0], new int[0]);
+
+    /**
+     * Record the configuration written by a device. A value of
+     * {@link #CONFIG_NONE} removes the device.
+     */
+    public void setConfiguration(D device, int config) {
+        if (config == CONFIG_NONE) {
+            remove(device);
+            return;
+        }
+        Integer previous = mConfigs.put(device, config);
+        if (previous == null || previous != config) {
+            mVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * Return the configuration for the device, or {@link #CONFIG_NONE}.
+     */
+    public int getConfiguration(D device) {
+        Integer config = mConfigs.get(device);
+        return (config == null) ? CONFIG_NONE : config;
+    }
+
+    public boolean contains(D device) {
+        return mConfigs.containsKey(device);
+    }
+
+    public void remove(D device) {
+        if (mConfigs.remove(device) != null) {
+            mVersion.incrementAndGet();
+        }
+    }
+
+    public boolean isEmpty() {
+        return mConfigs.isEmpty();
+    }
+
+    /**
+     * Return a view of the current subscribers. Cheap when
+     * nothing has changed since the previous call.
+     */
+    public Snapshot<D> snapshot() {
+        long version = mVersion.get();
+        Snapshot<D> snapshot = mSnapshot;
+        if (snapshot.version == version) {
+            return snapshot;
+        }
+
+        // Size is only a hint while writers are active
+        int capacity = mConfigs.size();
+        Object[] devices = new Object[capacity];
+        int[] configs = new int[capacity];
+        int count = 0;
+        for (Map.Entry<D, Integer> entry : mConfigs.entrySet()) {
+            if (count == devices.length) {
+                devices = Arrays.copyOf(devices, count * 2 + 1);
+                configs = Arrays.copyOf(configs, count * 2 + 1);
+            }
+            devices[count] = entry.getKey();
+            configs[count] = entry.getValue();
+            count++;
+        }
+        if (count != devices.length) {
+            devices = Arrays.copyOf(devices, count);
+            configs = Arrays.copyOf(configs, count);
+        }
+
+        snapshot = new Snapshot<>(version, devices, configs);
+        mSnapshot = snapshot;
+        return snapshot;
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Persistent Client Characteristic Configuration state of bonded devices.
+ *
+ * A bonded client expects its CCCD values to survive reconnections, so
+ * they are kept here by device address rather than per connection. The
+ * backing file is a log of fixed-size records, each holding an address
+ * and the configuration of every slot; a later record for the same
+ * address replaces the earlier one. Changes are buffered and appended by
+ * {@link #flush()}, and the file is rewritten with only the live records
+ * once it has grown to several times their number. Records are parsed
+ * into an open-addressed table sized from the file length, so loading
+ * allocates no per-device objects.
+ *
+ * Unbonded devices are never stored, as their configuration resets with
+ * every connection.
+ *
+ * @param <D> remote device type
+ */
+public class SubscriptionStore<D> {
+    private static final String TAG = SubscriptionStore.class.getSimpleName();
+
+    /* Configuration slots, one per characteristic with a CCCD */
+    public static final int SLOT_CURRENT_TIME = 0;
+    public static final int SLOT_TIME_HISTORY = 1;
+    public static final int SLOT_COUNT = 2;
+
+    /* Key of a device that is not bonded */
+    public static final long NO_KEY = -1;
+
+    /**
+     * Maps devices to the key their configuration is stored under.
+     */
+    public interface KeyResolver<D> {
+        /**
+         * @return the 48-bit address of a bonded device, or {@link #NO_KEY}.
+         */
+        long getBondedKey(D device);
+    }
+
+    /* File header: magic, version, record size, slot count, reserved */
+    private static final byte[] MAGIC = {'C', 'C', 'C', 'D'};
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int ADDRESS_SIZE = 6;
+    private static final int RECORD_SIZE = ADDRESS_SIZE + SLOT_COUNT;
+    /* File records allowed per live record before compacting */
+    private static final int COMPACT_RATIO = 4;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+    /* Multiplier of the table hash, 2^64 divided by the golden ratio */
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final int MIN_TABLE_SIZE = 16;
+    /* Table configuration flag of an address changed since the last flush */
+    private static final int DIRTY = 1 << 31;
+
+    private final File mFile;
+    private final KeyResolver<D> mResolver;
+    /*
+     * Open-addressed table of addresses and their slot configurations,
+     * one byte per slot, plus the DIRTY flag. Empty entries hold NO_KEY;
+     * a removed address keeps its entry with a configuration of 0 until
+     * the next resize after it has been flushed.
+     */
+    private long[] mKeys;
+    private int[] mConfigs;
+    private int mTableShift;
+    /* Entries in use, including removed addresses */
+    private int mUsed;
+    /* Addresses with a configuration */
+    private int mSize;
+    /* Addresses changed since the last flush */
+    private int mDirtyCount;
+    private boolean mLoaded;
+    /* Records in the file, or -1 if it must be rewritten */
+    private int mFileRecords = -1;
+    private long mLoadNanos;
+
+    public SubscriptionStore(File file, KeyResolver<D> resolver) {
+        mFile = file;
+        mResolver = resolver;
+        resize(0);
+    }
+
+    /**
+     * Read the stored configurations. Has no effect after the first call.
+     * A missing or unreadable file leaves the store empty.
+     * @return the number of devices with stored configurations.
+     */
+    public synchronized int load() {
+        if (mLoaded) return mSize;
+        mLoaded = true;
+
+        long start = System.nanoTime();
+        byte[] data = null;
+        if (mFile.exists()) {
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+                data = new byte[(int) file.length()];
+                file.readFully(data);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read " + mFile + ": " + e.getMessage());
+            }
+        }
+        if (data != null && isValidHeader(data)) {
+            // A torn record at the end is left to the next compaction
+            int records = (data.length - HEADER_SIZE) / RECORD_SIZE;
+            resize(records);
+            for (int offset = HEADER_SIZE, i = 0; i < records; i++, offset += RECORD_SIZE) {
+                long address = 0;
+                for (int b = 0; b < ADDRESS_SIZE; b++) {
+                    address = (address << 8) | (data[offset + b] & 0xFF);
+                }
+                int config = 0;
+                for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                    config |= (data[offset + ADDRESS_SIZE + slot] & 0xFF) << (slot * 8);
+                }
+                put(address, config);
+            }
+            mFileRecords = (data.length - HEADER_SIZE) % RECORD_SIZE == 0 ? records : -1;
+        }
+        mLoadNanos = System.nanoTime() - start;
+        return mSize;
+    }
+
+    private static boolean isValidHeader(byte[] data) {
+        if (data.length < HEADER_SIZE) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) return false;
+        }
+        return data[4] == VERSION && data[5] == RECORD_SIZE && data[6] == SLOT_COUNT;
+    }
+
+    /**
+     * Return the stored configuration of a slot for the device, or
+     * {@link SubscriberRegistry#CONFIG_NONE} if the device is not bonded.
+     */
+    public int getConfiguration(D device, int slot) {
+        long key = mResolver.getBondedKey(device);
+        if (key == NO_KEY) return SubscriberRegistry.CONFIG_NONE;
+
+        synchronized (this) {
+            return (get(key) >> (slot * 8)) & 0xFF;
+        }
+    }
+
+    /**
+     * Store the configuration of a slot for the device, if it is bonded.
+     * The change is written by the next {@link #flush()}.
+     */
+    public void setConfiguration(D device, int slot, int config) {
+        long key = mResolver.getBondedKey(device);
+        if (key == NO_KEY) return;
+
+        synchronized (this) {
+            int configs = get(key);
+            int updated = (configs & ~(0xFF << (slot * 8))) | ((config & 0xFF) << (slot * 8));
+            if (updated == configs) return;
+
+            put(key, updated);
+            int index = indexOf(key);
+            if ((mConfigs[index] & DIRTY) == 0) {
+                mConfigs[index] |= DIRTY;
+                mDirtyCount++;
+            }
+        }
+    }
+
+    /**
+     * Write buffered changes to the file, compacting it when it holds
+     * mostly replaced records. Cheap when nothing has changed.
+     */
+    public synchronized void flush() {
+        // Never replace a file that has not been read
+        if (!mLoaded) return;
+        if (mDirtyCount == 0 && mFileRecords >= 0) return;
+
+        int live = mSize;
+        boolean compact = mFileRecords < 0
+                || mFileRecords + mDirtyCount > Math.max(COMPACT_MIN_RECORDS, live * COMPACT_RATIO);
+        try {
+            if (compact) {
+                rewrite();
+            } else {
+                append();
+            }
+            for (int i = 0; i < mConfigs.length; i++) {
+                mConfigs[i] &= ~DIRTY;
+            }
+            mDirtyCount = 0;
+        } catch (IOException e) {
+            // Keep the changes for the next attempt
+            Log.w(TAG, "Unable to write " + mFile + ": " + e.getMessage());
+            mFileRecords = -1;
+        }
+    }
+
+    private void append() throws IOException {
+        byte[] data = new byte[mDirtyCount * RECORD_SIZE];
+        int offset = 0;
+        for (int i = 0; i < mKeys.length; i++) {
+            if ((mConfigs[i] & DIRTY) != 0) {
+                offset = putRecord(data, offset, mKeys[i], mConfigs[i] & ~DIRTY);
+            }
+        }
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write(data);
+        }
+        mFileRecords += mDirtyCount;
+    }
+
+    /**
+     * Replace the file with one holding only the live records.
+     */
+    private void rewrite() throws IOException {
+        byte[] data = new byte[HEADER_SIZE + mSize * RECORD_SIZE];
+        System.arraycopy(MAGIC, 0, data, 0, MAGIC.length);
+        data[4] = VERSION;
+        data[5] = RECORD_SIZE;
+        data[6] = SLOT_COUNT;
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != NO_KEY && (mConfigs[i] & ~DIRTY) != 0) {
+                offset = putRecord(data, offset, mKeys[i], mConfigs[i] & ~DIRTY);
+            }
+        }
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+        mFileRecords = mSize;
+    }
+
+    private static int putRecord(byte[] data, int offset, long address, int config) {
+        for (int b = ADDRESS_SIZE - 1; b >= 0; b--) {
+            data[offset + b] = (byte) address;
+            address >>>= 8;
+        }
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            data[offset + ADDRESS_SIZE + slot] = (byte) (config >> (slot * 8));
+        }
+        return offset + RECORD_SIZE;
+    }
+
+    /**
+     * Return the table index of the key, or of the empty entry to hold it.
+     */
+    private int indexOf(long key) {
+        int mask = mKeys.length - 1;
+        int index = (int) ((key * HASH_MULTIPLIER) >>> mTableShift);
+        while (mKeys[index] != NO_KEY && mKeys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private int get(long key) {
+        return mConfigs[indexOf(key)] & ~DIRTY;
+    }
+
+    /**
+     * Set the configuration of an address, keeping its DIRTY flag.
+     */
+    private void put(long key, int config) {
+        int index = indexOf(key);
+        if (mKeys[index] == NO_KEY) {
+            if (config == 0) return;
+            mKeys[index] = key;
+            mUsed++;
+        }
+        int old = mConfigs[index] & ~DIRTY;
+        if (old == 0 && config != 0) {
+            mSize++;
+        } else if (old != 0 && config == 0) {
+            mSize--;
+        }
+        mConfigs[index] = config | (mConfigs[index] & DIRTY);
+
+        // Keep the table at most three quarters full
+        if (mUsed * 4 > mKeys.length * 3) {
+            resize(mSize + mDirtyCount);
+        }
+    }
+
+    /**
+     * Rebuild the table for at least the given number of addresses,
+     * dropping removed ones that have been flushed.
+     */
+    private void resize(int expected) {
+        int size = Math.max(MIN_TABLE_SIZE, Integer.highestOneBit(expected * 2) * 2);
+        long[] keys = mKeys;
+        int[] configs = mConfigs;
+
+        mKeys = new long[size];
+        Arrays.fill(mKeys, NO_KEY);
+        mConfigs = new int[size];
+        mTableShift = 64 - Integer.numberOfTrailingZeros(size);
+        mUsed = 0;
+        mSize = 0;
+        if (keys == null) return;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == NO_KEY || configs[i] == 0) continue;
+
+            int index = indexOf(keys[i]);
+            mKeys[index] = keys[i];
+            mConfigs[index] = configs[i];
+            mUsed++;
+            if ((configs[i] & ~DIRTY) != 0) {
+                mSize++;
+            }
+        }
+    }
+
+    /**
+     * Return the number of devices with stored configurations.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Return the time taken by {@link #load()}, in nanoseconds.
+     */
+    public synchronized long getLoadNanos() {
+        return mLoadNanos;
+    }
+
+    /**
+     * Parse a Bluetooth address in the "00:11:22:AA:BB:CC" form into a key.
+     */
+    public static long parseAddress(String address) {
+        long key = 0;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c != ':') {
+                key = (key << 4) | Character.digit(c, 16);
+            }
+        }
+        return key;
+    }
+}
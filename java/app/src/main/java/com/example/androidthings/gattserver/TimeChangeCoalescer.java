@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges bursts of clock and time zone changes into one report.
+ *
+ * A time sync or zone update often produces several broadcasts within a
+ * few milliseconds. The first change of a burst opens a window, the
+ * adjustment flags of every change within it are OR-ed together, and a
+ * single report with the combined flags is delivered when the window
+ * closes. With a window of zero every change is reported right away on
+ * the calling thread.
+ */
+public class TimeChangeCoalescer {
+
+    /**
+     * Receives the merged changes, on the coalescer thread.
+     */
+    public interface Listener {
+        /**
+         * @param adjustReason The combined {@link TimeProfile} adjustment flags.
+         * @param changes Number of changes merged into this report.
+         */
+        void onTimeChanged(byte adjustReason, int changes);
+    }
+
+    private final Listener mListener;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private volatile long mWindowMillis;
+
+    /* Changes waiting for the window to close, guarded by this */
+    private byte mPendingReason;
+    private int mPendingChanges;
+
+    private final AtomicLong mChanges = new AtomicLong();
+    private final AtomicLong mReports = new AtomicLong();
+
+    public TimeChangeCoalescer(long windowMillis, Listener listener) {
+        mWindowMillis = windowMillis;
+        mListener = listener;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "time-change");
+            }
+        });
+        // Changes are rare, do not keep a thread around in between
+        mExecutor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Set how long to wait for further changes after the first of a burst.
+     */
+    public void setWindowMillis(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    public long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    /**
+     * Report a change, to be merged with the others in its window.
+     */
+    public void onTimeChanged(byte adjustReason) {
+        mChanges.incrementAndGet();
+        long window = mWindowMillis;
+        if (window <= 0) {
+            mReports.incrementAndGet();
+            mListener.onTimeChanged(adjustReason, 1);
+            return;
+        }
+
+        synchronized (this) {
+            mPendingReason |= adjustReason;
+            // Only the first change of a burst schedules the report
+            if (mPendingChanges++ > 0) return;
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, window, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        byte adjustReason;
+        int changes;
+        synchronized (this) {
+            adjustReason = mPendingReason;
+            changes = mPendingChanges;
+            mPendingReason = TimeProfile.ADJUST_NONE;
+            mPendingChanges = 0;
+        }
+        if (changes == 0) return;
+
+        mReports.incrementAndGet();
+        mListener.onTimeChanged(adjustReason, changes);
+    }
+
+    /**
+     * Drop any pending changes and stop the coalescer thread.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    public long getChangeCount() {
+        return mChanges.get();
+    }
+
+    /**
+     * Return the number of changes merged into another change's report.
+     */
+    public long getSuppressedCount() {
+        return mChanges.get() - mReports.get();
+    }
+}
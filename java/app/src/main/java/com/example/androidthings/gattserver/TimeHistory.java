@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+/**
+ * Fixed-capacity history of published Current Time values.
+ *
+ * Records are stored back to back in a preallocated ring, each in the
+ * {@link CurrentTimeEncoder#EXACT_TIME_SIZE}-byte Exact Time 256 format,
+ * so appending a record does not allocate.
+ */
+public class TimeHistory {
+
+    public static final int RECORD_SIZE = CurrentTimeEncoder.EXACT_TIME_SIZE;
+
+    private final CurrentTimeEncoder mEncoder;
+    private final byte[] mRecords;
+    private final int mCapacity;
+    /* Index of the next record to write, and number of valid records */
+    private int mHead;
+    private int mCount;
+
+    public TimeHistory(CurrentTimeEncoder encoder, int capacity) {
+        mEncoder = encoder;
+        mCapacity = capacity;
+        mRecords = new byte[capacity * RECORD_SIZE];
+    }
+
+    /**
+     * Append a record, overwriting the oldest once the history is full.
+     */
+    public synchronized void append(long timestamp, byte adjustReason) {
+        mEncoder.encodeExactTime(timestamp, adjustReason, mRecords, mHead * RECORD_SIZE);
+        mHead = (mHead + 1) % mCapacity;
+        if (mCount < mCapacity) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Return a copy of all stored records, oldest first.
+     */
+    public synchronized byte[] snapshot() {
+        byte[] copy = new byte[mCount * RECORD_SIZE];
+        int oldest = (mHead - mCount + mCapacity) % mCapacity;
+        int firstRun = Math.min(mCount, mCapacity - oldest);
+        System.arraycopy(mRecords, oldest * RECORD_SIZE, copy, 0, firstRun * RECORD_SIZE);
+        System.arraycopy(mRecords, 0, copy, firstRun * RECORD_SIZE,
+                (mCount - firstRun) * RECORD_SIZE);
+        return copy;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+}
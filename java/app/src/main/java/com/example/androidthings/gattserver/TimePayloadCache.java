@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the pre-encoded Current Time and Local Time Information payloads
+ * served to read requests.
+ *
+ * The Exact Time 256 value is held until its Fractions256 field rolls over,
+ * and the Local Time Information value until the next zone transition.
+ * Callers must invalidate the cache when the system clock or time zone is
+ * changed. Each payload records the generation it was encoded in, so a
+ * payload encoded before an invalidation, but stored after it, is never
+ * served. Returned arrays are shared and must not be modified.
+ */
+public class TimePayloadCache {
+
+    /* Width of a Fractions256 step as produced by the encoder */
+    private static final int FRACTION_MILLIS = 256;
+    private static final int SECOND_MILLIS = 1000;
+
+    /**
+     * Encoded value along with the span of time it remains valid.
+     */
+    private static class Payload {
+        final long generation;
+        final long start;
+        final long end;
+        final byte[] value;
+
+        Payload(long generation, long start, long end, byte[] value) {
+            this.generation = generation;
+            this.start = start;
+            this.end = end;
+            this.value = value;
+        }
+
+        boolean isValid(long generation, long timestamp) {
+            return this.generation == generation && timestamp >= start && timestamp < end;
+        }
+    }
+
+    private final CurrentTimeEncoder mEncoder;
+
+    private volatile Payload mExactTime;
+    private volatile Payload mLocalTimeInfo;
+    /* Advanced by every invalidation */
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public TimePayloadCache(CurrentTimeEncoder encoder) {
+        mEncoder = encoder;
+    }
+
+    /**
+     * Return the Current Time value for the given timestamp, with no
+     * adjustment reason set.
+     */
+    public byte[] getExactTime(long timestamp) {
+        long generation = mGeneration.get();
+        Payload payload = mExactTime;
+        if (payload != null && payload.isValid(generation, timestamp)) {
+            mHits.incrementAndGet();
+            return payload.value;
+        }
+        mMisses.incrementAndGet();
+
+        long second = Math.floorDiv(timestamp, SECOND_MILLIS) * SECOND_MILLIS;
+        long start = second
+                + (timestamp - second) / FRACTION_MILLIS * FRACTION_MILLIS;
+        long end = Math.min(start + FRACTION_MILLIS, second + SECOND_MILLIS);
+
+        byte[] value = new byte[CurrentTimeEncoder.EXACT_TIME_SIZE];
+        mEncoder.encodeExactTime(timestamp, TimeProfile.ADJUST_NONE, value, 0);
+        mExactTime = new Payload(generation, start, end, value);
+        return value;
+    }
+
+    /**
+     * Return the Local Time Information value for the given timestamp.
+     */
+    public byte[] getLocalTimeInfo(long timestamp) {
+        long generation = mGeneration.get();
+        Payload payload = mLocalTimeInfo;
+        if (payload != null && payload.isValid(generation, timestamp)) {
+            mHits.incrementAndGet();
+            return payload.value;
+        }
+        mMisses.incrementAndGet();
+
+        byte[] value = new byte[CurrentTimeEncoder.LOCAL_TIME_INFO_SIZE];
+        mEncoder.encodeLocalTimeInfo(timestamp, value, 0);
+        mLocalTimeInfo = new Payload(generation, timestamp,
+                mEncoder.getOffsetValidUntil(timestamp), value);
+        return value;
+    }
+
+    /**
+     * Drop all cached payloads. Called when the clock or zone changes.
+     */
+    public void invalidate() {
+        mGeneration.incrementAndGet();
+        mExactTime = null;
+        mLocalTimeInfo = null;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+}
@@ -20,7 +20,7 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 
-import java.util.Calendar;
+import java.util.TimeZone;
 import java.util.UUID;
 
 /**
@@ -36,9 +36,28 @@ public class TimeProfile {
     public static UUID CURRENT_TIME    = UUID.fromString("00002a2b-0000-1000-8000-00805f9b34fb");
     /* Optional Local Time Information Characteristic */
     public static UUID LOCAL_TIME_INFO = UUID.fromString("00002a0f-0000-1000-8000-00805f9b34fb");
+    /* Vendor Time History Characteristic, batches of Exact Time 256 records */
+    public static UUID TIME_HISTORY    = UUID.fromString("a1b70001-3c6d-4f0e-9a52-7d0c8e4b2f61");
+    /* Vendor Adjustment History Characteristic, see AdjustmentHistory for the format */
+    public static UUID ADJUSTMENT_HISTORY = UUID.fromString("a1b70002-3c6d-4f0e-9a52-7d0c8e4b2f61");
     /* Mandatory Client Characteristic Config Descriptor */
     public static UUID CLIENT_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
+    /* Next DST Change Service UUID */
+    public static UUID NEXT_DST_SERVICE = UUID.fromString("00001807-0000-1000-8000-00805f9b34fb");
+    /* Mandatory Time with DST Characteristic */
+    public static UUID TIME_WITH_DST    = UUID.fromString("00002a11-0000-1000-8000-00805f9b34fb");
+
+    /* Reference Time Update Service UUID */
+    public static UUID REFERENCE_TIME_UPDATE_SERVICE =
+            UUID.fromString("00001806-0000-1000-8000-00805f9b34fb");
+    /* Mandatory Time Update Control Point Characteristic */
+    public static UUID TIME_UPDATE_CONTROL_POINT =
+            UUID.fromString("00002a16-0000-1000-8000-00805f9b34fb");
+    /* Mandatory Time Update State Characteristic */
+    public static UUID TIME_UPDATE_STATE =
+            UUID.fromString("00002a17-0000-1000-8000-00805f9b34fb");
+
     // Adjustment Flags
     public static final byte ADJUST_NONE     = 0x0;
     public static final byte ADJUST_MANUAL   = 0x1;
@@ -46,6 +65,31 @@ public class TimeProfile {
     public static final byte ADJUST_TIMEZONE = 0x4;
     public static final byte ADJUST_DST      = 0x8;
 
+    // Adjustment History commands: op code, first sequence number (uint32)
+    // and record count (uint16), answered by a stream of notifications
+    public static final byte HISTORY_REPORT_RANGE = 0x1;
+    public static final byte HISTORY_ABORT        = 0x2;
+    public static final int HISTORY_REQUEST_SIZE  = 7;
+
+    // Time Update Control Point commands
+    public static final byte UPDATE_GET    = 0x1;
+    public static final byte UPDATE_CANCEL = 0x2;
+
+    // Time Update State values
+    public static final byte UPDATE_STATE_IDLE    = 0x0;
+    public static final byte UPDATE_STATE_PENDING = 0x1;
+
+    // Time Update Results
+    public static final byte UPDATE_RESULT_SUCCESSFUL    = 0x0;
+    public static final byte UPDATE_RESULT_CANCELED      = 0x1;
+    public static final byte UPDATE_RESULT_NO_CONNECTION = 0x2;
+    public static final byte UPDATE_RESULT_ERROR         = 0x3;
+    public static final byte UPDATE_RESULT_TIMEOUT       = 0x4;
+    public static final byte UPDATE_RESULT_NOT_ATTEMPTED = 0x5;
+
+    /* Size of a Time with DST field value */
+    public static final int TIME_WITH_DST_SIZE = CurrentTimeEncoder.DATE_TIME_SIZE + 1;
+
     /**
      * Return a configured {@link BluetoothGattService} instance for the
      * Current Time Service.
@@ -56,8 +100,9 @@ public class TimeProfile {
 
         // Current Time characteristic
         BluetoothGattCharacteristic currentTime = new BluetoothGattCharacteristic(CURRENT_TIME,
-                //Read-only characteristic, supports notifications
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                //Read-only characteristic, supports notifications and indications
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY
+                        | BluetoothGattCharacteristic.PROPERTY_INDICATE,
                 BluetoothGattCharacteristic.PERMISSION_READ);
         BluetoothGattDescriptor configDescriptor = new BluetoothGattDescriptor(CLIENT_CONFIG,
                 //Read/write descriptor
@@ -70,129 +115,159 @@ public class TimeProfile {
                 BluetoothGattCharacteristic.PROPERTY_READ,
                 BluetoothGattCharacteristic.PERMISSION_READ);
 
+        // Time History characteristic
+        BluetoothGattCharacteristic timeHistory = new BluetoothGattCharacteristic(TIME_HISTORY,
+                //Notification-only characteristic, streamed on subscription
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        BluetoothGattDescriptor historyConfigDescriptor = new BluetoothGattDescriptor(CLIENT_CONFIG,
+                //Read/write descriptor
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
+        timeHistory.addDescriptor(historyConfigDescriptor);
+
+        // Adjustment History characteristic
+        BluetoothGattCharacteristic adjustmentHistory = new BluetoothGattCharacteristic(
+                ADJUSTMENT_HISTORY,
+                //Control point, requested records are streamed as notifications
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_WRITE);
+        BluetoothGattDescriptor adjustmentConfigDescriptor = new BluetoothGattDescriptor(
+                CLIENT_CONFIG,
+                //Read/write descriptor
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
+        adjustmentHistory.addDescriptor(adjustmentConfigDescriptor);
+
         service.addCharacteristic(currentTime);
         service.addCharacteristic(localTime);
+        service.addCharacteristic(timeHistory);
+        service.addCharacteristic(adjustmentHistory);
 
         return service;
     }
 
     /**
-     * Construct the field values for a Current Time characteristic
-     * from the given epoch timestamp and adjustment reason.
+     * Return a configured {@link BluetoothGattService} instance for the
+     * Next DST Change Service.
      */
-    public static byte[] getExactTime(long timestamp, byte adjustReason) {
-        Calendar time = Calendar.getInstance();
-        time.setTimeInMillis(timestamp);
-
-        byte[] field = new byte[10];
-
-        // Year
-        int year = time.get(Calendar.YEAR);
-        field[0] = (byte) (year & 0xFF);
-        field[1] = (byte) ((year >> 8) & 0xFF);
-        // Month
-        field[2] = (byte) (time.get(Calendar.MONTH) + 1);
-        // Day
-        field[3] = (byte) time.get(Calendar.DATE);
-        // Hours
-        field[4] = (byte) time.get(Calendar.HOUR_OF_DAY);
-        // Minutes
-        field[5] = (byte) time.get(Calendar.MINUTE);
-        // Seconds
-        field[6] = (byte) time.get(Calendar.SECOND);
-        // Day of Week (1-7)
-        field[7] = getDayOfWeekCode(time.get(Calendar.DAY_OF_WEEK));
-        // Fractions256
-        field[8] = (byte) (time.get(Calendar.MILLISECOND) / 256);
-
-        field[9] = adjustReason;
+    public static BluetoothGattService createNextDstChangeService() {
+        BluetoothGattService service = new BluetoothGattService(NEXT_DST_SERVICE,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
 
-        return field;
-    }
+        // Time with DST characteristic
+        BluetoothGattCharacteristic timeWithDst = new BluetoothGattCharacteristic(TIME_WITH_DST,
+                //Read-only characteristic
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
 
-    /* Time bucket constants for local time information */
-    private static final int FIFTEEN_MINUTE_MILLIS = 900000;
-    private static final int HALF_HOUR_MILLIS = 1800000;
+        service.addCharacteristic(timeWithDst);
+
+        return service;
+    }
 
     /**
-     * Construct the field values for a Local Time Information characteristic
-     * from the given epoch timestamp.
+     * Return a configured {@link BluetoothGattService} instance for the
+     * Reference Time Update Service.
      */
-    public static byte[] getLocalTimeInfo(long timestamp) {
-        Calendar time = Calendar.getInstance();
-        time.setTimeInMillis(timestamp);
+    public static BluetoothGattService createReferenceTimeUpdateService() {
+        BluetoothGattService service = new BluetoothGattService(REFERENCE_TIME_UPDATE_SERVICE,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
 
-        byte[] field = new byte[2];
+        // Time Update Control Point characteristic
+        BluetoothGattCharacteristic controlPoint = new BluetoothGattCharacteristic(
+                TIME_UPDATE_CONTROL_POINT,
+                //Write-only characteristic, without response
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE);
 
-        // Time zone
-        int zoneOffset = time.get(Calendar.ZONE_OFFSET) / FIFTEEN_MINUTE_MILLIS; // 15 minute intervals
-        field[0] = (byte) zoneOffset;
+        // Time Update State characteristic
+        BluetoothGattCharacteristic updateState = new BluetoothGattCharacteristic(
+                TIME_UPDATE_STATE,
+                //Read-only characteristic
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
 
-        // DST Offset
-        int dstOffset = time.get(Calendar.DST_OFFSET) / HALF_HOUR_MILLIS; // 30 minute intervals
-        field[1] = getDstOffsetCode(dstOffset);
+        service.addCharacteristic(controlPoint);
+        service.addCharacteristic(updateState);
 
-        return field;
+        return service;
     }
 
-    /* Bluetooth Weekday Codes */
-    private static final byte DAY_UNKNOWN = 0;
-    private static final byte DAY_MONDAY = 1;
-    private static final byte DAY_TUESDAY = 2;
-    private static final byte DAY_WEDNESDAY = 3;
-    private static final byte DAY_THURSDAY = 4;
-    private static final byte DAY_FRIDAY = 5;
-    private static final byte DAY_SATURDAY = 6;
-    private static final byte DAY_SUNDAY = 7;
+    /* Shared encoder tracking the default time zone */
+    private static final CurrentTimeEncoder sEncoder =
+            new CurrentTimeEncoder(TimeZone.getDefault());
 
     /**
-     * Convert a {@link Calendar} weekday value to the corresponding
-     * Bluetooth weekday code.
+     * Return the shared {@link CurrentTimeEncoder} used by this profile.
      */
-    private static byte getDayOfWeekCode(int dayOfWeek) {
-        switch (dayOfWeek) {
-            case Calendar.MONDAY:
-                return DAY_MONDAY;
-            case Calendar.TUESDAY:
-                return DAY_TUESDAY;
-            case Calendar.WEDNESDAY:
-                return DAY_WEDNESDAY;
-            case Calendar.THURSDAY:
-                return DAY_THURSDAY;
-            case Calendar.FRIDAY:
-                return DAY_FRIDAY;
-            case Calendar.SATURDAY:
-                return DAY_SATURDAY;
-            case Calendar.SUNDAY:
-                return DAY_SUNDAY;
-            default:
-                return DAY_UNKNOWN;
-        }
+    public static CurrentTimeEncoder getEncoder() {
+        return sEncoder;
     }
 
-    /* Bluetooth DST Offset Codes */
-    private static final byte DST_STANDARD = 0x0;
-    private static final byte DST_HALF     = 0x2;
-    private static final byte DST_SINGLE   = 0x4;
-    private static final byte DST_DOUBLE   = 0x8;
-    private static final byte DST_UNKNOWN = (byte) 0xFF;
+    /**
+     * Return the transition table of the default time zone.
+     */
+    public static ZoneTransitions getZoneTransitions() {
+        return sEncoder.getZoneTransitions();
+    }
 
     /**
-     * Convert a raw DST offset (in 30 minute intervals) to the
-     * corresponding Bluetooth DST offset code.
+     * Rebuild the zone transition table after the default time zone changes.
+     */
+    public static void onTimeZoneChanged() {
+        sEncoder.setTimeZone(TimeZone.getDefault());
+    }
+
+    /**
+     * Rebuild the zone transition table if the system clock was set
+     * outside of its window.
+     */
+    public static void onClockChanged(long timestamp) {
+        sEncoder.onClockChanged(timestamp);
+    }
+
+    /**
+     * Construct the field values for a Current Time characteristic
+     * from the given epoch timestamp and adjustment reason.
      */
-    private static byte getDstOffsetCode(int rawOffset) {
-        switch (rawOffset) {
-            case 0:
-                return DST_STANDARD;
-            case 1:
-                return DST_HALF;
-            case 2:
-                return DST_SINGLE;
-            case 4:
-                return DST_DOUBLE;
-            default:
-                return DST_UNKNOWN;
+    public static byte[] getExactTime(long timestamp, byte adjustReason) {
+        byte[] field = new byte[CurrentTimeEncoder.EXACT_TIME_SIZE];
+        sEncoder.encodeExactTime(timestamp, adjustReason, field, 0);
+        return field;
+    }
+
+    /**
+     * Construct the field values for a Local Time Information characteristic
+     * from the given epoch timestamp.
+     */
+    public static byte[] getLocalTimeInfo(long timestamp) {
+        byte[] field = new byte[CurrentTimeEncoder.LOCAL_TIME_INFO_SIZE];
+        sEncoder.encodeLocalTimeInfo(timestamp, field, 0);
+        return field;
+    }
+
+    /**
+     * Construct the field values for a Time with DST characteristic,
+     * describing the next DST change after the given epoch timestamp.
+     * The time of the change is given in local time before the change.
+     * If no change is known, the date is zero (unknown) and the DST
+     * offset is unknown.
+     */
+    public static byte[] getTimeWithDst(long timestamp) {
+        byte[] field = new byte[TIME_WITH_DST_SIZE];
+        ZoneTransitions transitions = sEncoder.getZoneTransitions();
+        int index = transitions.indexOf(timestamp);
+        int change = (index < 0) ? -1 : transitions.getNextDstChange(index);
+        if (change < 0) {
+            field[CurrentTimeEncoder.DATE_TIME_SIZE] = CurrentTimeEncoder.DST_UNKNOWN;
+            return field;
         }
+
+        long local = transitions.getStart(change)
+                + transitions.getZoneOffset(change - 1) + transitions.getDstOffset(change - 1);
+        int offset = CurrentTimeEncoder.encodeDateTime(local, field, 0);
+        // DST Offset after the change
+        field[offset] = CurrentTimeEncoder.getDstOffsetCode(
+                transitions.getDstOffset(change) / CurrentTimeEncoder.HALF_HOUR_MILLIS);
+        return field;
     }
 }
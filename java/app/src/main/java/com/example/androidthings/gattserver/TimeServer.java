@@ -0,0 +1,973 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Current Time Service logic, independent of the Bluetooth stack.
+ *
+ * Receives events from a {@link GattTransport}, hands them to a bounded
+ * {@link GattWorker} so slow handlers never stall the transport's thread,
+ * and answers requests and sends notifications back through the same
+ * transport.
+ *
+ * @param <D> remote device type
+ */
+public class TimeServer<D> implements GattTransport.Callback<D> {
+    private static final String TAG = TimeServer.class.getSimpleName();
+
+    private static final int GATT_WORKER_LANES = 2;
+    private static final int GATT_WORKER_QUEUE_CAPACITY = 64;
+    /* Time to wait for the rest of a burst of clock or time zone changes */
+    private static final long TIME_CHANGE_WINDOW_MILLIS = 100;
+    /* Interval between periodic Current Time notifications, unless configured */
+    private static final long DEFAULT_NOTIFY_PERIOD_MILLIS =
+            NotificationScheduler.PERIOD_PER_MINUTE;
+    /* Interval between timeout checks, idle evictions and subscription store flushes */
+    private static final long HOUSEKEEPING_PERIOD_MILLIS = 1000;
+    /* Staging buffers shared by all devices for prepared writes */
+    private static final int PREPARED_WRITE_BUFFERS = 8;
+    /* Attributes a single device may stage prepared writes for */
+    private static final int PREPARED_WRITES_PER_DEVICE = 2;
+    /* Number of published time values retained for the history characteristic */
+    private static final int TIME_HISTORY_CAPACITY = 256;
+    /* Number of clock and time zone adjustments retained */
+    private static final int ADJUSTMENT_HISTORY_CAPACITY = 128;
+    /* Maximum notifications waiting per device before the oldest is dropped */
+    private static final int MAX_PENDING_NOTIFICATIONS = 4;
+    /*
+     * Wait for an indication confirmation before giving up on the link,
+     * matching the ATT transaction timeout
+     */
+    private static final long INDICATION_TIMEOUT_MILLIS = 30000;
+    /* Wait for the stack to complete a notification before sending the next */
+    private static final long NOTIFICATION_TIMEOUT_MILLIS = 5000;
+    /* Number of recent events kept for dumps */
+    private static final int EVENT_LOG_CAPACITY = 1024;
+    /*
+     * Devices named in the event log per admitted connection, covering
+     * rejected connections and devices that have recently disconnected
+     */
+    private static final int EVENT_LOG_DEVICES_PER_CONNECTION = 4;
+    /* Connections admitted at once, leaving the controller a spare slot */
+    private static final int DEFAULT_MAX_CONNECTIONS = 6;
+    /* Time without activity after which a connection may be evicted */
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+
+    /**
+     * Receives the server load whenever it changes. Called on a worker thread.
+     */
+    public interface LoadListener {
+        void onLoadChanged(int connections, int subscribers);
+    }
+
+    private final GattTransport<D> mTransport;
+    /* Admitted connections and their last activity */
+    private final ConnectionManager<D> mConnectionManager;
+    /* Devices that may have per-connection state, until they disconnect */
+    private final Set<D> mDevices = Collections.newSetFromMap(new ConcurrentHashMap<D, Boolean>());
+    private volatile LoadListener mLoadListener;
+    /* Configurations of bonded devices, kept across connections */
+    private volatile SubscriptionStore<D> mSubscriptionStore;
+    /* Collection of notification subscribers */
+    private final SubscriberRegistry<D> mRegisteredDevices = new SubscriberRegistry<>();
+    /* Collection of time history subscribers */
+    private final SubscriberRegistry<D> mHistorySubscribers = new SubscriberRegistry<>();
+    /* Collection of adjustment history subscribers */
+    private final SubscriberRegistry<D> mAdjustmentSubscribers = new SubscriberRegistry<>();
+    /* Negotiated ATT_MTU of each connected device */
+    private final MtuTracker<D> mMtuTracker = new MtuTracker<>();
+    /* Recently published time values, streamed to history subscribers */
+    private final TimeHistory mTimeHistory = new TimeHistory(TimeProfile.getEncoder(),
+            TIME_HISTORY_CAPACITY);
+    /* Recent clock and time zone adjustments, streamed on request */
+    private final AdjustmentHistory mAdjustmentHistory =
+            new AdjustmentHistory(ADJUSTMENT_HISTORY_CAPACITY);
+    /* Pre-encoded payloads for characteristic reads */
+    private final TimePayloadCache mPayloadCache =
+            new TimePayloadCache(TimeProfile.getEncoder());
+    /* Dispatches incoming requests to attribute handlers */
+    private final GattRequestRouter<D> mRequestRouter;
+    /* Drives periodic notifications */
+    private final NotificationScheduler mNotificationScheduler;
+    /* Runs timeout checks, idle evictions and store flushes while started */
+    private ScheduledThreadPoolExecutor mHousekeeping;
+    /* Processes transport events off the transport's thread */
+    private final GattWorker mGattWorker;
+    /* Latencies and event counts, served by the diagnostics characteristic */
+    private final ServerMetrics mMetrics = new ServerMetrics();
+    /* Result of the last Reference Time Update request */
+    private volatile byte mTimeUpdateResult = TimeProfile.UPDATE_RESULT_NOT_ATTEMPTED;
+    /* Recent events, recorded instead of logging on the request path */
+    private final EventLog<D> mEventLog;
+
+    public TimeServer(GattTransport<D> transport) {
+        this(transport, DEFAULT_NOTIFY_PERIOD_MILLIS);
+    }
+
+    /**
+     * @param notifyPeriodMillis Interval between periodic Current Time
+     *                           notifications, e.g. one of the
+     *                           {@link NotificationScheduler} periods.
+     */
+    public TimeServer(GattTransport<D> transport, long notifyPeriodMillis) {
+        this(transport, DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT_MILLIS, notifyPeriodMillis);
+    }
+
+    /**
+     * @param maxConnections Connections admitted at once.
+     * @param idleTimeoutMillis Time without activity after which a
+     *                          connection may be evicted to make room.
+     * @param notifyPeriodMillis Interval between periodic Current Time
+     *                           notifications.
+     */
+    public TimeServer(GattTransport<D> transport, int maxConnections, long idleTimeoutMillis,
+                      long notifyPeriodMillis) {
+        mTransport = transport;
+        mEventLog = new EventLog<>(EVENT_LOG_CAPACITY, EventLog.INFO,
+                (int) Math.min((long) maxConnections * EVENT_LOG_DEVICES_PER_CONNECTION,
+                        EventLog.MAX_DEVICES));
+        mNotificationScheduler = new NotificationScheduler(notifyPeriodMillis, mTickListener);
+        mConnectionManager = new ConnectionManager<>(transport, maxConnections,
+                idleTimeoutMillis, mConnectionListener);
+        mRequestRouter = createRequestRouter();
+        mGattWorker = new GattWorker("gatt-worker", GATT_WORKER_LANES,
+                GATT_WORKER_QUEUE_CAPACITY);
+        mNotificationDispatcher.setMerger(new CurrentTimeMerger(mMetrics));
+    }
+
+    /**
+     * Start periodic notifications. Called once the transport is open.
+     */
+    public synchronized void start() {
+        mNotificationScheduler.start();
+        if (mHousekeeping != null) return;
+
+        mHousekeeping = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "housekeeping");
+            }
+        });
+        mHousekeeping.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                mNotificationDispatcher.checkTimeouts();
+                mConnectionManager.evictIdle();
+                SubscriptionStore<D> store = mSubscriptionStore;
+                if (store != null) {
+                    store.flush();
+                }
+            }
+        }, HOUSEKEEPING_PERIOD_MILLIS, HOUSEKEEPING_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop periodic notifications, end every connection and log the
+     * server metrics. Called before the transport is closed.
+     */
+    public void stop() {
+        mNotificationScheduler.stop();
+        synchronized (this) {
+            if (mHousekeeping != null) {
+                mHousekeeping.shutdownNow();
+                mHousekeeping = null;
+            }
+        }
+        // Closing the transport reports no disconnections, so end them
+        // here in order with each device's queued events
+        for (D device : new ArrayList<>(mDevices)) {
+            onConnectionStateChange(device, false);
+        }
+        SubscriptionStore<D> store = mSubscriptionStore;
+        if (store != null) {
+            store.flush();
+        }
+        Log.d(TAG, "Payload cache hits: " + mPayloadCache.getHitCount()
+                + ", misses: " + mPayloadCache.getMissCount());
+        Log.d(TAG, "Notifications delivered: " + mNotificationDispatcher.getDeliveredCount()
+                + ", failed: " + mNotificationDispatcher.getFailedCount()
+                + ", dropped: " + mNotificationDispatcher.getDroppedCount()
+                + ", timed out: " + mNotificationDispatcher.getTimedOutCount()
+                + ", merged: " + mNotificationDispatcher.getMergedCount());
+        Log.d(TAG, "Time changes: " + mTimeChangeCoalescer.getChangeCount()
+                + ", coalesced: " + mTimeChangeCoalescer.getSuppressedCount());
+        Log.d(TAG, "GATT worker completed: " + mGattWorker.getCompletedCount()
+                + ", rejected: " + mGattWorker.getRejectedCount()
+                + ", max depth: " + mGattWorker.getMaxQueueDepth()
+                + ", avg wait: " + mGattWorker.getAverageWaitNanos() / 1000 + "us"
+                + ", max wait: " + mGattWorker.getMaxWaitNanos() / 1000 + "us");
+        Log.d(TAG, "Notification ticks: " + mNotificationScheduler.getTickCount()
+                + ", avg jitter: " + mNotificationScheduler.getAverageJitterNanos() / 1000 + "us"
+                + ", max jitter: " + mNotificationScheduler.getMaxJitterNanos() / 1000 + "us");
+        Log.d(TAG, "Connections rejected: " + mConnectionManager.getRejectedCount()
+                + ", evicted: " + mConnectionManager.getEvictedCount());
+        for (int op = 0; op < ServerMetrics.OP_COUNT; op++) {
+            LatencyHistogram latencies = mMetrics.getLatencies(op);
+            Log.d(TAG, ServerMetrics.getOperationName(op) + " count: " + latencies.getCount()
+                    + ", avg: " + latencies.getAverageNanos() / 1000 + "us"
+                    + ", p99: " + latencies.getPercentileNanos(99) / 1000 + "us"
+                    + ", max: " + latencies.getMaxNanos() / 1000 + "us");
+        }
+    }
+
+    public ServerMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public EventLog<D> getEventLog() {
+        return mEventLog;
+    }
+
+    /**
+     * Keep the subscriptions of bonded devices in the given store, and
+     * restore them when those devices reconnect. The store should be
+     * loaded before the transport is opened.
+     */
+    public void setSubscriptionStore(SubscriptionStore<D> store) {
+        mSubscriptionStore = store;
+    }
+
+    public ConnectionManager<D> getConnectionManager() {
+        return mConnectionManager;
+    }
+
+    public NotificationDispatcher<D> getNotificationDispatcher() {
+        return mNotificationDispatcher;
+    }
+
+    /**
+     * Set the listener told about connection and subscriber counts.
+     */
+    public void setLoadListener(LoadListener listener) {
+        mLoadListener = listener;
+    }
+
+    private void reportLoad() {
+        LoadListener listener = mLoadListener;
+        if (listener != null) {
+            listener.onLoadChanged(mConnectionManager.getConnectionCount(),
+                    mRegisteredDevices.snapshot().size());
+        }
+    }
+
+    /**
+     * Release the worker threads. The server cannot be restarted afterwards.
+     */
+    public void shutdown() {
+        mTimeChangeCoalescer.shutdown();
+        mGattWorker.shutdown();
+    }
+
+    /**
+     * Set how long to wait for the rest of a burst of time changes before
+     * notifying subscribers once for all of them. Zero notifies right away.
+     */
+    public void setTimeChangeWindow(long windowMillis) {
+        mTimeChangeCoalescer.setWindowMillis(windowMillis);
+    }
+
+    /**
+     * Report a change of the system clock or time zone to subscribers,
+     * and record it in the adjustment history. Must not be called from
+     * more than one thread at a time.
+     *
+     * Reads reflect the change right away, while subscribers are notified
+     * once per burst of changes, see {@link #setTimeChangeWindow(long)}.
+     * @param adjustReason One of the {@link TimeProfile} adjustment flags.
+     * @param deltaMillis Change of local time caused by the adjustment.
+     */
+    public void onTimeChanged(long timestamp, byte adjustReason, long deltaMillis) {
+        if ((adjustReason & TimeProfile.ADJUST_TIMEZONE) != 0) {
+            TimeProfile.onTimeZoneChanged();
+        }
+        if (adjustReason != TimeProfile.ADJUST_NONE) {
+            TimeProfile.onClockChanged(timestamp);
+            mPayloadCache.invalidate();
+            mAdjustmentHistory.append(timestamp, adjustReason, deltaMillis);
+        }
+        mTimeChangeCoalescer.onTimeChanged(adjustReason);
+    }
+
+    /**
+     * Notifies subscribers once per burst of time changes.
+     */
+    private final TimeChangeCoalescer mTimeChangeCoalescer = new TimeChangeCoalescer(
+            TIME_CHANGE_WINDOW_MILLIS, new TimeChangeCoalescer.Listener() {
+        @Override
+        public void onTimeChanged(byte adjustReason, int changes) {
+            mMetrics.add(ServerMetrics.COUNT_TIME_CHANGES_COALESCED, changes - 1);
+            mNotificationScheduler.realign();
+            notifyRegisteredDevices(System.currentTimeMillis(), adjustReason);
+        }
+    });
+
+    /**
+     * Sends the periodic notifications to subscribers while the server is running.
+     */
+    private final NotificationScheduler.Listener mTickListener =
+            new NotificationScheduler.Listener() {
+        @Override
+        public void onTick(long timestamp) {
+            mMetrics.recordLatency(ServerMetrics.OP_TICK_LATENESS,
+                    mNotificationScheduler.getLastJitterNanos());
+            notifyRegisteredDevices(timestamp, TimeProfile.ADJUST_NONE);
+        }
+    };
+
+    /**
+     * Records admission control decisions.
+     */
+    private final ConnectionManager.Listener<D> mConnectionListener =
+            new ConnectionManager.Listener<D>() {
+        @Override
+        public void onConnectionRejected(D device) {
+            mMetrics.increment(ServerMetrics.COUNT_CONNECTIONS_REJECTED);
+            mEventLog.log(EventLog.WARN, EventLog.EVENT_CONNECTION_REJECTED, device, 0);
+        }
+
+        @Override
+        public void onConnectionEvicted(D device, long idleMillis) {
+            mMetrics.increment(ServerMetrics.COUNT_CONNECTIONS_EVICTED);
+            mEventLog.log(EventLog.INFO, EventLog.EVENT_CONNECTION_EVICTED, device,
+                    (int) (idleMillis / 1000));
+        }
+    };
+
+    /**
+     * Send a time service notification to any devices that are subscribed
+     * to the characteristic.
+     */
+    private void notifyRegisteredDevices(long timestamp, byte adjustReason) {
+        long start = System.nanoTime();
+        mTimeHistory.append(timestamp, adjustReason);
+
+        SubscriberRegistry.Snapshot<D> subscribers = mRegisteredDevices.snapshot();
+        mEventLog.log(EventLog.VERBOSE, EventLog.EVENT_NOTIFY, null, subscribers.size());
+        if (subscribers.size() == 0) {
+            return;
+        }
+        byte[] exactTime = TimeProfile.getExactTime(timestamp, adjustReason);
+
+        for (int i = 0; i < subscribers.size(); i++) {
+            boolean indicate = (subscribers.getConfiguration(i)
+                    & SubscriberRegistry.CONFIG_INDICATE) != 0;
+            mNotificationDispatcher.enqueue(subscribers.getDevice(i),
+                    TimeProfile.CURRENT_TIME, exactTime, indicate);
+        }
+        mMetrics.recordLatency(ServerMetrics.OP_NOTIFY, System.nanoTime() - start);
+    }
+
+    /**
+     * Pushes individual notifications to the transport on behalf of
+     * the dispatcher.
+     */
+    private final NotificationDispatcher.Sender<D> mNotificationSender =
+            new NotificationDispatcher.Sender<D>() {
+        @Override
+        public boolean send(D device, UUID characteristic, byte[] value, boolean confirm) {
+            return mTransport.notifyCharacteristicChanged(device, characteristic, value, confirm);
+        }
+    };
+
+    /**
+     * Receives the delivery outcome of each notification.
+     */
+    private final NotificationDispatcher.Listener<D> mDeliveryListener =
+            new NotificationDispatcher.Listener<D>() {
+        @Override
+        public void onDeliveryResult(D device, UUID characteristic, int status) {
+            if (status != GattStatus.GATT_SUCCESS) {
+                mEventLog.log(EventLog.WARN, EventLog.EVENT_NOTIFICATION_FAILED, device, status);
+                mMetrics.increment(ServerMetrics.COUNT_NOTIFICATION_FAILURES);
+            }
+            if (status == NotificationDispatcher.STATUS_TIMEOUT) {
+                // The bearer is unusable after an ATT timeout
+                mTransport.cancelConnection(device);
+            }
+            mBulkTransfer.onDeliveryResult(device, characteristic, status);
+        }
+
+        @Override
+        public void onIndicationConfirmed(D device, long roundTripNanos) {
+            mMetrics.recordLatency(ServerMetrics.OP_INDICATION_CONFIRM, roundTripNanos);
+        }
+    };
+
+    private final NotificationDispatcher<D> mNotificationDispatcher =
+            new NotificationDispatcher<>(mNotificationSender, mDeliveryListener,
+                    MAX_PENDING_NOTIFICATIONS, INDICATION_TIMEOUT_MILLIS,
+                    NOTIFICATION_TIMEOUT_MILLIS);
+
+    /**
+     * Streams the time history in MTU-sized batches of records.
+     */
+    private final BulkTransfer<D> mBulkTransfer = new BulkTransfer<>(
+            mNotificationDispatcher, mMtuTracker, new BulkTransfer.Listener<D>() {
+        @Override
+        public void onTransferFinished(D device, UUID characteristic,
+                                       int chunks, boolean completed) {
+            mEventLog.log(EventLog.DEBUG, completed
+                    ? EventLog.EVENT_TRANSFER_COMPLETED : EventLog.EVENT_TRANSFER_ABORTED,
+                    device, chunks);
+        }
+    });
+
+    /**
+     * Send the stored time history to a device, packing as many records
+     * into each notification as its MTU allows.
+     */
+    private void sendTimeHistory(final D device) {
+        // Queue behind the current request so the CCCD write response goes first
+        mGattWorker.execute(device, new GattWorker.Job() {
+            @Override
+            public void run() {
+                mBulkTransfer.start(device, TimeProfile.TIME_HISTORY,
+                        new BulkTransfer.RecordSource(mTimeHistory.snapshot(),
+                                TimeHistory.RECORD_SIZE));
+            }
+
+            @Override
+            public void onRejected() {
+                mEventLog.log(EventLog.WARN, EventLog.EVENT_TRANSFER_REJECTED, device, 0);
+            }
+        });
+    }
+
+    /**
+     * Stream a range of the adjustment history to a device.
+     */
+    private void sendAdjustmentHistory(final D device, final long first, final int count) {
+        // Queue behind the current request so the write response goes first
+        mGattWorker.execute(device, new GattWorker.Job() {
+            @Override
+            public void run() {
+                mBulkTransfer.start(device, TimeProfile.ADJUSTMENT_HISTORY,
+                        mAdjustmentHistory.openRange(first, count));
+            }
+
+            @Override
+            public void onRejected() {
+                mEventLog.log(EventLog.WARN, EventLog.EVENT_TRANSFER_REJECTED, device, 0);
+            }
+        });
+    }
+
+    /**
+     * Build the request router with a handler for each attribute
+     * of the Time Profile.
+     */
+    private GattRequestRouter<D> createRequestRouter() {
+        GattRequestRouter<D> router = new GattRequestRouter<>(mResponder,
+                new BufferPool(GattRequestRouter.MAX_ATTRIBUTE_LENGTH, PREPARED_WRITE_BUFFERS),
+                PREPARED_WRITES_PER_DEVICE);
+
+        router.registerCharacteristic(TimeProfile.CURRENT_TIME,
+                new GattRequestRouter.AttributeHandler<D>() {
+            @Override
+            public byte[] onRead(D device) {
+                return mPayloadCache.getExactTime(System.currentTimeMillis());
+            }
+        });
+
+        router.registerCharacteristic(TimeProfile.LOCAL_TIME_INFO,
+                new GattRequestRouter.AttributeHandler<D>() {
+            @Override
+            public byte[] onRead(D device) {
+                return mPayloadCache.getLocalTimeInfo(System.currentTimeMillis());
+            }
+        });
+
+        router.registerCharacteristic(TimeProfile.TIME_WITH_DST,
+                new GattRequestRouter.AttributeHandler<D>() {
+            @Override
+            public byte[] onRead(D device) {
+                return TimeProfile.getTimeWithDst(System.currentTimeMillis());
+            }
+        });
+
+        router.registerCharacteristic(TimeProfile.TIME_UPDATE_CONTROL_POINT,
+                new GattRequestRouter.AttributeHandler<D>() {
+            @Override
+            public int onWrite(D device, byte[] value) {
+                if (value == null || value.length != 1) {
+                    return GattStatus.GATT_INVALID_ATTRIBUTE_LENGTH;
+                }
+                if (value[0] == TimeProfile.UPDATE_GET) {
+                    // The platform keeps the system clock in sync on its own,
+                    // there is no reference this server can query on demand
+                    mTimeUpdateResult = TimeProfile.UPDATE_RESULT_NO_CONNECTION;
+                }
+                // Updates never remain pending, so there is nothing to cancel
+                return GattStatus.GATT_SUCCESS;
+            }
+
+            @Override
+            public boolean isWritable() {
+                return true;
+            }
+        });
+
+        router.registerCharacteristic(TimeProfile.TIME_UPDATE_STATE,
+                new GattRequestRouter.AttributeHandler<D>() {
+            @Override
+            public byte[] onRead(D device) {
+                return new byte[] {TimeProfile.UPDATE_STATE_IDLE, mTimeUpdateResult};
+            }
+        });
+
+        router.registerCharacteristic(TimeProfile.ADJUSTMENT_HISTORY,
+                new GattRequestRouter.AttributeHandler<D>() {
+            @Override
+            public int onWrite(D device, byte[] value) {
+                if (value == null || value.length == 0) {
+                    return GattStatus.GATT_INVALID_ATTRIBUTE_LENGTH;
+                }
+                switch (value[0]) {
+                    case TimeProfile.HISTORY_REPORT_RANGE:
+                        if (value.length != TimeProfile.HISTORY_REQUEST_SIZE) {
+                            return GattStatus.GATT_INVALID_ATTRIBUTE_LENGTH;
+                        }
+                        // Records are only delivered as notifications
+                        if (!mAdjustmentSubscribers.contains(device)) {
+                            return GattStatus.GATT_CCCD_IMPROPERLY_CONFIGURED;
+                        }
+                        long first = (value[1] & 0xFFL) | (value[2] & 0xFFL) << 8
+                                | (value[3] & 0xFFL) << 16 | (value[4] & 0xFFL) << 24;
+                        int count = (value[5] & 0xFF) | (value[6] & 0xFF) << 8;
+                        sendAdjustmentHistory(device, first, count);
+                        return GattStatus.GATT_SUCCESS;
+                    case TimeProfile.HISTORY_ABORT:
+                        mBulkTransfer.cancel(device, TimeProfile.ADJUSTMENT_HISTORY);
+                        return GattStatus.GATT_SUCCESS;
+                    default:
+                        return GattStatus.GATT_REQUEST_NOT_SUPPORTED;
+                }
+            }
+
+            @Override
+            public boolean isWritable() {
+                return true;
+            }
+        });
+
+        router.registerCharacteristic(DiagnosticsProfile.METRICS_SNAPSHOT,
+                new GattRequestRouter.AttributeHandler<D>() {
+            @Override
+            public byte[] onRead(D device) {
+                return mMetrics.encodeSnapshot();
+            }
+        });
+
+        router.registerDescriptor(TimeProfile.CURRENT_TIME, TimeProfile.CLIENT_CONFIG,
+                new ClientConfigHandler<D>(mRegisteredDevices,
+                        SubscriberRegistry.CONFIG_NOTIFY | SubscriberRegistry.CONFIG_INDICATE) {
+            @Override
+            protected void onConfigurationChanged(D device, boolean enabled) {
+                onSubscriptionChanged(device, TimeProfile.CURRENT_TIME, enabled);
+                storeConfiguration(device, SubscriptionStore.SLOT_CURRENT_TIME,
+                        mRegisteredDevices);
+            }
+        });
+
+        router.registerDescriptor(TimeProfile.TIME_HISTORY, TimeProfile.CLIENT_CONFIG,
+                new ClientConfigHandler<D>(mHistorySubscribers) {
+            @Override
+            protected void onConfigurationChanged(D device, boolean enabled) {
+                onSubscriptionChanged(device, TimeProfile.TIME_HISTORY, enabled);
+                storeConfiguration(device, SubscriptionStore.SLOT_TIME_HISTORY,
+                        mHistorySubscribers);
+                if (enabled) {
+                    sendTimeHistory(device);
+                } else {
+                    mBulkTransfer.cancel(device, TimeProfile.TIME_HISTORY);
+                }
+            }
+        });
+
+        router.registerDescriptor(TimeProfile.ADJUSTMENT_HISTORY, TimeProfile.CLIENT_CONFIG,
+                new ClientConfigHandler<D>(mAdjustmentSubscribers) {
+            @Override
+            protected void onConfigurationChanged(D device, boolean enabled) {
+                onSubscriptionChanged(device, TimeProfile.ADJUSTMENT_HISTORY, enabled);
+                if (!enabled) {
+                    mBulkTransfer.cancel(device, TimeProfile.ADJUSTMENT_HISTORY);
+                }
+            }
+        });
+
+        return router;
+    }
+
+    private void storeConfiguration(D device, int slot, SubscriberRegistry<D> subscribers) {
+        SubscriptionStore<D> store = mSubscriptionStore;
+        if (store != null) {
+            store.setConfiguration(device, slot, subscribers.getConfiguration(device));
+        }
+    }
+
+    /**
+     * Re-enable the stored subscriptions of a bonded device, which does
+     * not write its CCCDs again after reconnecting.
+     */
+    private void restoreSubscriptions(D device) {
+        SubscriptionStore<D> store = mSubscriptionStore;
+        if (store == null) return;
+
+        int config = store.getConfiguration(device, SubscriptionStore.SLOT_CURRENT_TIME);
+        int historyConfig = store.getConfiguration(device, SubscriptionStore.SLOT_TIME_HISTORY);
+        if (config == SubscriberRegistry.CONFIG_NONE
+                && historyConfig == SubscriberRegistry.CONFIG_NONE) {
+            return;
+        }
+
+        mEventLog.log(EventLog.DEBUG, EventLog.EVENT_SUBSCRIPTIONS_RESTORED, device,
+                config | historyConfig << 8);
+        if (config != SubscriberRegistry.CONFIG_NONE) {
+            mRegisteredDevices.setConfiguration(device, config);
+        }
+        if (historyConfig != SubscriberRegistry.CONFIG_NONE) {
+            mHistorySubscribers.setConfiguration(device, historyConfig);
+            sendTimeHistory(device);
+        }
+    }
+
+    /**
+     * Record the indication round trips of a device ending its connection.
+     */
+    private void logConfirmationLatency(D device) {
+        LatencyHistogram latencies = mNotificationDispatcher.getConfirmationLatencies(device);
+        if (latencies == null || latencies.getCount() == 0) return;
+
+        mEventLog.log(EventLog.DEBUG, EventLog.EVENT_INDICATION_LATENCY, device,
+                (int) (latencies.getAverageNanos() / 1000));
+        mEventLog.log(EventLog.DEBUG, EventLog.EVENT_INDICATION_LATENCY_MAX, device,
+                (int) (latencies.getMaxNanos() / 1000));
+    }
+
+    private void onSubscriptionChanged(D device, UUID characteristic, boolean enabled) {
+        mMetrics.increment(enabled
+                ? ServerMetrics.COUNT_SUBSCRIPTIONS : ServerMetrics.COUNT_UNSUBSCRIPTIONS);
+        mEventLog.log(EventLog.DEBUG,
+                enabled ? EventLog.EVENT_SUBSCRIBED : EventLog.EVENT_UNSUBSCRIBED,
+                device, GattRequestRouter.getShortUuid(characteristic));
+        if (enabled) {
+            // Covers devices connected before the server started
+            mNotificationDispatcher.addDevice(device);
+        }
+        reportLoad();
+    }
+
+    /**
+     * Sends request responses generated by the router.
+     */
+    private final GattRequestRouter.Responder<D> mResponder =
+            new GattRequestRouter.Responder<D>() {
+        @Override
+        public void sendResponse(D device, int requestId, int status, int offset, byte[] value) {
+            if (status != GattStatus.GATT_SUCCESS) {
+                mMetrics.increment(ServerMetrics.COUNT_REQUEST_FAILURES);
+            }
+            mTransport.sendResponse(device, requestId, status, offset, value);
+        }
+    };
+
+    /*
+     * Transport events. Every event is handed to the worker and processed
+     * by mRequestHandler.
+     */
+
+    @Override
+    public void onConnectionStateChange(final D device, final boolean connected) {
+        if (connected) {
+            mDevices.add(device);
+        }
+        mGattWorker.executeEvent(device, new EventJob(ServerMetrics.OP_CONNECTION_STATE) {
+            @Override
+            void handle() {
+                mRequestHandler.onConnectionStateChange(device, connected);
+            }
+        });
+    }
+
+    @Override
+    public void onNotificationSent(final D device, final int status) {
+        mGattWorker.executeEvent(device, new EventJob(ServerMetrics.OP_NOTIFICATION_SENT) {
+            @Override
+            void handle() {
+                mRequestHandler.onNotificationSent(device, status);
+            }
+        });
+    }
+
+    @Override
+    public void onMtuChanged(final D device, final int mtu) {
+        mDevices.add(device);
+        mGattWorker.executeEvent(device, new EventJob(ServerMetrics.OP_MTU_CHANGED) {
+            @Override
+            void handle() {
+                mRequestHandler.onMtuChanged(device, mtu);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicReadRequest(final D device, final int requestId,
+                                            final int offset, final UUID characteristic) {
+        mGattWorker.execute(device, new RequestJob(ServerMetrics.OP_CHARACTERISTIC_READ,
+                device, requestId, true) {
+            @Override
+            void handle() {
+                mRequestHandler.onCharacteristicReadRequest(device, requestId, offset,
+                        characteristic);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicWriteRequest(final D device, final int requestId,
+                                             final UUID characteristic,
+                                             final boolean preparedWrite,
+                                             final boolean responseNeeded,
+                                             final int offset, final byte[] value) {
+        mGattWorker.execute(device, new RequestJob(ServerMetrics.OP_CHARACTERISTIC_WRITE,
+                device, requestId, responseNeeded) {
+            @Override
+            void handle() {
+                mRequestHandler.onCharacteristicWriteRequest(device, requestId,
+                        characteristic, preparedWrite, responseNeeded, offset, value);
+            }
+        });
+    }
+
+    @Override
+    public void onDescriptorReadRequest(final D device, final int requestId, final int offset,
+                                        final UUID characteristic, final UUID descriptor) {
+        mGattWorker.execute(device, new RequestJob(ServerMetrics.OP_DESCRIPTOR_READ,
+                device, requestId, true) {
+            @Override
+            void handle() {
+                mRequestHandler.onDescriptorReadRequest(device, requestId, offset,
+                        characteristic, descriptor);
+            }
+        });
+    }
+
+    @Override
+    public void onDescriptorWriteRequest(final D device, final int requestId,
+                                         final UUID characteristic, final UUID descriptor,
+                                         final boolean preparedWrite,
+                                         final boolean responseNeeded,
+                                         final int offset, final byte[] value) {
+        mGattWorker.execute(device, new RequestJob(ServerMetrics.OP_DESCRIPTOR_WRITE,
+                device, requestId, responseNeeded) {
+            @Override
+            void handle() {
+                mRequestHandler.onDescriptorWriteRequest(device, requestId, characteristic,
+                        descriptor, preparedWrite, responseNeeded, offset, value);
+            }
+        });
+    }
+
+    @Override
+    public void onExecuteWrite(final D device, final int requestId, final boolean execute) {
+        mGattWorker.execute(device, new RequestJob(ServerMetrics.OP_EXECUTE_WRITE,
+                device, requestId, true) {
+            @Override
+            void handle() {
+                mRequestHandler.onExecuteWrite(device, requestId, execute);
+            }
+        });
+    }
+
+    /**
+     * Worker job for a state event. These must never be lost, so they are
+     * queued with {@link GattWorker#executeEvent}, which does not refuse
+     * them, and never run ahead of the device's queued requests.
+     */
+    private abstract class EventJob extends TimedJob {
+        EventJob(int op) {
+            super(op);
+        }
+    }
+
+    /**
+     * Worker job that records the time from its creation, when the event
+     * arrives, to the end of handling, including the time spent queued.
+     */
+    private abstract class TimedJob extends GattWorker.Job {
+        private final long mStartNanos = System.nanoTime();
+        private final int mOp;
+
+        TimedJob(int op) {
+            mOp = op;
+        }
+
+        /**
+         * Process the event.
+         */
+        abstract void handle();
+
+        @Override
+        public final void run() {
+            handle();
+            mMetrics.recordLatency(mOp, System.nanoTime() - mStartNanos);
+        }
+    }
+
+    /**
+     * Worker job for a request. A request that does not fit in the queue
+     * is answered right away so the peer is not left to time out.
+     */
+    private abstract class RequestJob extends TimedJob {
+        private final D mDevice;
+        private final int mRequestId;
+        private final boolean mResponseNeeded;
+
+        RequestJob(int op, D device, int requestId, boolean responseNeeded) {
+            super(op);
+            mDevice = device;
+            mRequestId = requestId;
+            mResponseNeeded = responseNeeded;
+            mDevices.add(device);
+            // The request counts as activity even if it is rejected
+            mConnectionManager.onActivity(device);
+        }
+
+        @Override
+        public void onRejected() {
+            mEventLog.log(EventLog.WARN, EventLog.EVENT_REQUEST_REJECTED, mDevice, 0);
+            if (mResponseNeeded) {
+                mResponder.sendResponse(mDevice, mRequestId,
+                        GattStatus.GATT_INSUFFICIENT_RESOURCES, 0, null);
+            } else {
+                mMetrics.increment(ServerMetrics.COUNT_REQUEST_FAILURES);
+            }
+        }
+    }
+
+    /**
+     * Handles transport events on the worker thread.
+     * All read/write requests for characteristics and descriptors are handled here.
+     */
+    private final GattTransport.Callback<D> mRequestHandler = new GattTransport.Callback<D>() {
+
+        @Override
+        public void onConnectionStateChange(D device, boolean connected) {
+            if (connected) {
+                mEventLog.log(EventLog.INFO, EventLog.EVENT_CONNECTED, device, 0);
+                mMetrics.increment(ServerMetrics.COUNT_CONNECTIONS);
+                if (mConnectionManager.onConnected(device)) {
+                    mNotificationDispatcher.addDevice(device);
+                    restoreSubscriptions(device);
+                }
+            } else {
+                mEventLog.log(EventLog.INFO, EventLog.EVENT_DISCONNECTED, device, 0);
+                mMetrics.increment(ServerMetrics.COUNT_DISCONNECTIONS);
+                //Remove device from any active subscriptions
+                mRegisteredDevices.remove(device);
+                mHistorySubscribers.remove(device);
+                mAdjustmentSubscribers.remove(device);
+                mBulkTransfer.removeDevice(device);
+                logConfirmationLatency(device);
+                mNotificationDispatcher.removeDevice(device);
+                mRequestRouter.removeDevice(device);
+                mMtuTracker.removeDevice(device);
+                mConnectionManager.onDisconnected(device);
+                mDevices.remove(device);
+                mEventLog.removeDevice(device);
+            }
+            reportLoad();
+        }
+
+        @Override
+        public void onNotificationSent(D device, int status) {
+            // Subscribers being served are active even without requests
+            mConnectionManager.onActivity(device);
+            mNotificationDispatcher.onNotificationSent(device, status);
+        }
+
+        @Override
+        public void onMtuChanged(D device, int mtu) {
+            mEventLog.log(EventLog.DEBUG, EventLog.EVENT_MTU_CHANGED, device, mtu);
+            mMtuTracker.onMtuChanged(device, mtu);
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(D device, int requestId, int offset,
+                                                UUID characteristic) {
+            int alias = GattRequestRouter.getShortUuid(characteristic);
+            mEventLog.log(EventLog.DEBUG, EventLog.EVENT_CHARACTERISTIC_READ, device, alias);
+            if (!mRequestRouter.dispatchCharacteristicRead(device, requestId, offset,
+                    characteristic)) {
+                // Invalid characteristic
+                mEventLog.log(EventLog.WARN, EventLog.EVENT_UNKNOWN_ATTRIBUTE, device, alias);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(D device, int requestId, UUID characteristic,
+                                                 boolean preparedWrite, boolean responseNeeded,
+                                                 int offset, byte[] value) {
+            int alias = GattRequestRouter.getShortUuid(characteristic);
+            mEventLog.log(EventLog.DEBUG, EventLog.EVENT_CHARACTERISTIC_WRITE, device, alias);
+            if (!mRequestRouter.dispatchCharacteristicWrite(device, requestId,
+                    characteristic, preparedWrite, responseNeeded, offset, value)) {
+                mEventLog.log(EventLog.WARN, EventLog.EVENT_UNKNOWN_ATTRIBUTE, device, alias);
+            }
+        }
+
+        @Override
+        public void onDescriptorReadRequest(D device, int requestId, int offset,
+                                            UUID characteristic, UUID descriptor) {
+            int alias = GattRequestRouter.getShortUuid(descriptor);
+            mEventLog.log(EventLog.DEBUG, EventLog.EVENT_DESCRIPTOR_READ, device, alias);
+            if (!mRequestRouter.dispatchDescriptorRead(device, requestId, offset,
+                    characteristic, descriptor)) {
+                mEventLog.log(EventLog.WARN, EventLog.EVENT_UNKNOWN_ATTRIBUTE, device, alias);
+            }
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(D device, int requestId,
+                                             UUID characteristic, UUID descriptor,
+                                             boolean preparedWrite, boolean responseNeeded,
+                                             int offset, byte[] value) {
+            int alias = GattRequestRouter.getShortUuid(descriptor);
+            mEventLog.log(EventLog.DEBUG, EventLog.EVENT_DESCRIPTOR_WRITE, device, alias);
+            if (!mRequestRouter.dispatchDescriptorWrite(device, requestId,
+                    characteristic, descriptor, preparedWrite, responseNeeded, offset, value)) {
+                mEventLog.log(EventLog.WARN, EventLog.EVENT_UNKNOWN_ATTRIBUTE, device, alias);
+            }
+        }
+
+        @Override
+        public void onExecuteWrite(D device, int requestId, boolean execute) {
+            mRequestRouter.dispatchExecuteWrite(device, requestId, execute);
+        }
+    };
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Precomputed table of the zone and DST offsets of a time zone over a
+ * window of time.
+ *
+ * The window is split into intervals over which both offsets are
+ * constant. Lookups are a binary search over the interval start times,
+ * so the time zone is only consulted while the table is built.
+ * Instances are immutable and can be shared between threads.
+ */
+public class ZoneTransitions {
+
+    /* Interval at which the offsets are sampled while building */
+    private static final long SCAN_STEP_MILLIS = 86400000L;
+
+    private final long[] mStarts;
+    private final int[] mZoneOffsets;
+    private final int[] mDstOffsets;
+    /* Index of the first later interval with a different DST offset, or -1 */
+    private final int[] mNextDstChanges;
+    private final int mSize;
+    private final long mUntil;
+
+    private ZoneTransitions(long[] starts, int[] zoneOffsets, int[] dstOffsets, int size,
+                            long until) {
+        mStarts = starts;
+        mZoneOffsets = zoneOffsets;
+        mDstOffsets = dstOffsets;
+        mSize = size;
+        mUntil = until;
+
+        mNextDstChanges = new int[size];
+        mNextDstChanges[size - 1] = -1;
+        for (int i = size - 2; i >= 0; i--) {
+            mNextDstChanges[i] = (dstOffsets[i + 1] != dstOffsets[i])
+                    ? i + 1 : mNextDstChanges[i + 1];
+        }
+    }
+
+    /**
+     * Build the table for the time zone between two epoch timestamps,
+     * using the zone and DST offsets that {@link Calendar} reports for it.
+     * The offsets are sampled once per day and each change is then
+     * located to the millisecond, so a change that is undone within the
+     * same day is not recorded.
+     */
+    public static ZoneTransitions build(TimeZone timeZone, long from, long until) {
+        Calendar calendar = new GregorianCalendar(timeZone);
+        long[] starts = new long[16];
+        int[] zoneOffsets = new int[16];
+        int[] dstOffsets = new int[16];
+        int size = 0;
+
+        long start = from;
+        int zoneOffset = getZoneOffset(calendar, start);
+        int dstOffset = getDstOffset(calendar);
+        while (true) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                zoneOffsets = Arrays.copyOf(zoneOffsets, size * 2);
+                dstOffsets = Arrays.copyOf(dstOffsets, size * 2);
+            }
+            starts[size] = start;
+            zoneOffsets[size] = zoneOffset;
+            dstOffsets[size] = dstOffset;
+            size++;
+
+            // Find a day on which the offsets differ, if any before the end
+            long low = start;
+            long high = start;
+            while (high < until - 1) {
+                high = Math.min(low + SCAN_STEP_MILLIS, until - 1);
+                if (getZoneOffset(calendar, high) != zoneOffset
+                        || getDstOffset(calendar) != dstOffset) {
+                    break;
+                }
+                low = high;
+            }
+            if (low == high) break;
+
+            // Narrow it down to the first instant with the new offsets
+            while (high - low > 1) {
+                long mid = low + (high - low) / 2;
+                if (getZoneOffset(calendar, mid) == zoneOffset
+                        && getDstOffset(calendar) == dstOffset) {
+                    low = mid;
+                } else {
+                    high = mid;
+                }
+            }
+            start = high;
+            zoneOffset = getZoneOffset(calendar, start);
+            dstOffset = getDstOffset(calendar);
+        }
+
+        return new ZoneTransitions(starts, zoneOffsets, dstOffsets, size, until);
+    }
+
+    /**
+     * Move the calendar to the timestamp and return its zone offset.
+     */
+    private static int getZoneOffset(Calendar calendar, long timestamp) {
+        calendar.setTimeInMillis(timestamp);
+        return calendar.get(Calendar.ZONE_OFFSET);
+    }
+
+    /**
+     * Return the DST offset at the calendar's current time.
+     */
+    private static int getDstOffset(Calendar calendar) {
+        return calendar.get(Calendar.DST_OFFSET);
+    }
+
+    /**
+     * Return true if the timestamp falls inside the window of the table.
+     */
+    public boolean covers(long timestamp) {
+        return timestamp >= mStarts[0] && timestamp < mUntil;
+    }
+
+    /**
+     * Return the index of the interval containing the timestamp, or -1
+     * if it falls outside the window of the table.
+     */
+    public int indexOf(long timestamp) {
+        if (!covers(timestamp)) return -1;
+
+        int index = Arrays.binarySearch(mStarts, 0, mSize, timestamp);
+        return (index >= 0) ? index : -index - 2;
+    }
+
+    /**
+     * Return the number of intervals in the table.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public long getStart(int index) {
+        return mStarts[index];
+    }
+
+    /**
+     * Return the end of the interval, exclusive.
+     */
+    public long getEnd(int index) {
+        return (index + 1 < mSize) ? mStarts[index + 1] : mUntil;
+    }
+
+    /**
+     * Return the standard zone offset of the interval, in milliseconds.
+     */
+    public int getZoneOffset(int index) {
+        return mZoneOffsets[index];
+    }
+
+    /**
+     * Return the DST offset of the interval, in milliseconds.
+     */
+    public int getDstOffset(int index) {
+        return mDstOffsets[index];
+    }
+
+    /**
+     * Return the index of the next interval after the given one in which
+     * the DST offset changes, or -1 if there is none in the table.
+     */
+    public int getNextDstChange(int index) {
+        return mNextDstChanges[index];
+    }
+}
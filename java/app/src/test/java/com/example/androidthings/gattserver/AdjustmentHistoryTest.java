@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link AdjustmentHistory} ranges once the ring has wrapped.
+ */
+public class AdjustmentHistoryTest {
+
+    private static final int CAPACITY = 4;
+    private static final int APPENDED = 10;
+    private static final long BASE_TIMESTAMP = 1483228800000L;
+    /* Room for two records per chunk */
+    private static final int CHUNK_LENGTH = 2 * AdjustmentHistory.RECORD_SIZE + 3;
+
+    private AdjustmentHistory mHistory;
+
+    @Before
+    public void setUp() {
+        mHistory = new AdjustmentHistory(CAPACITY);
+        for (int i = 0; i < APPENDED; i++) {
+            mHistory.append(BASE_TIMESTAMP + i, (byte) (i & 0xF), -i * 1000L);
+        }
+    }
+
+    @Test
+    public void rangeBeforeOldestStartsAtOldest() {
+        BulkTransfer.Source source = mHistory.openRange(0, APPENDED);
+        assertRecords(source.nextChunk(CHUNK_LENGTH), 6, 7);
+        assertRecords(source.nextChunk(CHUNK_LENGTH), 8, 9);
+        assertEndMarker(source.nextChunk(CHUNK_LENGTH), APPENDED);
+        assertNull(source.nextChunk(CHUNK_LENGTH));
+    }
+
+    @Test
+    public void rangeWithinRingEndsAtItsLimit() {
+        BulkTransfer.Source source = mHistory.openRange(7, 2);
+        assertRecords(source.nextChunk(CHUNK_LENGTH), 7, 8);
+        assertEndMarker(source.nextChunk(CHUNK_LENGTH), 9);
+        assertNull(source.nextChunk(CHUNK_LENGTH));
+    }
+
+    @Test
+    public void rangeSeesRecordsAppendedWhileStreaming() {
+        BulkTransfer.Source source = mHistory.openRange(8, 4);
+        assertRecords(source.nextChunk(CHUNK_LENGTH), 8, 9);
+        // Wraps the ring once more, overwriting the slot of record 6
+        mHistory.append(BASE_TIMESTAMP + APPENDED, (byte) (APPENDED & 0xF), -APPENDED * 1000L);
+        assertRecords(source.nextChunk(CHUNK_LENGTH), 10, 10);
+        assertEndMarker(source.nextChunk(CHUNK_LENGTH), 11);
+    }
+
+    @Test
+    public void rangeLappedByWriterSkipsOverwrittenRecords() {
+        BulkTransfer.Source source = mHistory.openRange(6, APPENDED);
+        for (int i = APPENDED; i < APPENDED + CAPACITY + 1; i++) {
+            mHistory.append(BASE_TIMESTAMP + i, (byte) (i & 0xF), -i * 1000L);
+        }
+        assertRecords(source.nextChunk(CHUNK_LENGTH), 11, 12);
+        assertRecords(source.nextChunk(CHUNK_LENGTH), 13, 14);
+        assertEndMarker(source.nextChunk(CHUNK_LENGTH), APPENDED + CAPACITY + 1);
+    }
+
+    @Test
+    public void rangeAfterNewestHoldsOnlyTheMarker() {
+        BulkTransfer.Source source = mHistory.openRange(APPENDED + 2, 5);
+        assertEndMarker(source.nextChunk(CHUNK_LENGTH), APPENDED + 2);
+        assertNull(source.nextChunk(CHUNK_LENGTH));
+    }
+
+    private static void assertRecords(byte[] chunk, long first, long last) {
+        assertEquals((last - first + 1) * AdjustmentHistory.RECORD_SIZE, chunk.length);
+        int offset = 0;
+        for (long sequence = first; sequence <= last; sequence++) {
+            assertEquals(sequence, getUint(chunk, offset, 4));
+            assertEquals(BASE_TIMESTAMP + sequence, getUint(chunk, offset + 4, 6));
+            assertEquals(sequence & 0xF, chunk[offset + 10]);
+            // Sign-extend the 48-bit delta
+            assertEquals(-sequence * 1000L, getUint(chunk, offset + 11, 6) << 16 >> 16);
+            offset += AdjustmentHistory.RECORD_SIZE;
+        }
+    }
+
+    private static void assertEndMarker(byte[] chunk, long next) {
+        assertEquals(AdjustmentHistory.END_MARKER_SIZE, chunk.length);
+        assertEquals(next, getUint(chunk, 0, AdjustmentHistory.END_MARKER_SIZE));
+    }
+
+    private static long getUint(byte[] buffer, int offset, int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
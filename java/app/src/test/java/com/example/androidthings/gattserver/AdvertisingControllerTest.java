@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of the {@link AdvertisingController} policy against a stand-in
+ * advertiser that answers on the calling thread.
+ */
+public class AdvertisingControllerTest {
+
+    private static final long DWELL_MILLIS = 300;
+    private static final long INITIAL_BACKOFF_MILLIS = 40;
+    private static final long MAX_BACKOFF_MILLIS = 160;
+    /* The controller schedules in whole milliseconds of the wall clock */
+    private static final long CLOCK_SLACK_MILLIS = 2;
+    /* Upper bound on waits for something that is expected to happen */
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Advertiser call, and the time it was made.
+     */
+    private static class Call {
+        static final int START = 0;
+        static final int SET_MODE = 1;
+        static final int STOP = 2;
+
+        final int type;
+        final int mode;
+        final long nanos = System.nanoTime();
+
+        Call(int type, int mode) {
+            this.type = type;
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * Records calls and answers them with queued statuses, or success.
+     */
+    private static class FakeAdvertiser implements Advertiser {
+        final LinkedBlockingQueue<Call> calls = new LinkedBlockingQueue<>();
+        final ArrayDeque<Integer> startResults = new ArrayDeque<>();
+        final ArrayDeque<Integer> modeResults = new ArrayDeque<>();
+        private Callback mCallback;
+
+        @Override
+        public void start(int mode, Callback callback) {
+            Integer status;
+            synchronized (this) {
+                mCallback = callback;
+                status = startResults.poll();
+            }
+            callback.onStarted((status == null) ? STATUS_SUCCESS : status);
+            // Recorded after the result is posted, so the test acts after it
+            calls.add(new Call(Call.START, mode));
+        }
+
+        @Override
+        public void setMode(int mode) {
+            Integer status;
+            synchronized (this) {
+                status = modeResults.poll();
+            }
+            mCallback.onModeChanged((status == null) ? STATUS_SUCCESS : status);
+            calls.add(new Call(Call.SET_MODE, mode));
+        }
+
+        @Override
+        public void stop() {
+            calls.add(new Call(Call.STOP, -1));
+        }
+
+        synchronized void failStarts(int count, int status) {
+            for (int i = 0; i < count; i++) {
+                startResults.add(status);
+            }
+        }
+
+        synchronized void failModeChange(int status) {
+            modeResults.add(status);
+        }
+
+        Call next(long timeoutMillis) throws InterruptedException {
+            return calls.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private FakeAdvertiser mAdvertiser;
+    private AdvertisingController mController;
+
+    @Before
+    public void setUp() {
+        mAdvertiser = new FakeAdvertiser();
+        mController = new AdvertisingController(mAdvertiser,
+                new EventLog<Object>(16, EventLog.OFF, 0),
+                DWELL_MILLIS, INITIAL_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        mController.shutdown();
+    }
+
+    @Test
+    public void selectsModeFromLoad() {
+        assertEquals(Advertiser.MODE_LOW_LATENCY, AdvertisingController.selectMode(0, 0));
+        assertEquals(Advertiser.MODE_BALANCED, AdvertisingController.selectMode(1, 3));
+        assertEquals(Advertiser.MODE_LOW_POWER, AdvertisingController.selectMode(4, 0));
+        assertEquals(Advertiser.MODE_LOW_POWER, AdvertisingController.selectMode(1, 4));
+    }
+
+    @Test
+    public void modeChangesWaitForDwell() throws Exception {
+        mController.start();
+        Call start = expect(Call.START);
+        assertEquals(Advertiser.MODE_LOW_LATENCY, start.mode);
+
+        // A busy server wants low power right away, but the first mode dwells
+        mController.onLoadChanged(5, 0);
+        assertNull(mAdvertiser.next(DWELL_MILLIS / 3));
+        Call change = expect(Call.SET_MODE);
+        assertEquals(Advertiser.MODE_LOW_POWER, change.mode);
+        assertTrue(millisBetween(start, change) >= DWELL_MILLIS - CLOCK_SLACK_MILLIS);
+        awaitMode(Advertiser.MODE_LOW_POWER);
+
+        // Load changes within the dwell collapse into one change to the latest mode
+        mController.onLoadChanged(0, 0);
+        mController.onLoadChanged(1, 0);
+        Call second = expect(Call.SET_MODE);
+        assertEquals(Advertiser.MODE_BALANCED, second.mode);
+        assertTrue(millisBetween(change, second) >= DWELL_MILLIS - CLOCK_SLACK_MILLIS);
+        awaitMode(Advertiser.MODE_BALANCED);
+        assertEquals(2, mController.getModeChangeCount());
+        assertNull(mAdvertiser.next(DWELL_MILLIS * 2));
+    }
+
+    @Test
+    public void failedStartsBackOffExponentially() throws Exception {
+        mAdvertiser.failStarts(4, Advertiser.STATUS_INTERNAL_ERROR);
+        mController.start();
+
+        Call previous = expect(Call.START);
+        long[] minimumGaps = {INITIAL_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS * 2,
+                MAX_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS};
+        for (long minimum : minimumGaps) {
+            Call retry = expect(Call.START);
+            assertTrue(millisBetween(previous, retry) >= minimum - CLOCK_SLACK_MILLIS);
+            previous = retry;
+        }
+
+        awaitMode(Advertiser.MODE_LOW_LATENCY);
+        assertEquals(4, mController.getFailureCount());
+        assertEquals(4, mController.getRetryCount());
+        assertEquals(1, mController.getStartCount());
+    }
+
+    @Test
+    public void permanentFailureIsNotRetried() throws Exception {
+        mAdvertiser.failStarts(1, Advertiser.STATUS_FEATURE_UNSUPPORTED);
+        mController.start();
+
+        expect(Call.START);
+        assertNull(mAdvertiser.next(MAX_BACKOFF_MILLIS * 2));
+        assertEquals(1, mController.getFailureCount());
+        assertEquals(0, mController.getRetryCount());
+        assertEquals(-1, mController.getMode());
+
+        // Starting again is up to the caller
+        mController.start();
+        expect(Call.START);
+        awaitMode(Advertiser.MODE_LOW_LATENCY);
+    }
+
+    @Test
+    public void failedModeChangeRestartsAdvertiser() throws Exception {
+        mController.start();
+        expect(Call.START);
+        awaitMode(Advertiser.MODE_LOW_LATENCY);
+
+        mAdvertiser.failModeChange(Advertiser.STATUS_INTERNAL_ERROR);
+        mController.onLoadChanged(1, 0);
+        assertEquals(Advertiser.MODE_BALANCED, expect(Call.SET_MODE).mode);
+        Call stop = expect(Call.STOP);
+        Call restart = expect(Call.START);
+        assertEquals(Advertiser.MODE_BALANCED, restart.mode);
+        assertTrue(millisBetween(stop, restart) >= INITIAL_BACKOFF_MILLIS - CLOCK_SLACK_MILLIS);
+        awaitMode(Advertiser.MODE_BALANCED);
+        assertEquals(1, mController.getFailureCount());
+        assertEquals(2, mController.getStartCount());
+    }
+
+    @Test
+    public void stopCancelsPendingRetry() throws Exception {
+        mAdvertiser.failStarts(1, Advertiser.STATUS_INTERNAL_ERROR);
+        mController.start();
+        expect(Call.START);
+
+        // Backing off, so the advertiser is not running and is not stopped
+        mController.stop();
+        assertNull(mAdvertiser.next(MAX_BACKOFF_MILLIS * 2));
+        assertEquals(-1, mController.getMode());
+    }
+
+    private Call expect(int type) throws InterruptedException {
+        Call call = mAdvertiser.next(TIMEOUT_MILLIS);
+        assertNotNull("no call of type " + type, call);
+        assertEquals(type, call.type);
+        return call;
+    }
+
+    private void awaitMode(int mode) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mController.getMode() != mode && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(mode, mController.getMode());
+    }
+
+    private static long millisBetween(Call first, Call second) {
+        return TimeUnit.NANOSECONDS.toMillis(second.nanos - first.nanos);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests of the configuration changes reported by {@link ClientConfigHandler}.
+ */
+public class ClientConfigHandlerTest {
+
+    private static final String DEVICE = "device";
+    private static final byte[] NONE = {0x00, 0x00};
+    private static final byte[] NOTIFY = {0x01, 0x00};
+    private static final byte[] INDICATE = {0x02, 0x00};
+
+    private SubscriberRegistry<String> mSubscribers;
+    private ClientConfigHandler<String> mHandler;
+    private List<Boolean> mChanges;
+
+    @Before
+    public void setUp() {
+        mSubscribers = new SubscriberRegistry<>();
+        mChanges = new ArrayList<>();
+        mHandler = new ClientConfigHandler<String>(mSubscribers) {
+            @Override
+            protected void onConfigurationChanged(String device, boolean enabled) {
+                mChanges.add(enabled);
+            }
+        };
+    }
+
+    @Test
+    public void reportsEnableAndDisable() {
+        assertEquals(GattStatus.GATT_SUCCESS, mHandler.onWrite(DEVICE, NOTIFY));
+        assertEquals(SubscriberRegistry.CONFIG_NOTIFY, mSubscribers.getConfiguration(DEVICE));
+        assertEquals(GattStatus.GATT_SUCCESS, mHandler.onWrite(DEVICE, NONE));
+        assertEquals(SubscriberRegistry.CONFIG_NONE, mSubscribers.getConfiguration(DEVICE));
+        assertEquals(Arrays.asList(true, false), mChanges);
+    }
+
+    @Test
+    public void ignoresRepeatedWrites() {
+        assertEquals(GattStatus.GATT_SUCCESS, mHandler.onWrite(DEVICE, NOTIFY));
+        assertEquals(GattStatus.GATT_SUCCESS, mHandler.onWrite(DEVICE, NOTIFY));
+        assertEquals(GattStatus.GATT_SUCCESS, mHandler.onWrite(DEVICE, NONE));
+        assertEquals(GattStatus.GATT_SUCCESS, mHandler.onWrite(DEVICE, NONE));
+        assertEquals(Arrays.asList(true, false), mChanges);
+    }
+
+    @Test
+    public void ignoresDisableWithoutSubscription() {
+        assertEquals(GattStatus.GATT_SUCCESS, mHandler.onWrite(DEVICE, NONE));
+        assertEquals(0, mChanges.size());
+    }
+
+    @Test
+    public void rejectsUnsupportedConfiguration() {
+        assertEquals(GattStatus.GATT_REQUEST_NOT_SUPPORTED, mHandler.onWrite(DEVICE, INDICATE));
+        assertEquals(GattStatus.GATT_INVALID_ATTRIBUTE_LENGTH,
+                mHandler.onWrite(DEVICE, new byte[] {0x01}));
+        assertEquals(SubscriberRegistry.CONFIG_NONE, mSubscribers.getConfiguration(DEVICE));
+        assertEquals(0, mChanges.size());
+    }
+}
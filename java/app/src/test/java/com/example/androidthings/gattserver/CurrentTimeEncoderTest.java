@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Checks the {@link TimeProfile} encoding methods, now backed by
+ * {@link CurrentTimeEncoder}, against the {@link Calendar} based encoding
+ * they replaced, over random timestamps from 1970 through 2099.
+ */
+public class CurrentTimeEncoderTest {
+
+    private static final long SEED = 20170101L;
+    private static final int SAMPLES_PER_ZONE = 20000;
+    /* 1970-01-01T00:00Z to 2100-01-01T00:00Z */
+    private static final long RANGE_START = 0L;
+    private static final long RANGE_END = 4102444800000L;
+
+    /*
+     * Zones with northern and southern DST, half-hour offsets and DST,
+     * DST folded into standard time, and rules that change after 2037
+     */
+    private static final String[] ZONES = {
+            "UTC", "America/Los_Angeles", "America/St_Johns", "America/Sao_Paulo",
+            "America/Argentina/Buenos_Aires", "America/Rankin_Inlet", "Europe/London",
+            "Europe/Berlin", "Atlantic/Azores", "Africa/Cairo", "Africa/Casablanca",
+            "Asia/Gaza", "Asia/Kolkata", "Asia/Kathmandu", "Asia/Tokyo",
+            "Australia/Sydney", "Australia/Lord_Howe", "Pacific/Auckland", "Pacific/Chatham"
+    };
+
+    private TimeZone mDefaultTimeZone;
+
+    @Before
+    public void setUp() {
+        mDefaultTimeZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mDefaultTimeZone);
+        TimeProfile.onTimeZoneChanged();
+    }
+
+    @Test
+    public void matchesCalendar() {
+        Random random = new Random(SEED);
+        long[] timestamps = new long[SAMPLES_PER_ZONE];
+
+        for (String id : ZONES) {
+            TimeZone timeZone = TimeZone.getTimeZone(id);
+            TimeZone.setDefault(timeZone);
+            TimeProfile.onTimeZoneChanged();
+            Calendar calendar = Calendar.getInstance(timeZone);
+
+            // In order, so the zone table is rebuilt once per window
+            for (int i = 0; i < SAMPLES_PER_ZONE; i++) {
+                timestamps[i] = RANGE_START
+                        + (long) (random.nextDouble() * (RANGE_END - RANGE_START));
+            }
+            Arrays.sort(timestamps);
+
+            for (long timestamp : timestamps) {
+                byte[] expected = encodeWithCalendar(calendar, timestamp,
+                        TimeProfile.ADJUST_MANUAL);
+                byte[] exactTime = TimeProfile.getExactTime(timestamp,
+                        TimeProfile.ADJUST_MANUAL);
+                byte[] localTimeInfo = TimeProfile.getLocalTimeInfo(timestamp);
+
+                assertArrayEquals(id + " at " + timestamp,
+                        Arrays.copyOfRange(expected, 0, CurrentTimeEncoder.EXACT_TIME_SIZE),
+                        exactTime);
+                assertArrayEquals(id + " at " + timestamp,
+                        Arrays.copyOfRange(expected, CurrentTimeEncoder.EXACT_TIME_SIZE,
+                                expected.length),
+                        localTimeInfo);
+            }
+        }
+    }
+
+    /**
+     * Exact Time 256 followed by Local Time Information, encoded the way
+     * the server did before {@link CurrentTimeEncoder}.
+     */
+    private static byte[] encodeWithCalendar(Calendar time, long timestamp,
+                                             byte adjustReason) {
+        time.setTimeInMillis(timestamp);
+        byte[] field = new byte[12];
+
+        int year = time.get(Calendar.YEAR);
+        field[0] = (byte) (year & 0xFF);
+        field[1] = (byte) ((year >> 8) & 0xFF);
+        field[2] = (byte) (time.get(Calendar.MONTH) + 1);
+        field[3] = (byte) time.get(Calendar.DATE);
+        field[4] = (byte) time.get(Calendar.HOUR_OF_DAY);
+        field[5] = (byte) time.get(Calendar.MINUTE);
+        field[6] = (byte) time.get(Calendar.SECOND);
+        // Bluetooth weekdays run from Monday (1) to Sunday (7)
+        int dayOfWeek = time.get(Calendar.DAY_OF_WEEK);
+        field[7] = (byte) ((dayOfWeek == Calendar.SUNDAY) ? 7 : dayOfWeek - 1);
+        field[8] = (byte) (time.get(Calendar.MILLISECOND) / 256);
+        field[9] = adjustReason;
+
+        field[10] = (byte) (time.get(Calendar.ZONE_OFFSET) / 900000);
+        field[11] = CurrentTimeEncoder.getDstOffsetCode(
+                time.get(Calendar.DST_OFFSET) / CurrentTimeEncoder.HALF_HOUR_MILLIS);
+        return field;
+    }
+}
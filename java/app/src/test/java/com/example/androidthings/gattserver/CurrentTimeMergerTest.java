@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Tests of {@link CurrentTimeMerger}, alone and replacing values queued
+ * in a {@link NotificationDispatcher}.
+ */
+public class CurrentTimeMergerTest {
+
+    private static final long TIMESTAMP = 1483228800000L;
+    private static final int ADJUST_REASON_OFFSET = CurrentTimeEncoder.EXACT_TIME_SIZE - 1;
+
+    private ServerMetrics mMetrics;
+    private CurrentTimeMerger mMerger;
+
+    @Before
+    public void setUp() {
+        mMetrics = new ServerMetrics();
+        mMerger = new CurrentTimeMerger(mMetrics);
+    }
+
+    @Test
+    public void leavesOtherCharacteristicsQueued() {
+        byte[] value = TimeProfile.getExactTime(TIMESTAMP, TimeProfile.ADJUST_NONE);
+        assertNull(mMerger.merge(TimeProfile.TIME_HISTORY, value, value));
+        assertEquals(0, mMetrics.getCount(ServerMetrics.COUNT_NOTIFICATIONS_MERGED));
+    }
+
+    @Test
+    public void keepsLatestValueWhenItCoversQueuedReasons() {
+        byte[] queued = TimeProfile.getExactTime(TIMESTAMP, TimeProfile.ADJUST_NONE);
+        byte[] latest = TimeProfile.getExactTime(TIMESTAMP + 1000, TimeProfile.ADJUST_MANUAL);
+        assertSame(latest, mMerger.merge(TimeProfile.CURRENT_TIME, queued, latest));
+        assertEquals(1, mMetrics.getCount(ServerMetrics.COUNT_NOTIFICATIONS_MERGED));
+    }
+
+    @Test
+    public void carriesQueuedReasonsIntoCopyOfLatest() {
+        byte[] queued = TimeProfile.getExactTime(TIMESTAMP, TimeProfile.ADJUST_TIMEZONE);
+        byte[] latest = TimeProfile.getExactTime(TIMESTAMP + 1000, TimeProfile.ADJUST_MANUAL);
+        byte[] original = latest.clone();
+
+        byte[] merged = mMerger.merge(TimeProfile.CURRENT_TIME, queued, latest);
+        assertArrayEquals(TimeProfile.getExactTime(TIMESTAMP + 1000,
+                (byte) (TimeProfile.ADJUST_MANUAL | TimeProfile.ADJUST_TIMEZONE)), merged);
+        // The shared latest value is left alone
+        assertArrayEquals(original, latest);
+    }
+
+    @Test
+    public void replacesValueQueuedInDispatcher() {
+        final List<byte[]> sent = new ArrayList<>();
+        NotificationDispatcher<String> dispatcher = new NotificationDispatcher<>(
+                new NotificationDispatcher.Sender<String>() {
+            @Override
+            public boolean send(String device, UUID characteristic, byte[] value,
+                                boolean confirm) {
+                sent.add(value);
+                return true;
+            }
+        }, new NotificationDispatcher.Listener<String>() {
+            @Override
+            public void onDeliveryResult(String device, UUID characteristic, int status) {
+            }
+
+            @Override
+            public void onIndicationConfirmed(String device, long roundTripNanos) {
+            }
+        }, 4, 30000, 5000);
+        dispatcher.setMerger(mMerger);
+        dispatcher.addDevice("device");
+
+        byte[] first = TimeProfile.getExactTime(TIMESTAMP, TimeProfile.ADJUST_NONE);
+        dispatcher.enqueue("device", TimeProfile.CURRENT_TIME, first);
+        dispatcher.enqueue("device", TimeProfile.CURRENT_TIME,
+                TimeProfile.getExactTime(TIMESTAMP + 1000, TimeProfile.ADJUST_DST));
+        dispatcher.enqueue("device", TimeProfile.CURRENT_TIME,
+                TimeProfile.getExactTime(TIMESTAMP + 2000, TimeProfile.ADJUST_NONE));
+        assertEquals(1, dispatcher.getMergedCount());
+
+        dispatcher.onNotificationSent("device", GattStatus.GATT_SUCCESS);
+        dispatcher.onNotificationSent("device", GattStatus.GATT_SUCCESS);
+        assertEquals(2, sent.size());
+        assertSame(first, sent.get(0));
+        // The newest time, still flagged with the adjustment it replaced
+        assertArrayEquals(TimeProfile.getExactTime(TIMESTAMP + 2000, TimeProfile.ADJUST_DST),
+                sent.get(1));
+        assertEquals(TimeProfile.ADJUST_DST, sent.get(1)[ADJUST_REASON_OFFSET]);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests of {@link EventLog} device indexes across removal and reuse.
+ */
+public class EventLogTest {
+
+    private static final int CAPACITY = 16;
+    /* Length of "MM-dd HH:mm:ss.SSS I " at the start of each event */
+    private static final int TIME_AND_LEVEL_LENGTH = 21;
+
+    @Test
+    public void reusesRemovedIndexesOldestFirst() {
+        EventLog<String> log = new EventLog<>(CAPACITY, EventLog.INFO, 3);
+        log.log(EventLog.INFO, EventLog.EVENT_CONNECTED, "a", 0);
+        log.log(EventLog.INFO, EventLog.EVENT_CONNECTED, "b", 0);
+        log.log(EventLog.INFO, EventLog.EVENT_CONNECTED, "c", 0);
+        log.removeDevice("b");
+        log.removeDevice("a");
+        log.log(EventLog.INFO, EventLog.EVENT_CONNECTED, "d", 0);
+        log.log(EventLog.INFO, EventLog.EVENT_CONNECTED, "e", 0);
+        log.log(EventLog.INFO, EventLog.EVENT_CONNECTED, "f", 0);
+
+        String[] lines = dump(log);
+        assertEquals("CONNECTED #0 0", stripTime(lines[1]));
+        assertEquals("CONNECTED #1 0", stripTime(lines[2]));
+        assertEquals("CONNECTED #2 c 0", stripTime(lines[3]));
+        assertEquals("CONNECTED #1 d 0", stripTime(lines[4]));
+        assertEquals("CONNECTED #0 e 0", stripTime(lines[5]));
+        // No index is left, so the device goes unnamed
+        assertEquals("CONNECTED 0", stripTime(lines[6]));
+    }
+
+    @Test
+    public void keepsNamesUntilIndexIsReused() {
+        EventLog<String> log = new EventLog<>(CAPACITY, EventLog.INFO, 2);
+        log.log(EventLog.INFO, EventLog.EVENT_CONNECTED, "a", 0);
+        log.log(EventLog.INFO, EventLog.EVENT_DISCONNECTED, "a", 0);
+        log.removeDevice("a");
+
+        String[] lines = dump(log);
+        assertEquals("CONNECTED #0 a 0", stripTime(lines[1]));
+        assertEquals("DISCONNECTED #0 a 0", stripTime(lines[2]));
+    }
+
+    @Test
+    public void givesReconnectedDeviceNewIndex() {
+        EventLog<String> log = new EventLog<>(CAPACITY, EventLog.INFO, 2);
+        log.log(EventLog.INFO, EventLog.EVENT_CONNECTED, "a", 0);
+        log.removeDevice("a");
+        log.log(EventLog.INFO, EventLog.EVENT_CONNECTED, "a", 0);
+
+        String[] lines = dump(log);
+        assertEquals("CONNECTED #0 a 0", stripTime(lines[1]));
+        assertEquals("CONNECTED #1 a 0", stripTime(lines[2]));
+    }
+
+    private static String[] dump(EventLog<?> log) {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        log.dump("", writer);
+        writer.flush();
+        return out.toString().split("\n");
+    }
+
+    /**
+     * Return the event name, device and value, without the time and level.
+     */
+    private static String stripTime(String line) {
+        return line.substring(TIME_AND_LEVEL_LENGTH);
+    }
+}
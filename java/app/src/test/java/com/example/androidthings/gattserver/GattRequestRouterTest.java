@@ -0,0 +1,275 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Tests of {@link GattRequestRouter} dispatch, Read Blob and prepared
+ * writes through a fake responder.
+ */
+public class GattRequestRouterTest {
+
+    private static final String DEVICE = "device";
+    private static final String OTHER_DEVICE = "other device";
+    private static final UUID SHORT_CHARACTERISTIC = TimeProfile.CURRENT_TIME;
+    private static final UUID LONG_CHARACTERISTIC = TimeProfile.TIME_HISTORY;
+    private static final UUID THIRD_CHARACTERISTIC = TimeProfile.LOCAL_TIME_INFO;
+    private static final UUID READ_ONLY_CHARACTERISTIC = TimeProfile.TIME_WITH_DST;
+    private static final UUID UNKNOWN_CHARACTERISTIC =
+            UUID.fromString("a1b7ffff-3c6d-4f0e-9a52-7d0c8e4b2f61");
+    private static final int POOL_CAPACITY = 4;
+    private static final int PREPARED_WRITES_PER_DEVICE = 2;
+    /* Longer than a read response at the default ATT_MTU */
+    private static final int LONG_VALUE_LENGTH = 40;
+
+    /**
+     * Response sent by the router.
+     */
+    private static class Response {
+        final String device;
+        final int requestId;
+        final int status;
+        final int offset;
+        final byte[] value;
+
+        Response(String device, int requestId, int status, int offset, byte[] value) {
+            this.device = device;
+            this.requestId = requestId;
+            this.status = status;
+            this.offset = offset;
+            // Only valid during the call
+            this.value = (value == null) ? null : value.clone();
+        }
+    }
+
+    /**
+     * Writable attribute whose value changes on every read.
+     */
+    private static class RecordingHandler extends GattRequestRouter.AttributeHandler<String> {
+        final List<byte[]> writes = new ArrayList<>();
+        int reads;
+
+        @Override
+        public byte[] onRead(String device) {
+            byte[] value = new byte[LONG_VALUE_LENGTH];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = (byte) (reads * 100 + i);
+            }
+            reads++;
+            return value;
+        }
+
+        @Override
+        public int onWrite(String device, byte[] value) {
+            writes.add(value);
+            return GattStatus.GATT_SUCCESS;
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+    }
+
+    private final List<Response> mResponses = new ArrayList<>();
+    private final RecordingHandler mShortHandler = new RecordingHandler();
+    private final RecordingHandler mLongHandler = new RecordingHandler();
+    private final RecordingHandler mThirdHandler = new RecordingHandler();
+    private final RecordingHandler mDescriptorHandler = new RecordingHandler();
+    private BufferPool mPool;
+    private GattRequestRouter<String> mRouter;
+    private int mNextRequestId;
+
+    @Before
+    public void setUp() {
+        mPool = new BufferPool(GattRequestRouter.MAX_ATTRIBUTE_LENGTH, POOL_CAPACITY);
+        mRouter = new GattRequestRouter<>(new GattRequestRouter.Responder<String>() {
+            @Override
+            public void sendResponse(String device, int requestId, int status, int offset,
+                                     byte[] value) {
+                mResponses.add(new Response(device, requestId, status, offset, value));
+            }
+        }, mPool, PREPARED_WRITES_PER_DEVICE);
+        mRouter.registerCharacteristic(SHORT_CHARACTERISTIC, mShortHandler);
+        mRouter.registerCharacteristic(LONG_CHARACTERISTIC, mLongHandler);
+        mRouter.registerCharacteristic(THIRD_CHARACTERISTIC, mThirdHandler);
+        mRouter.registerCharacteristic(READ_ONLY_CHARACTERISTIC,
+                new GattRequestRouter.AttributeHandler<String>() {
+        });
+        mRouter.registerDescriptor(LONG_CHARACTERISTIC, TimeProfile.CLIENT_CONFIG,
+                mDescriptorHandler);
+    }
+
+    @Test
+    public void routesByShortAndFullUuid() {
+        assertTrue(read(DEVICE, SHORT_CHARACTERISTIC, 0));
+        assertTrue(read(DEVICE, LONG_CHARACTERISTIC, 0));
+        assertTrue(mRouter.dispatchDescriptorRead(DEVICE, mNextRequestId++, 0,
+                LONG_CHARACTERISTIC, TimeProfile.CLIENT_CONFIG));
+        assertEquals(1, mShortHandler.reads);
+        assertEquals(1, mLongHandler.reads);
+        assertEquals(1, mDescriptorHandler.reads);
+
+        assertFalse(read(DEVICE, UNKNOWN_CHARACTERISTIC, 0));
+        assertEquals(GattStatus.GATT_FAILURE, lastResponse().status);
+        assertFalse(mRouter.dispatchDescriptorRead(DEVICE, mNextRequestId++, 0,
+                SHORT_CHARACTERISTIC, TimeProfile.CLIENT_CONFIG));
+        assertEquals(GattStatus.GATT_FAILURE, lastResponse().status);
+    }
+
+    @Test
+    public void readBlobContinuesCapturedValue() {
+        read(DEVICE, SHORT_CHARACTERISTIC, 0);
+        byte[] first = lastResponse().value;
+        assertEquals(LONG_VALUE_LENGTH, first.length);
+
+        read(DEVICE, SHORT_CHARACTERISTIC, 22);
+        Response blob = lastResponse();
+        assertEquals(GattStatus.GATT_SUCCESS, blob.status);
+        assertEquals(22, blob.offset);
+        assertArrayEquals(Arrays.copyOfRange(first, 22, LONG_VALUE_LENGTH), blob.value);
+        assertEquals(1, mShortHandler.reads);
+
+        read(DEVICE, SHORT_CHARACTERISTIC, LONG_VALUE_LENGTH);
+        assertEquals(GattStatus.GATT_SUCCESS, lastResponse().status);
+        assertEquals(0, lastResponse().value.length);
+
+        read(DEVICE, SHORT_CHARACTERISTIC, LONG_VALUE_LENGTH + 1);
+        assertEquals(GattStatus.GATT_INVALID_OFFSET, lastResponse().status);
+        assertNull(lastResponse().value);
+
+        // Another device never saw the captured value
+        read(OTHER_DEVICE, SHORT_CHARACTERISTIC, 22);
+        assertEquals(2, mShortHandler.reads);
+    }
+
+    @Test
+    public void executeCommitsStagedValues() {
+        assertEquals(GattStatus.GATT_SUCCESS, prepare(DEVICE, SHORT_CHARACTERISTIC, 0, 1, 2));
+        assertArrayEquals(new byte[] {1, 2}, lastResponse().value);
+        assertEquals(GattStatus.GATT_SUCCESS, prepare(DEVICE, SHORT_CHARACTERISTIC, 2, 3));
+        assertEquals(GattStatus.GATT_SUCCESS, prepare(DEVICE, LONG_CHARACTERISTIC, 0, 9));
+        assertTrue(mShortHandler.writes.isEmpty());
+        assertEquals(2, mPool.getInUseCount());
+
+        mRouter.dispatchExecuteWrite(DEVICE, mNextRequestId++, true);
+        assertEquals(GattStatus.GATT_SUCCESS, lastResponse().status);
+        assertEquals(1, mShortHandler.writes.size());
+        assertArrayEquals(new byte[] {1, 2, 3}, mShortHandler.writes.get(0));
+        assertArrayEquals(new byte[] {9}, mLongHandler.writes.get(0));
+        assertEquals(0, mPool.getInUseCount());
+    }
+
+    @Test
+    public void cancelDiscardsStagedValues() {
+        prepare(DEVICE, SHORT_CHARACTERISTIC, 0, 1, 2);
+        prepare(DEVICE, LONG_CHARACTERISTIC, 0, 3);
+        mRouter.dispatchExecuteWrite(DEVICE, mNextRequestId++, false);
+        assertEquals(GattStatus.GATT_SUCCESS, lastResponse().status);
+        assertTrue(mShortHandler.writes.isEmpty());
+        assertTrue(mLongHandler.writes.isEmpty());
+        assertEquals(0, mPool.getInUseCount());
+
+        // Nothing is left to commit
+        mRouter.dispatchExecuteWrite(DEVICE, mNextRequestId++, true);
+        assertTrue(mShortHandler.writes.isEmpty());
+    }
+
+    @Test
+    public void rejectsInvalidFragments() {
+        assertEquals(GattStatus.GATT_INVALID_OFFSET, prepare(DEVICE, SHORT_CHARACTERISTIC, 1, 1));
+        assertNull(lastResponse().value);
+        assertEquals(0, mPool.getInUseCount());
+
+        prepare(DEVICE, SHORT_CHARACTERISTIC, 0, 1, 2);
+        // Past the staged length, leaving a gap
+        assertEquals(GattStatus.GATT_INVALID_OFFSET, prepare(DEVICE, SHORT_CHARACTERISTIC, 3, 4));
+        assertEquals(GattStatus.GATT_INVALID_OFFSET, prepare(DEVICE, SHORT_CHARACTERISTIC,
+                GattRequestRouter.MAX_ATTRIBUTE_LENGTH + 1, 4));
+        assertEquals(GattStatus.GATT_INVALID_ATTRIBUTE_LENGTH, prepare(DEVICE,
+                SHORT_CHARACTERISTIC, GattRequestRouter.MAX_ATTRIBUTE_LENGTH - 1, 4, 5));
+        assertEquals(GattStatus.GATT_WRITE_NOT_PERMITTED,
+                prepare(DEVICE, READ_ONLY_CHARACTERISTIC, 0, 1));
+
+        // A fragment rewriting staged bytes is accepted
+        assertEquals(GattStatus.GATT_SUCCESS, prepare(DEVICE, SHORT_CHARACTERISTIC, 1, 7, 8));
+        mRouter.dispatchExecuteWrite(DEVICE, mNextRequestId++, true);
+        assertArrayEquals(new byte[] {1, 7, 8}, mShortHandler.writes.get(0));
+        assertEquals(0, mPool.getInUseCount());
+    }
+
+    @Test
+    public void limitsStagedAttributesPerDevice() {
+        prepare(DEVICE, SHORT_CHARACTERISTIC, 0, 1);
+        prepare(DEVICE, LONG_CHARACTERISTIC, 0, 2);
+        assertEquals(GattStatus.GATT_PREPARE_QUEUE_FULL,
+                prepare(DEVICE, THIRD_CHARACTERISTIC, 0, 3));
+        // Attributes already staged still take fragments
+        assertEquals(GattStatus.GATT_SUCCESS, prepare(DEVICE, LONG_CHARACTERISTIC, 1, 4));
+        assertEquals(GattStatus.GATT_SUCCESS, prepare(OTHER_DEVICE, THIRD_CHARACTERISTIC, 0, 5));
+        assertEquals(3, mPool.getInUseCount());
+
+        // The pool runs dry before the other device reaches its limit
+        prepare("third device", SHORT_CHARACTERISTIC, 0, 6);
+        assertEquals(GattStatus.GATT_PREPARE_QUEUE_FULL,
+                prepare(OTHER_DEVICE, SHORT_CHARACTERISTIC, 0, 7));
+
+        mRouter.removeDevice(DEVICE);
+        assertEquals(2, mPool.getInUseCount());
+        assertEquals(GattStatus.GATT_SUCCESS, prepare(OTHER_DEVICE, SHORT_CHARACTERISTIC, 0, 7));
+        mRouter.dispatchExecuteWrite(OTHER_DEVICE, mNextRequestId++, true);
+        mRouter.removeDevice("third device");
+        assertEquals(0, mPool.getInUseCount());
+        assertTrue(mLongHandler.writes.isEmpty());
+    }
+
+    private boolean read(String device, UUID characteristic, int offset) {
+        return mRouter.dispatchCharacteristicRead(device, mNextRequestId++, offset,
+                characteristic);
+    }
+
+    private int prepare(String device, UUID characteristic, int offset, int... bytes) {
+        byte[] value = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            value[i] = (byte) bytes[i];
+        }
+        int requestId = mNextRequestId++;
+        mRouter.dispatchCharacteristicWrite(device, requestId, characteristic, true, true,
+                offset, value);
+        Response response = lastResponse();
+        assertEquals(requestId, response.requestId);
+        assertEquals(device, response.device);
+        return response.status;
+    }
+
+    private Response lastResponse() {
+        return mResponses.get(mResponses.size() - 1);
+    }
+}
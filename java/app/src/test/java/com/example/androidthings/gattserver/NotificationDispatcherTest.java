@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Tests of {@link NotificationDispatcher} flow control against a stand-in
+ * sender that accepts everything and completes nothing by itself.
+ */
+public class NotificationDispatcherTest {
+
+    private static final String DEVICE = "device";
+    private static final String OTHER_DEVICE = "other device";
+    private static final UUID CHARACTERISTIC = TimeProfile.CURRENT_TIME;
+    private static final UUID OTHER_CHARACTERISTIC = TimeProfile.LOCAL_TIME_INFO;
+    private static final int MAX_QUEUE_DEPTH = 2;
+    /* Short enough for the tests to wait out */
+    private static final long CONFIRM_TIMEOUT_MILLIS = 40;
+    private static final long SEND_TIMEOUT_MILLIS = 20;
+
+    /**
+     * Notification handed to the sender, or its delivery result.
+     */
+    private static class Record {
+        final String device;
+        final UUID characteristic;
+        final byte[] value;
+        final int status;
+
+        Record(String device, UUID characteristic, byte[] value, int status) {
+            this.device = device;
+            this.characteristic = characteristic;
+            this.value = value;
+            this.status = status;
+        }
+    }
+
+    private final List<Record> mSent = new ArrayList<>();
+    private final List<Record> mResults = new ArrayList<>();
+    private NotificationDispatcher<String> mDispatcher;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new NotificationDispatcher<>(new NotificationDispatcher.Sender<String>() {
+            @Override
+            public boolean send(String device, UUID characteristic, byte[] value,
+                                boolean confirm) {
+                mSent.add(new Record(device, characteristic, value, 0));
+                return true;
+            }
+        }, new NotificationDispatcher.Listener<String>() {
+            @Override
+            public void onDeliveryResult(String device, UUID characteristic, int status) {
+                mResults.add(new Record(device, characteristic, null, status));
+            }
+
+            @Override
+            public void onIndicationConfirmed(String device, long roundTripNanos) {
+            }
+        }, MAX_QUEUE_DEPTH, CONFIRM_TIMEOUT_MILLIS, SEND_TIMEOUT_MILLIS);
+        mDispatcher.addDevice(DEVICE);
+        mDispatcher.addDevice(OTHER_DEVICE);
+    }
+
+    @Test
+    public void sendsOneNotificationPerDeviceAtATime() {
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(1));
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(2));
+        mDispatcher.enqueue(OTHER_DEVICE, CHARACTERISTIC, value(3));
+        assertEquals(2, mSent.size());
+        assertSent(0, DEVICE, 1);
+        assertSent(1, OTHER_DEVICE, 3);
+
+        mDispatcher.onNotificationSent(DEVICE, GattStatus.GATT_SUCCESS);
+        assertEquals(3, mSent.size());
+        assertSent(2, DEVICE, 2);
+        assertEquals(1, mResults.size());
+        assertEquals(GattStatus.GATT_SUCCESS, mResults.get(0).status);
+
+        // Nothing else is queued, so completions release nothing more
+        mDispatcher.onNotificationSent(DEVICE, GattStatus.GATT_SUCCESS);
+        mDispatcher.onNotificationSent(OTHER_DEVICE, GattStatus.GATT_SUCCESS);
+        assertEquals(3, mSent.size());
+        assertEquals(3, mDispatcher.getDeliveredCount());
+    }
+
+    @Test
+    public void dropsOldestWhenQueueIsFull() {
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(1));
+        for (int i = 2; i <= 2 + MAX_QUEUE_DEPTH; i++) {
+            mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(i));
+        }
+        assertEquals(1, mResults.size());
+        assertEquals(NotificationDispatcher.STATUS_DROPPED, mResults.get(0).status);
+        assertEquals(1, mDispatcher.getDroppedCount());
+
+        mDispatcher.onNotificationSent(DEVICE, GattStatus.GATT_SUCCESS);
+        mDispatcher.onNotificationSent(DEVICE, GattStatus.GATT_SUCCESS);
+        assertEquals(3, mSent.size());
+        assertSent(1, DEVICE, 3);
+        assertSent(2, DEVICE, 4);
+    }
+
+    @Test
+    public void mergesValuesQueuedForSameCharacteristic() {
+        mDispatcher.setMerger(new NotificationDispatcher.Merger() {
+            @Override
+            public byte[] merge(UUID characteristic, byte[] queued, byte[] latest) {
+                return characteristic.equals(CHARACTERISTIC) ? latest : null;
+            }
+        });
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(1));
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(2));
+        mDispatcher.enqueue(DEVICE, OTHER_CHARACTERISTIC, value(3));
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(4));
+        assertEquals(1, mDispatcher.getMergedCount());
+        assertEquals(0, mDispatcher.getDroppedCount());
+
+        mDispatcher.onNotificationSent(DEVICE, GattStatus.GATT_SUCCESS);
+        mDispatcher.onNotificationSent(DEVICE, GattStatus.GATT_SUCCESS);
+        assertEquals(3, mSent.size());
+        // The merged value keeps the place of the value it replaced
+        assertSent(1, DEVICE, 4);
+        assertSent(2, DEVICE, 3);
+    }
+
+    @Test
+    public void ignoresDevicesThatAreNotAdded() {
+        mDispatcher.removeDevice(DEVICE);
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(1));
+        mDispatcher.enqueue("unknown", CHARACTERISTIC, value(2));
+        assertTrue(mSent.isEmpty());
+        assertTrue(mResults.isEmpty());
+        assertEquals(2, mDispatcher.getDroppedCount());
+        assertNull(mDispatcher.getConfirmationLatencies(DEVICE));
+
+        // A device that reconnects is served again
+        mDispatcher.addDevice(DEVICE);
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(3));
+        assertEquals(1, mSent.size());
+        assertSent(0, DEVICE, 3);
+    }
+
+    @Test
+    public void movesOnWhenNotificationIsNeverCompleted() throws InterruptedException {
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(1));
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(2));
+        mDispatcher.checkTimeouts();
+        assertEquals(1, mSent.size());
+
+        Thread.sleep(SEND_TIMEOUT_MILLIS + 10);
+        mDispatcher.checkTimeouts();
+        assertEquals(1, mResults.size());
+        assertEquals(GattStatus.GATT_FAILURE, mResults.get(0).status);
+        assertEquals(1, mDispatcher.getFailedCount());
+        assertEquals(2, mSent.size());
+        assertSent(1, DEVICE, 2);
+
+        // The device is still served after the failure
+        mDispatcher.onNotificationSent(DEVICE, GattStatus.GATT_SUCCESS);
+        assertEquals(GattStatus.GATT_SUCCESS, mResults.get(1).status);
+    }
+
+    @Test
+    public void ignoresConfirmationAfterTimeout() throws InterruptedException {
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(1), true);
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(2), true);
+        Thread.sleep(CONFIRM_TIMEOUT_MILLIS + 10);
+        mDispatcher.checkTimeouts();
+        assertEquals(2, mResults.size());
+        assertEquals(NotificationDispatcher.STATUS_TIMEOUT, mResults.get(0).status);
+        assertEquals(NotificationDispatcher.STATUS_DROPPED, mResults.get(1).status);
+        assertEquals(1, mDispatcher.getTimedOutCount());
+
+        // The late confirmation neither completes anything nor releases more
+        mDispatcher.onNotificationSent(DEVICE, GattStatus.GATT_SUCCESS);
+        mDispatcher.enqueue(DEVICE, CHARACTERISTIC, value(3), true);
+        assertEquals(2, mResults.size());
+        assertEquals(1, mSent.size());
+        assertEquals(0, mDispatcher.getDeliveredCount());
+        assertEquals(0, mDispatcher.getConfirmationLatencies(DEVICE).getCount());
+    }
+
+    private static byte[] value(int tag) {
+        return new byte[] {(byte) tag};
+    }
+
+    private void assertSent(int index, String device, int tag) {
+        Record sent = mSent.get(index);
+        assertEquals(device, sent.device);
+        assertArrayEquals(value(tag), sent.value);
+    }
+}
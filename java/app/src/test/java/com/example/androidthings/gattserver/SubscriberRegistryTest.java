@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stress test of {@link SubscriberRegistry} with writers and readers
+ * running concurrently.
+ */
+public class SubscriberRegistryTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int DEVICES_PER_WRITER = 64;
+    private static final int OPERATIONS_PER_WRITER = 200000;
+    /* Devices subscribed before the writers start and never removed */
+    private static final int STABLE_DEVICES = 16;
+
+    @Test
+    public void snapshotsStayConsistentUnderConcurrentChanges() throws Exception {
+        final SubscriberRegistry<Integer> registry = new SubscriberRegistry<>();
+        for (int device = 0; device < STABLE_DEVICES; device++) {
+            registry.setConfiguration(-1 - device, SubscriberRegistry.CONFIG_NOTIFY);
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        // Final configuration of each device, written by its owning writer only
+        final Map<Integer, Integer> expected = new HashMap<>();
+
+        Thread[] writers = new Thread[WRITERS];
+        for (int i = 0; i < WRITERS; i++) {
+            final int first = i * DEVICES_PER_WRITER;
+            final Random random = new Random(i);
+            final Map<Integer, Integer> state = new HashMap<>();
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int op = 0; op < OPERATIONS_PER_WRITER; op++) {
+                        int device = first + random.nextInt(DEVICES_PER_WRITER);
+                        int config = random.nextInt(4);
+                        if (config == 3) {
+                            registry.remove(device);
+                            config = SubscriberRegistry.CONFIG_NONE;
+                        } else {
+                            registry.setConfiguration(device, config);
+                        }
+                        state.put(device, config);
+                    }
+                    synchronized (expected) {
+                        expected.putAll(state);
+                    }
+                }
+            });
+        }
+
+        Thread[] readers = new Thread[READERS];
+        for (int i = 0; i < READERS; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    try {
+                        while (writing.get()) {
+                            checkSnapshot(registry.snapshot());
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : readers) {
+            thread.start();
+        }
+        for (Thread thread : writers) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        writing.set(false);
+        for (Thread thread : readers) {
+            thread.join();
+        }
+        assertNull(String.valueOf(failure.get()), failure.get());
+
+        // Once writers are done, a snapshot reflects every change
+        SubscriberRegistry.Snapshot<Integer> snapshot = registry.snapshot();
+        checkSnapshot(snapshot);
+        Map<Integer, Integer> actual = new HashMap<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (snapshot.getDevice(i) >= 0) {
+                actual.put(snapshot.getDevice(i), snapshot.getConfiguration(i));
+            }
+        }
+        Map<Integer, Integer> subscribed = new HashMap<>();
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            if (entry.getValue() != SubscriberRegistry.CONFIG_NONE) {
+                subscribed.put(entry.getKey(), entry.getValue());
+            }
+            assertEquals((int) entry.getValue(), registry.getConfiguration(entry.getKey()));
+        }
+        assertEquals(subscribed, actual);
+        assertEquals(STABLE_DEVICES + subscribed.size(), snapshot.size());
+    }
+
+    /**
+     * Check a snapshot taken while writers may be active: every device
+     * appears once with a subscribed configuration, and the devices that
+     * were never removed are all present.
+     */
+    private static void checkSnapshot(SubscriberRegistry.Snapshot<Integer> snapshot) {
+        Set<Integer> seen = new HashSet<>();
+        int stable = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            Integer device = snapshot.getDevice(i);
+            int config = snapshot.getConfiguration(i);
+            assertTrue("duplicate " + device, seen.add(device));
+            assertTrue("config " + config, config == SubscriberRegistry.CONFIG_NOTIFY
+                    || config == SubscriberRegistry.CONFIG_INDICATE
+                    || config == (SubscriberRegistry.CONFIG_NOTIFY
+                            | SubscriberRegistry.CONFIG_INDICATE));
+            if (device < 0) {
+                stable++;
+            }
+        }
+        assertEquals(STABLE_DEVICES, stable);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of {@link SubscriptionStore} persistence and load time.
+ */
+public class SubscriptionStoreTest {
+
+    private static final int RECORDS = 10000;
+    /* Loads timed after warming up; the fastest must stay within the bound */
+    private static final int LOAD_RUNS = 20;
+    private static final long MAX_LOAD_MILLIS = 5;
+
+    /* Devices are their own bonded keys */
+    private static final SubscriptionStore.KeyResolver<Long> RESOLVER =
+            new SubscriptionStore.KeyResolver<Long>() {
+        @Override
+        public long getBondedKey(Long device) {
+            return device;
+        }
+    };
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("subscriptions", ".bin");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void keepsConfigurationsAcrossLoads() {
+        SubscriptionStore<Long> store = new SubscriptionStore<>(mFile, RESOLVER);
+        store.load();
+        for (long device = 1; device <= RECORDS; device++) {
+            store.setConfiguration(device, SubscriptionStore.SLOT_CURRENT_TIME,
+                    SubscriberRegistry.CONFIG_NOTIFY);
+        }
+        store.flush();
+        // Appended after the first write
+        for (long device = 1; device <= RECORDS; device += 2) {
+            store.setConfiguration(device, SubscriptionStore.SLOT_CURRENT_TIME,
+                    SubscriberRegistry.CONFIG_NONE);
+        }
+        store.setConfiguration(2L, SubscriptionStore.SLOT_TIME_HISTORY,
+                SubscriberRegistry.CONFIG_INDICATE);
+        store.flush();
+
+        SubscriptionStore<Long> loaded = new SubscriptionStore<>(mFile, RESOLVER);
+        assertEquals(RECORDS / 2, loaded.load());
+        for (long device = 1; device <= RECORDS; device++) {
+            int expected = (device % 2 == 0)
+                    ? SubscriberRegistry.CONFIG_NOTIFY : SubscriberRegistry.CONFIG_NONE;
+            assertEquals(expected,
+                    loaded.getConfiguration(device, SubscriptionStore.SLOT_CURRENT_TIME));
+        }
+        assertEquals(SubscriberRegistry.CONFIG_INDICATE,
+                loaded.getConfiguration(2L, SubscriptionStore.SLOT_TIME_HISTORY));
+        assertEquals(SubscriberRegistry.CONFIG_NONE,
+                loaded.getConfiguration(4L, SubscriptionStore.SLOT_TIME_HISTORY));
+    }
+
+    @Test
+    public void loadsTenThousandRecordsInMilliseconds() {
+        SubscriptionStore<Long> store = new SubscriptionStore<>(mFile, RESOLVER);
+        store.load();
+        for (long device = 1; device <= RECORDS; device++) {
+            store.setConfiguration(device << 8, SubscriptionStore.SLOT_CURRENT_TIME,
+                    SubscriberRegistry.CONFIG_NOTIFY);
+        }
+        store.flush();
+
+        long fastest = Long.MAX_VALUE;
+        for (int run = 0; run < LOAD_RUNS; run++) {
+            SubscriptionStore<Long> loaded = new SubscriptionStore<>(mFile, RESOLVER);
+            assertEquals(RECORDS, loaded.load());
+            fastest = Math.min(fastest, loaded.getLoadNanos());
+        }
+        assertTrue("Fastest load took " + fastest / 1000 + "us",
+                fastest <= TimeUnit.MILLISECONDS.toNanos(MAX_LOAD_MILLIS));
+    }
+}
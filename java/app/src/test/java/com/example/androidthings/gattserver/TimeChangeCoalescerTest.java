@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of the {@link TimeChangeCoalescer} window and burst merging.
+ */
+public class TimeChangeCoalescerTest {
+
+    private static final long WINDOW_MILLIS = 50;
+    /* Upper bound on waits for something that is expected to happen */
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Report delivered by the coalescer.
+     */
+    private static class Report {
+        final byte adjustReason;
+        final int changes;
+        final Thread thread = Thread.currentThread();
+        final long nanos = System.nanoTime();
+
+        Report(byte adjustReason, int changes) {
+            this.adjustReason = adjustReason;
+            this.changes = changes;
+        }
+    }
+
+    private final LinkedBlockingQueue<Report> mReports = new LinkedBlockingQueue<>();
+    private TimeChangeCoalescer mCoalescer;
+
+    @Before
+    public void setUp() {
+        mCoalescer = new TimeChangeCoalescer(WINDOW_MILLIS, new TimeChangeCoalescer.Listener() {
+            @Override
+            public void onTimeChanged(byte adjustReason, int changes) {
+                mReports.add(new Report(adjustReason, changes));
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mCoalescer.shutdown();
+    }
+
+    @Test
+    public void mergesBurstIntoOneReportAfterWindow() throws InterruptedException {
+        long start = System.nanoTime();
+        mCoalescer.onTimeChanged(TimeProfile.ADJUST_MANUAL);
+        mCoalescer.onTimeChanged(TimeProfile.ADJUST_TIMEZONE);
+        mCoalescer.onTimeChanged(TimeProfile.ADJUST_DST);
+
+        Report report = mReports.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(report);
+        assertEquals(TimeProfile.ADJUST_MANUAL | TimeProfile.ADJUST_TIMEZONE
+                | TimeProfile.ADJUST_DST, report.adjustReason);
+        assertEquals(3, report.changes);
+        assertTrue(report.nanos - start >= TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS));
+        assertNull(mReports.poll(WINDOW_MILLIS * 2, TimeUnit.MILLISECONDS));
+        assertEquals(3, mCoalescer.getChangeCount());
+        assertEquals(2, mCoalescer.getSuppressedCount());
+    }
+
+    @Test
+    public void startsNewWindowAfterReport() throws InterruptedException {
+        mCoalescer.onTimeChanged(TimeProfile.ADJUST_MANUAL);
+        Report first = mReports.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(first);
+
+        mCoalescer.onTimeChanged(TimeProfile.ADJUST_EXTERNAL);
+        Report second = mReports.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(second);
+        // Flags of the first burst do not leak into the next
+        assertEquals(TimeProfile.ADJUST_EXTERNAL, second.adjustReason);
+        assertEquals(1, second.changes);
+        assertEquals(0, mCoalescer.getSuppressedCount());
+    }
+
+    @Test
+    public void reportsRightAwayWithoutWindow() {
+        mCoalescer.setWindowMillis(0);
+        mCoalescer.onTimeChanged(TimeProfile.ADJUST_MANUAL);
+        mCoalescer.onTimeChanged(TimeProfile.ADJUST_DST);
+
+        assertEquals(2, mReports.size());
+        Report report = mReports.poll();
+        assertSame(Thread.currentThread(), report.thread);
+        assertEquals(TimeProfile.ADJUST_MANUAL, report.adjustReason);
+        assertEquals(1, report.changes);
+        assertEquals(TimeProfile.ADJUST_DST, mReports.poll().adjustReason);
+    }
+}
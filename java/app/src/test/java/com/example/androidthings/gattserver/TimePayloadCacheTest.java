@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+/**
+ * Tests of {@link TimePayloadCache}, including an invalidation that lands
+ * while a cache miss is still encoding.
+ */
+public class TimePayloadCacheTest {
+
+    /* 2017-01-01T00:00:00Z */
+    private static final long TIMESTAMP = 1483228800000L;
+    private static final TimeZone OLD_ZONE = TimeZone.getTimeZone("Europe/Berlin");
+    private static final TimeZone NEW_ZONE = TimeZone.getTimeZone("Asia/Tokyo");
+
+    /**
+     * Encoder that switches zone and invalidates the cache once, after it
+     * has encoded a value but before the cache stores it, as another thread
+     * handling a zone change could.
+     */
+    private static class RacingEncoder extends CurrentTimeEncoder {
+        TimePayloadCache cache;
+        boolean raced;
+
+        RacingEncoder() {
+            super(OLD_ZONE);
+        }
+
+        @Override
+        public int encodeExactTime(long timestamp, byte adjustReason, byte[] buffer,
+                                   int offset) {
+            int end = super.encodeExactTime(timestamp, adjustReason, buffer, offset);
+            race();
+            return end;
+        }
+
+        @Override
+        public int encodeLocalTimeInfo(long timestamp, byte[] buffer, int offset) {
+            int end = super.encodeLocalTimeInfo(timestamp, buffer, offset);
+            race();
+            return end;
+        }
+
+        private void race() {
+            if (raced) return;
+            raced = true;
+            setTimeZone(NEW_ZONE);
+            cache.invalidate();
+        }
+    }
+
+    private RacingEncoder mEncoder;
+    private TimePayloadCache mCache;
+
+    @Before
+    public void setUp() {
+        mEncoder = new RacingEncoder();
+        mCache = new TimePayloadCache(mEncoder);
+        mEncoder.cache = mCache;
+    }
+
+    @Test
+    public void servesCachedPayloadUntilInvalidated() {
+        mEncoder.raced = true;
+        byte[] value = mCache.getLocalTimeInfo(TIMESTAMP);
+        assertSame(value, mCache.getLocalTimeInfo(TIMESTAMP + 1000));
+        assertEquals(1, mCache.getHitCount());
+
+        mCache.invalidate();
+        byte[] refreshed = mCache.getLocalTimeInfo(TIMESTAMP + 1000);
+        assertArrayEquals(value, refreshed);
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    @Test
+    public void dropsLocalTimeInfoEncodedBeforeInvalidation() {
+        byte[] stale = mCache.getLocalTimeInfo(TIMESTAMP);
+        assertArrayEquals(encodeLocalTimeInfo(OLD_ZONE, TIMESTAMP), stale);
+
+        byte[] value = mCache.getLocalTimeInfo(TIMESTAMP);
+        assertArrayEquals(encodeLocalTimeInfo(NEW_ZONE, TIMESTAMP), value);
+        assertEquals(0, mCache.getHitCount());
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    @Test
+    public void dropsExactTimeEncodedBeforeInvalidation() {
+        byte[] stale = mCache.getExactTime(TIMESTAMP);
+        assertArrayEquals(encodeExactTime(OLD_ZONE, TIMESTAMP), stale);
+
+        byte[] value = mCache.getExactTime(TIMESTAMP);
+        assertArrayEquals(encodeExactTime(NEW_ZONE, TIMESTAMP), value);
+        assertEquals(0, mCache.getHitCount());
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    private static byte[] encodeLocalTimeInfo(TimeZone timeZone, long timestamp) {
+        byte[] value = new byte[CurrentTimeEncoder.LOCAL_TIME_INFO_SIZE];
+        new CurrentTimeEncoder(timeZone).encodeLocalTimeInfo(timestamp, value, 0);
+        return value;
+    }
+
+    private static byte[] encodeExactTime(TimeZone timeZone, long timestamp) {
+        byte[] value = new byte[CurrentTimeEncoder.EXACT_TIME_SIZE];
+        new CurrentTimeEncoder(timeZone).encodeExactTime(timestamp, TimeProfile.ADJUST_NONE,
+                value, 0);
+        return value;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.TimeZone;
+
+/**
+ * Checks the DST transitions of {@link ZoneTransitions}, and the Local
+ * Time Information encoded around them, against known 2017 changes.
+ */
+public class ZoneTransitionsTest {
+
+    private static final long FROM = Instant.parse("2017-01-01T00:00:00Z").toEpochMilli();
+    private static final long UNTIL = Instant.parse("2018-01-01T00:00:00Z").toEpochMilli();
+
+    private static final int HOUR_MILLIS = 3600000;
+    private static final int HALF_HOUR_MILLIS = 1800000;
+
+    /* Local Time Information DST offset codes */
+    private static final byte DST_STANDARD = 0x0;
+    private static final byte DST_HALF = 0x2;
+    private static final byte DST_SINGLE = 0x4;
+
+    @Test
+    public void newYork() {
+        ZoneTransitions transitions = build("America/New_York");
+        assertEquals(3, transitions.size());
+        // 02:00 EST to 03:00 EDT, and 02:00 EDT back to 01:00 EST
+        assertChange(transitions, "2017-03-12T07:00:00Z", -5 * HOUR_MILLIS, 0, HOUR_MILLIS);
+        assertChange(transitions, "2017-11-05T06:00:00Z", -5 * HOUR_MILLIS, HOUR_MILLIS, 0);
+        assertNextDstChanges(transitions, "2017-03-12T07:00:00Z", "2017-11-05T06:00:00Z");
+
+        assertLocalTimeInfo("America/New_York", "2017-03-12T06:59:59.999Z",
+                -20, DST_STANDARD, 1, 59, 59);
+        assertLocalTimeInfo("America/New_York", "2017-03-12T07:00:00Z",
+                -20, DST_SINGLE, 3, 0, 0);
+        assertLocalTimeInfo("America/New_York", "2017-11-05T05:59:59.999Z",
+                -20, DST_SINGLE, 1, 59, 59);
+        assertLocalTimeInfo("America/New_York", "2017-11-05T06:00:00Z",
+                -20, DST_STANDARD, 1, 0, 0);
+    }
+
+    @Test
+    public void sydney() {
+        ZoneTransitions transitions = build("Australia/Sydney");
+        assertEquals(3, transitions.size());
+        // DST ends in April and starts in October
+        assertChange(transitions, "2017-04-01T16:00:00Z", 10 * HOUR_MILLIS, HOUR_MILLIS, 0);
+        assertChange(transitions, "2017-09-30T16:00:00Z", 10 * HOUR_MILLIS, 0, HOUR_MILLIS);
+        assertNextDstChanges(transitions, "2017-04-01T16:00:00Z", "2017-09-30T16:00:00Z");
+
+        assertLocalTimeInfo("Australia/Sydney", "2017-04-01T15:59:59.999Z",
+                40, DST_SINGLE, 2, 59, 59);
+        assertLocalTimeInfo("Australia/Sydney", "2017-04-01T16:00:00Z",
+                40, DST_STANDARD, 2, 0, 0);
+        assertLocalTimeInfo("Australia/Sydney", "2017-09-30T15:59:59.999Z",
+                40, DST_STANDARD, 1, 59, 59);
+        assertLocalTimeInfo("Australia/Sydney", "2017-09-30T16:00:00Z",
+                40, DST_SINGLE, 3, 0, 0);
+    }
+
+    @Test
+    public void lordHowe() {
+        ZoneTransitions transitions = build("Australia/Lord_Howe");
+        assertEquals(3, transitions.size());
+        // Standard time is UTC+10:30, and DST only adds half an hour
+        int zoneOffset = 10 * HOUR_MILLIS + HALF_HOUR_MILLIS;
+        assertChange(transitions, "2017-04-01T15:00:00Z", zoneOffset, HALF_HOUR_MILLIS, 0);
+        assertChange(transitions, "2017-09-30T15:30:00Z", zoneOffset, 0, HALF_HOUR_MILLIS);
+        assertNextDstChanges(transitions, "2017-04-01T15:00:00Z", "2017-09-30T15:30:00Z");
+
+        assertLocalTimeInfo("Australia/Lord_Howe", "2017-04-01T14:59:59.999Z",
+                42, DST_HALF, 1, 59, 59);
+        assertLocalTimeInfo("Australia/Lord_Howe", "2017-04-01T15:00:00Z",
+                42, DST_STANDARD, 1, 30, 0);
+        assertLocalTimeInfo("Australia/Lord_Howe", "2017-09-30T15:29:59.999Z",
+                42, DST_STANDARD, 1, 59, 59);
+        assertLocalTimeInfo("Australia/Lord_Howe", "2017-09-30T15:30:00Z",
+                42, DST_HALF, 2, 30, 0);
+    }
+
+    @Test
+    public void zoneWithoutDst() {
+        ZoneTransitions transitions = build("Asia/Tokyo");
+        assertEquals(1, transitions.size());
+        assertEquals(9 * HOUR_MILLIS, transitions.getZoneOffset(0));
+        assertEquals(0, transitions.getDstOffset(0));
+        assertEquals(-1, transitions.getNextDstChange(0));
+        assertEquals(-1, transitions.indexOf(UNTIL));
+    }
+
+    private static ZoneTransitions build(String id) {
+        return ZoneTransitions.build(TimeZone.getTimeZone(id), FROM, UNTIL);
+    }
+
+    /**
+     * Check that an interval starts exactly at the change, with the given
+     * offsets on either side of it.
+     */
+    private static void assertChange(ZoneTransitions transitions, String instant,
+                                     int zoneOffset, int dstBefore, int dstAfter) {
+        long change = Instant.parse(instant).toEpochMilli();
+        int before = transitions.indexOf(change - 1);
+        int after = transitions.indexOf(change);
+
+        assertEquals(instant, before + 1, after);
+        assertEquals(instant, change, transitions.getStart(after));
+        assertEquals(instant, change, transitions.getEnd(before));
+        assertEquals(instant, zoneOffset, transitions.getZoneOffset(before));
+        assertEquals(instant, zoneOffset, transitions.getZoneOffset(after));
+        assertEquals(instant, dstBefore, transitions.getDstOffset(before));
+        assertEquals(instant, dstAfter, transitions.getDstOffset(after));
+    }
+
+    /**
+     * Check that each interval points at the next DST change of the year.
+     */
+    private static void assertNextDstChanges(ZoneTransitions transitions, String first,
+                                             String second) {
+        int firstChange = transitions.indexOf(Instant.parse(first).toEpochMilli());
+        int secondChange = transitions.indexOf(Instant.parse(second).toEpochMilli());
+        assertEquals(firstChange, transitions.getNextDstChange(0));
+        assertEquals(secondChange, transitions.getNextDstChange(firstChange));
+        assertEquals(-1, transitions.getNextDstChange(secondChange));
+    }
+
+    /**
+     * Check the Local Time Information and the local wall clock time
+     * encoded for the instant.
+     */
+    private static void assertLocalTimeInfo(String id, String instant, int zoneCode,
+                                            byte dstCode, int hours, int minutes,
+                                            int seconds) {
+        CurrentTimeEncoder encoder = new CurrentTimeEncoder(TimeZone.getTimeZone(id));
+        long timestamp = Instant.parse(instant).toEpochMilli();
+        byte[] exactTime = new byte[CurrentTimeEncoder.EXACT_TIME_SIZE];
+        byte[] localTimeInfo = new byte[CurrentTimeEncoder.LOCAL_TIME_INFO_SIZE];
+        encoder.encodeExactTime(timestamp, TimeProfile.ADJUST_NONE, exactTime, 0);
+        encoder.encodeLocalTimeInfo(timestamp, localTimeInfo, 0);
+
+        assertEquals(instant, zoneCode, localTimeInfo[0]);
+        assertEquals(instant, dstCode, localTimeInfo[1]);
+        assertEquals(instant, hours, exactTime[4]);
+        assertEquals(instant, minutes, exactTime[5]);
+        assertEquals(instant, seconds, exactTime[6]);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver.benchmark;
+
+import com.example.androidthings.gattserver.BufferPool;
+import com.example.androidthings.gattserver.GattRequestRouter;
+import com.example.androidthings.gattserver.TimeProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of routing a request to its attribute handler and responding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RequestDispatchBenchmark {
+
+    private static final UUID VENDOR_CHARACTERISTIC =
+            UUID.fromString("a1b7ffff-3c6d-4f0e-9a52-7d0c8e4b2f61");
+    private static final byte[] VALUE = new byte[10];
+    private static final byte[] CONFIG_VALUE = {0x01, 0x00};
+
+    private GattRequestRouter<Integer> mRouter;
+    private int mLastStatus;
+
+    @Setup
+    public void setUp() {
+        mRouter = new GattRequestRouter<>(new GattRequestRouter.Responder<Integer>() {
+            @Override
+            public void sendResponse(Integer device, int requestId, int status,
+                                     int offset, byte[] value) {
+                mLastStatus = status;
+            }
+        }, new BufferPool(GattRequestRouter.MAX_ATTRIBUTE_LENGTH, 1), 1);
+
+        GattRequestRouter.AttributeHandler<Integer> handler =
+                new GattRequestRouter.AttributeHandler<Integer>() {
+            @Override
+            public byte[] onRead(Integer device) {
+                return VALUE;
+            }
+
+            @Override
+            public int onWrite(Integer device, byte[] value) {
+                return 0;
+            }
+
+            @Override
+            public boolean isWritable() {
+                return true;
+            }
+        };
+        mRouter.registerCharacteristic(TimeProfile.CURRENT_TIME, handler);
+        mRouter.registerCharacteristic(TimeProfile.LOCAL_TIME_INFO, handler);
+        mRouter.registerCharacteristic(VENDOR_CHARACTERISTIC, handler);
+        mRouter.registerDescriptor(TimeProfile.CURRENT_TIME, TimeProfile.CLIENT_CONFIG, handler);
+    }
+
+    @Benchmark
+    public int readShortUuid() {
+        mRouter.dispatchCharacteristicRead(1, 1, 0, TimeProfile.CURRENT_TIME);
+        return mLastStatus;
+    }
+
+    @Benchmark
+    public int readVendorUuid() {
+        mRouter.dispatchCharacteristicRead(1, 1, 0, VENDOR_CHARACTERISTIC);
+        return mLastStatus;
+    }
+
+    @Benchmark
+    public int writeClientConfig() {
+        mRouter.dispatchDescriptorWrite(1, 1, TimeProfile.CURRENT_TIME,
+                TimeProfile.CLIENT_CONFIG, false, true, 0, CONFIG_VALUE);
+        return mLastStatus;
+    }
+}
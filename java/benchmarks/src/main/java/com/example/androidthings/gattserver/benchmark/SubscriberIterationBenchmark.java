@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver.benchmark;
+
+import com.example.androidthings.gattserver.SubscriberRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of walking the subscriber set on the notification fan-out path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SubscriberIterationBenchmark {
+
+    @Param({"1", "32", "256"})
+    public int subscribers;
+
+    private SubscriberRegistry<Integer> mRegistry;
+
+    @Setup
+    public void setUp() {
+        mRegistry = new SubscriberRegistry<>();
+        for (int i = 0; i < subscribers; i++) {
+            mRegistry.setConfiguration(i, SubscriberRegistry.CONFIG_NOTIFY);
+        }
+    }
+
+    /* Steady state: fan-out with no registry changes since the last one */
+    @Benchmark
+    public int iterate() {
+        SubscriberRegistry.Snapshot<Integer> snapshot = mRegistry.snapshot();
+        int sum = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            sum += snapshot.getDevice(i) + snapshot.getConfiguration(i);
+        }
+        return sum;
+    }
+
+    /* One subscribe/unsubscribe pair between fan-outs */
+    @Benchmark
+    public int iterateAfterChurn() {
+        mRegistry.setConfiguration(-1, SubscriberRegistry.CONFIG_NOTIFY);
+        mRegistry.remove(-1);
+        return iterate();
+    }
+}
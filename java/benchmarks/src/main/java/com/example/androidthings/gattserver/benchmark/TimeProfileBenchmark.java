@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver.benchmark;
+
+import com.example.androidthings.gattserver.CurrentTimeEncoder;
+import com.example.androidthings.gattserver.TimePayloadCache;
+import com.example.androidthings.gattserver.TimeProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding cost of the Current Time Service characteristic values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TimeProfileBenchmark {
+
+    /* 2017-12-13 12:00:00 MST, away from any DST transition */
+    private static final long START_TIMESTAMP = 1513191600000L;
+
+    private final byte[] mBuffer = new byte[CurrentTimeEncoder.EXACT_TIME_SIZE];
+    private CurrentTimeEncoder mEncoder;
+    private TimePayloadCache mPayloadCache;
+    private long mTimestamp;
+
+    @Setup
+    public void setUp() {
+        TimeZone.setDefault(TimeZone.getTimeZone("America/Denver"));
+        TimeProfile.onTimeZoneChanged();
+        mEncoder = TimeProfile.getEncoder();
+        mPayloadCache = new TimePayloadCache(mEncoder);
+        mTimestamp = START_TIMESTAMP;
+    }
+
+    /* Advance a millisecond per call, as a steadily polled clock would */
+    private long nextTimestamp() {
+        return ++mTimestamp;
+    }
+
+    @Benchmark
+    public byte[] getExactTime() {
+        return TimeProfile.getExactTime(nextTimestamp(), TimeProfile.ADJUST_NONE);
+    }
+
+    @Benchmark
+    public byte[] getLocalTimeInfo() {
+        return TimeProfile.getLocalTimeInfo(nextTimestamp());
+    }
+
+    @Benchmark
+    public byte[] encodeExactTime() {
+        mEncoder.encodeExactTime(nextTimestamp(), TimeProfile.ADJUST_NONE, mBuffer, 0);
+        return mBuffer;
+    }
+
+    @Benchmark
+    public byte[] cachedExactTime() {
+        return mPayloadCache.getExactTime(nextTimestamp());
+    }
+}
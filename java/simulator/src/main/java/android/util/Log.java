@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+/**
+ * Host replacement for the Android logger, whose platform stub throws.
+ *
+ * Messages at or above the level named by the {@code simulator.logLevel}
+ * system property (V, D, I, W or E; default E) are written to stderr.
+ */
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final String LEVELS = "??VDIWE";
+    private static final int sLevel =
+            Math.max(VERBOSE, LEVELS.indexOf(System.getProperty("simulator.logLevel", "E")));
+
+    private Log() {
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return level >= sLevel;
+    }
+
+    public static int v(String tag, String msg) {
+        return println(VERBOSE, tag, msg, null);
+    }
+
+    public static int d(String tag, String msg) {
+        return println(DEBUG, tag, msg, null);
+    }
+
+    public static int i(String tag, String msg) {
+        return println(INFO, tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return println(WARN, tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(WARN, tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(ERROR, tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(ERROR, tag, msg, tr);
+    }
+
+    private static int println(int level, String tag, String msg, Throwable tr) {
+        if (level < sLevel) return 0;
+
+        String line = LEVELS.charAt(level) + "/" + tag + ": " + msg;
+        synchronized (Log.class) {
+            System.err.println(line);
+            if (tr != null) {
+                tr.printStackTrace();
+            }
+        }
+        return line.length();
+    }
+}
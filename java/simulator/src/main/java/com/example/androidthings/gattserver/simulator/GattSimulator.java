@@ -0,0 +1,444 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver.simulator;
+
+import com.example.androidthings.gattserver.Advertiser;
+import com.example.androidthings.gattserver.AdvertisingController;
+import com.example.androidthings.gattserver.ConnectionManager;
+import com.example.androidthings.gattserver.LatencyHistogram;
+import com.example.androidthings.gattserver.NotificationScheduler;
+import com.example.androidthings.gattserver.ServerMetrics;
+import com.example.androidthings.gattserver.SubscriptionStore;
+import com.example.androidthings.gattserver.TimeProfile;
+import com.example.androidthings.gattserver.TimeServer;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load simulator for the GATT server.
+ *
+ * Runs the {@link TimeServer} on the host JVM against a population of
+ * virtual centrals. Each central connects, optionally subscribes to
+ * Current Time notifications, reads the time characteristics at random
+ * intervals and disconnects after a random session, then reconnects
+ * later. Advertising follows the server load through an
+ * {@link AdvertisingController} driving a {@link SimulatedAdvertiser}.
+ * At the end of the run the request throughput, response latency
+ * percentiles, notification rate and advertising modes are reported.
+ *
+ * Run with --help for the available options.
+ */
+public class GattSimulator {
+
+    private static final long NANOS_PER_MICRO = 1000;
+    private static final long REPORT_INTERVAL_SECONDS = 5;
+    /* Time allowed for queued work to finish at the end of a run */
+    private static final long DRAIN_MILLIS = 1000;
+    /* Percentiles included in the report */
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /* Client Characteristic Configuration value enabling notifications */
+    private static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+    private static final byte[] ENABLE_INDICATION_VALUE = {0x02, 0x00};
+
+    /**
+     * Command line options.
+     */
+    static class Options {
+        int centrals = 2000;
+        int durationSeconds = 60;
+        double connectRate = 200;
+        double readIntervalMillis = 1000;
+        double sessionSeconds = 30;
+        double reconnectSeconds = 5;
+        double subscribeRatio = 0.5;
+        double indicateRatio = 0;
+        double confirmLoss = 0;
+        int mtu = 185;
+        long linkDelayMicros = 1000;
+        int radioThreads = 4;
+        int advertiseFailures = 0;
+        int maxConnections = Integer.MAX_VALUE;
+        double idleTimeoutSeconds = 60;
+        long notifyPeriodMillis = NotificationScheduler.PERIOD_1_HZ;
+        String storeFile;
+
+        static final String USAGE = "Usage: GattSimulator [options]\n"
+                + "  --centrals N          virtual centrals (2000)\n"
+                + "  --duration S          length of the run in seconds (60)\n"
+                + "  --connect-rate N      initial connections per second (200)\n"
+                + "  --read-interval MS    mean time between reads per central (1000)\n"
+                + "  --session S           mean connection length in seconds (30)\n"
+                + "  --reconnect S         mean time before reconnecting in seconds (5)\n"
+                + "  --subscribe RATIO     fraction of centrals that subscribe (0.5)\n"
+                + "  --indicate RATIO      fraction of subscribers using indications (0)\n"
+                + "  --confirm-loss P      probability an indication is never confirmed (0)\n"
+                + "  --mtu N               ATT_MTU negotiated by each central (185)\n"
+                + "  --link-delay US       notification air time in microseconds (1000)\n"
+                + "  --radio-threads N     threads delivering central events (4)\n"
+                + "  --advertise-failures N  initial advertising starts that fail (0)\n"
+                + "  --max-connections N   connections admitted at once (unlimited)\n"
+                + "  --idle-timeout S      idle time before a connection may be evicted (60)\n"
+                + "  --notify-period MS    interval between Current Time notifications (1000)\n"
+                + "  --store FILE          treat centrals as bonded, keeping their\n"
+                + "                        subscriptions in FILE across runs (none)";
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String name = args[i];
+                if (name.equals("--help")) {
+                    throw new IllegalArgumentException();
+                }
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + name);
+                }
+                String value = args[++i];
+                switch (name) {
+                    case "--centrals":
+                        options.centrals = Integer.parseInt(value);
+                        break;
+                    case "--duration":
+                        options.durationSeconds = Integer.parseInt(value);
+                        break;
+                    case "--connect-rate":
+                        options.connectRate = Double.parseDouble(value);
+                        break;
+                    case "--read-interval":
+                        options.readIntervalMillis = Double.parseDouble(value);
+                        break;
+                    case "--session":
+                        options.sessionSeconds = Double.parseDouble(value);
+                        break;
+                    case "--reconnect":
+                        options.reconnectSeconds = Double.parseDouble(value);
+                        break;
+                    case "--subscribe":
+                        options.subscribeRatio = Double.parseDouble(value);
+                        break;
+                    case "--indicate":
+                        options.indicateRatio = Double.parseDouble(value);
+                        break;
+                    case "--confirm-loss":
+                        options.confirmLoss = Double.parseDouble(value);
+                        break;
+                    case "--mtu":
+                        options.mtu = Integer.parseInt(value);
+                        break;
+                    case "--link-delay":
+                        options.linkDelayMicros = Long.parseLong(value);
+                        break;
+                    case "--radio-threads":
+                        options.radioThreads = Integer.parseInt(value);
+                        break;
+                    case "--advertise-failures":
+                        options.advertiseFailures = Integer.parseInt(value);
+                        break;
+                    case "--max-connections":
+                        options.maxConnections = Integer.parseInt(value);
+                        break;
+                    case "--idle-timeout":
+                        options.idleTimeoutSeconds = Double.parseDouble(value);
+                        break;
+                    case "--notify-period":
+                        options.notifyPeriodMillis = Long.parseLong(value);
+                        break;
+                    case "--store":
+                        options.storeFile = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + name);
+                }
+            }
+            return options;
+        }
+    }
+
+    private final Options mOptions;
+    private final ScheduledExecutorService mRadio;
+    private final SimulatedTransport mTransport;
+    private final TimeServer<VirtualCentral> mServer;
+    private final SimulatedAdvertiser mAdvertiser;
+    private final AdvertisingController mAdvertisingController;
+    private final SubscriptionStore<VirtualCentral> mSubscriptionStore;
+    private final VirtualCentral[] mCentrals;
+    private volatile boolean mRunning;
+
+    public GattSimulator(Options options) {
+        mOptions = options;
+        final AtomicInteger threadCount = new AtomicInteger();
+        mRadio = new ScheduledThreadPoolExecutor(options.radioThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "radio-" + threadCount.getAndIncrement());
+            }
+        });
+        mTransport = new SimulatedTransport(mRadio, options.linkDelayMicros,
+                options.confirmLoss);
+        mServer = new TimeServer<>(mTransport, options.maxConnections,
+                (long) (options.idleTimeoutSeconds * 1000), options.notifyPeriodMillis);
+        mTransport.setCallback(mServer);
+        if (options.storeFile != null) {
+            // Every central is bonded, keyed by its id
+            mSubscriptionStore = new SubscriptionStore<>(new File(options.storeFile),
+                    new SubscriptionStore.KeyResolver<VirtualCentral>() {
+                @Override
+                public long getBondedKey(VirtualCentral device) {
+                    return device.getId();
+                }
+            });
+            mServer.setSubscriptionStore(mSubscriptionStore);
+        } else {
+            mSubscriptionStore = null;
+        }
+        mAdvertiser = new SimulatedAdvertiser(mRadio, options.advertiseFailures);
+        mAdvertisingController = new AdvertisingController(mAdvertiser, mServer.getEventLog());
+        mServer.setLoadListener(new TimeServer.LoadListener() {
+            @Override
+            public void onLoadChanged(int connections, int subscribers) {
+                mAdvertisingController.onLoadChanged(connections, subscribers);
+            }
+        });
+
+        mCentrals = new VirtualCentral[options.centrals];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < mCentrals.length; i++) {
+            boolean subscriber = random.nextDouble() < options.subscribeRatio;
+            mCentrals[i] = new VirtualCentral(i, subscriber,
+                    subscriber && random.nextDouble() < options.indicateRatio);
+        }
+    }
+
+    /**
+     * Run the simulation for the configured duration and print the report.
+     */
+    public void run() throws InterruptedException {
+        mRunning = true;
+        if (mSubscriptionStore != null) {
+            int restored = mSubscriptionStore.load();
+            System.out.println(String.format(Locale.US,
+                    "Loaded %d stored subscriptions in %d us", restored,
+                    mSubscriptionStore.getLoadNanos() / NANOS_PER_MICRO));
+        }
+        mServer.start();
+        mAdvertisingController.start();
+        final long start = System.nanoTime();
+
+        // Ramp up connections at the configured rate
+        for (int i = 0; i < mCentrals.length; i++) {
+            final VirtualCentral central = mCentrals[i];
+            mRadio.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connect(central);
+                }
+            }, (long) (i * 1000000 / mOptions.connectRate), TimeUnit.MICROSECONDS);
+        }
+
+        mRadio.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                printProgress(start);
+            }
+        }, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mOptions.durationSeconds));
+        mRunning = false;
+        long elapsed = System.nanoTime() - start;
+
+        for (VirtualCentral central : mCentrals) {
+            mTransport.disconnect(central);
+        }
+        Thread.sleep(DRAIN_MILLIS);
+        mAdvertisingController.shutdown();
+        mServer.stop();
+        mServer.shutdown();
+        mRadio.shutdownNow();
+
+        printReport(elapsed);
+    }
+
+    private void connect(final VirtualCentral central) {
+        if (!mRunning) return;
+
+        mTransport.connect(central, mOptions.mtu);
+        // A bonded central subscribes once, its CCCD is restored after that
+        if (central.isSubscriber() && (mSubscriptionStore == null
+                || mSubscriptionStore.getConfiguration(central,
+                        SubscriptionStore.SLOT_CURRENT_TIME) == 0)) {
+            mTransport.writeDescriptor(central, TimeProfile.CURRENT_TIME,
+                    TimeProfile.CLIENT_CONFIG, central.isIndicating()
+                            ? ENABLE_INDICATION_VALUE : ENABLE_NOTIFICATION_VALUE);
+        }
+        scheduleRead(central, central.getSession());
+
+        mRadio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                disconnect(central);
+            }
+        }, randomDelayMicros(mOptions.sessionSeconds * 1000000), TimeUnit.MICROSECONDS);
+    }
+
+    private void disconnect(final VirtualCentral central) {
+        if (!mRunning) return;
+
+        mTransport.disconnect(central);
+        mRadio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect(central);
+            }
+        }, randomDelayMicros(mOptions.reconnectSeconds * 1000000), TimeUnit.MICROSECONDS);
+    }
+
+    private void scheduleRead(final VirtualCentral central, final int session) {
+        mRadio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // Reads stop with the connection that scheduled them
+                if (!mRunning || !central.isConnected() || central.getSession() != session) {
+                    return;
+                }
+                UUID characteristic = ThreadLocalRandom.current().nextBoolean()
+                        ? TimeProfile.CURRENT_TIME : TimeProfile.LOCAL_TIME_INFO;
+                mTransport.read(central, characteristic);
+                scheduleRead(central, session);
+            }
+        }, randomDelayMicros(mOptions.readIntervalMillis * 1000), TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Return an exponentially distributed delay with the given mean, so
+     * events of each central form a Poisson process.
+     */
+    private static long randomDelayMicros(double meanMicros) {
+        return (long) (-meanMicros * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+    }
+
+    private void printProgress(long start) {
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+        System.out.println(String.format(Locale.US,
+                "[%3ds] connected: %d, reads: %d, notifications: %d, pending: %d, mode: %s",
+                seconds, mTransport.getConnectedCount(),
+                mTransport.getReadLatencies().getCount(),
+                mTransport.getNotificationCount(), mTransport.getPendingCount(),
+                getModeName(mAdvertisingController.getMode())));
+    }
+
+    private void printReport(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.println(String.format(Locale.US, "Simulated %d centrals for %.1f s",
+                mCentrals.length, seconds));
+        System.out.println(String.format(Locale.US, "Connections: %d connects, %d disconnects",
+                mTransport.getConnectCount(), mTransport.getDisconnectCount()));
+        ConnectionManager<VirtualCentral> connections = mServer.getConnectionManager();
+        System.out.println(String.format(Locale.US,
+                "Admission: max %d, %d rejected, %d evicted",
+                connections.getMaxConnections(), connections.getRejectedCount(),
+                connections.getEvictedCount()));
+        printLatencies("Reads", mTransport.getReadLatencies(), seconds);
+        printLatencies("Descriptor writes", mTransport.getWriteLatencies(), seconds);
+        System.out.println(String.format(Locale.US,
+                "Errors: %d, unanswered: %d", mTransport.getErrorCount(),
+                mTransport.getPendingCount()));
+        System.out.println(String.format(Locale.US,
+                "Notifications: %d (%.1f/s, %d bytes)", mTransport.getNotificationCount(),
+                mTransport.getNotificationCount() / seconds, mTransport.getNotificationBytes()));
+        System.out.println(String.format(Locale.US,
+                "Indications: %d sent, %d confirmations lost, %d timed out",
+                mTransport.getIndicationCount(), mTransport.getLostConfirmationCount(),
+                mServer.getNotificationDispatcher().getTimedOutCount()));
+        System.out.println(String.format(Locale.US,
+                "Advertising: %d starts, %d failures, %d retries, %d mode changes",
+                mAdvertisingController.getStartCount(), mAdvertisingController.getFailureCount(),
+                mAdvertisingController.getRetryCount(),
+                mAdvertisingController.getModeChangeCount()));
+        System.out.println(String.format(Locale.US,
+                "Advertising time s: low latency %.1f, balanced %.1f, low power %.1f",
+                mAdvertiser.getModeMillis(Advertiser.MODE_LOW_LATENCY) / 1000.0,
+                mAdvertiser.getModeMillis(Advertiser.MODE_BALANCED) / 1000.0,
+                mAdvertiser.getModeMillis(Advertiser.MODE_LOW_POWER) / 1000.0));
+
+        // Server-side view, as served by the diagnostics characteristic
+        ServerMetrics metrics = mServer.getMetrics();
+        System.out.println("Server latency us (bucketed):");
+        for (int op = 0; op < ServerMetrics.OP_COUNT; op++) {
+            LatencyHistogram latencies = metrics.getLatencies(op);
+            System.out.println(String.format(Locale.US,
+                    "  %-21s count: %d, avg: %d, p50: %d, p99: %d, max: %d",
+                    ServerMetrics.getOperationName(op), latencies.getCount(),
+                    latencies.getAverageNanos() / NANOS_PER_MICRO,
+                    latencies.getPercentileNanos(50) / NANOS_PER_MICRO,
+                    latencies.getPercentileNanos(99) / NANOS_PER_MICRO,
+                    latencies.getMaxNanos() / NANOS_PER_MICRO));
+        }
+    }
+
+    private static String getModeName(int mode) {
+        switch (mode) {
+            case Advertiser.MODE_LOW_LATENCY:
+                return "low latency";
+            case Advertiser.MODE_BALANCED:
+                return "balanced";
+            case Advertiser.MODE_LOW_POWER:
+                return "low power";
+            default:
+                return "off";
+        }
+    }
+
+    private static void printLatencies(String name, LatencyRecorder recorder, double seconds) {
+        long[] sorted = recorder.sorted();
+        StringBuilder line = new StringBuilder(String.format(Locale.US,
+                "%s: %d (%.1f/s), latency us", name, sorted.length, sorted.length / seconds));
+        for (double percentile : PERCENTILES) {
+            line.append(String.format(Locale.US, " p%s: %d",
+                    (percentile == (long) percentile)
+                            ? String.valueOf((long) percentile) : String.valueOf(percentile),
+                    LatencyRecorder.percentile(sorted, percentile) / NANOS_PER_MICRO));
+        }
+        line.append(" max: ").append(
+                (sorted.length == 0) ? 0 : sorted[sorted.length - 1] / NANOS_PER_MICRO);
+        System.out.println(line);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            if (e.getMessage() != null) {
+                System.err.println(e.getMessage());
+            }
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        new GattSimulator(options).run();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver.simulator;
+
+import java.util.Arrays;
+
+/**
+ * Records every latency sample of a run for exact percentiles at the end.
+ */
+public class LatencyRecorder {
+
+    private long[] mSamples = new long[1024];
+    private int mCount;
+
+    public synchronized void record(long nanos) {
+        if (mCount == mSamples.length) {
+            mSamples = Arrays.copyOf(mSamples, mCount * 2);
+        }
+        mSamples[mCount++] = nanos;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Return the samples recorded so far in ascending order.
+     */
+    public synchronized long[] sorted() {
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Return the given percentile of sorted samples, using the nearest rank.
+     */
+    public static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) return 0;
+
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+}
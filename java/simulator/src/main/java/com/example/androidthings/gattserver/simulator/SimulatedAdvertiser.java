@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver.simulator;
+
+import com.example.androidthings.gattserver.Advertiser;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for the Android advertising set. Results are reported on the
+ * radio executor after a short delay, and the first starts can be made
+ * to fail to exercise the controller's retries. The time spent in each
+ * mode is recorded for the report.
+ */
+public class SimulatedAdvertiser implements Advertiser {
+
+    /* Time the controller of a real radio takes to apply an operation */
+    private static final long OPERATION_DELAY_MICROS = 2000;
+    private static final int MODE_COUNT = 3;
+
+    private final ScheduledExecutorService mRadio;
+    private int mFailuresLeft;
+    private Callback mCallback;
+    /* Bumped by stop() to drop results of earlier operations */
+    private int mGeneration;
+    private int mMode = -1;
+    private long mModeSince;
+    private final long[] mModeNanos = new long[MODE_COUNT];
+
+    /**
+     * @param radio Executor delivering the operation results.
+     * @param failedStarts Number of initial starts that fail.
+     */
+    public SimulatedAdvertiser(ScheduledExecutorService radio, int failedStarts) {
+        mRadio = radio;
+        mFailuresLeft = failedStarts;
+    }
+
+    @Override
+    public synchronized void start(final int mode, Callback callback) {
+        mCallback = callback;
+        final int generation = mGeneration;
+        mRadio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Callback target;
+                int status;
+                synchronized (SimulatedAdvertiser.this) {
+                    if (generation != mGeneration) return;
+                    target = mCallback;
+                    if (mFailuresLeft > 0) {
+                        mFailuresLeft--;
+                        status = STATUS_INTERNAL_ERROR;
+                    } else {
+                        enterMode(mode);
+                        status = STATUS_SUCCESS;
+                    }
+                }
+                target.onStarted(status);
+            }
+        }, OPERATION_DELAY_MICROS, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public synchronized void setMode(final int mode) {
+        final int generation = mGeneration;
+        mRadio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Callback target;
+                synchronized (SimulatedAdvertiser.this) {
+                    if (generation != mGeneration) return;
+                    target = mCallback;
+                    enterMode(mode);
+                }
+                target.onModeChanged(STATUS_SUCCESS);
+            }
+        }, OPERATION_DELAY_MICROS, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        mGeneration++;
+        enterMode(-1);
+        mCallback = null;
+    }
+
+    private void enterMode(int mode) {
+        long now = System.nanoTime();
+        if (mMode >= 0) {
+            mModeNanos[mMode] += now - mModeSince;
+        }
+        mMode = mode;
+        mModeSince = now;
+    }
+
+    /**
+     * Return the time spent advertising in the given mode, in milliseconds.
+     */
+    public synchronized long getModeMillis(int mode) {
+        long nanos = mModeNanos[mode];
+        if (mode == mMode) {
+            nanos += System.nanoTime() - mModeSince;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver.simulator;
+
+import com.example.androidthings.gattserver.GattStatus;
+import com.example.androidthings.gattserver.GattTransport;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link GattTransport} connecting the server to virtual centrals.
+ *
+ * Requests are issued through {@link #read}, {@link #writeDescriptor},
+ * {@link #connect} and {@link #disconnect}, and the time until the server
+ * responds is recorded per request type. Each accepted notification is
+ * completed after a fixed link delay, standing in for the radio. An
+ * indication takes the link delay both ways, and a configurable share of
+ * the confirmations is lost to exercise the server's timeouts.
+ */
+public class SimulatedTransport implements GattTransport<VirtualCentral> {
+
+    /**
+     * A request waiting for its response.
+     */
+    private static class PendingRequest {
+        final long startNanos;
+        final LatencyRecorder latencies;
+
+        PendingRequest(long startNanos, LatencyRecorder latencies) {
+            this.startNanos = startNanos;
+            this.latencies = latencies;
+        }
+    }
+
+    private final ScheduledExecutorService mRadio;
+    private final long mLinkDelayMicros;
+    private final double mConfirmLoss;
+    private volatile Callback<VirtualCentral> mCallback;
+
+    private final AtomicInteger mNextRequestId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, PendingRequest> mPending = new ConcurrentHashMap<>();
+
+    private final LatencyRecorder mReadLatencies = new LatencyRecorder();
+    private final LatencyRecorder mWriteLatencies = new LatencyRecorder();
+    private final AtomicLong mConnects = new AtomicLong();
+    private final AtomicLong mDisconnects = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mNotifications = new AtomicLong();
+    private final AtomicLong mNotificationBytes = new AtomicLong();
+    private final AtomicLong mIndications = new AtomicLong();
+    private final AtomicLong mLostConfirmations = new AtomicLong();
+    private final AtomicInteger mConnected = new AtomicInteger();
+
+    /**
+     * @param radio Executor delivering delayed link events.
+     * @param linkDelayMicros Time for a notification to go over the air.
+     * @param confirmLoss Probability that an indication is never confirmed.
+     */
+    public SimulatedTransport(ScheduledExecutorService radio, long linkDelayMicros,
+                              double confirmLoss) {
+        mRadio = radio;
+        mLinkDelayMicros = linkDelayMicros;
+        mConfirmLoss = confirmLoss;
+    }
+
+    public void setCallback(Callback<VirtualCentral> callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Connect a central and exchange its MTU.
+     */
+    public void connect(VirtualCentral central, int mtu) {
+        // Hold the central so its link events reach the server in order
+        synchronized (central) {
+            if (!central.setConnected(true)) return;
+            mCallback.onConnectionStateChange(central, true);
+            mCallback.onMtuChanged(central, mtu);
+        }
+        mConnects.incrementAndGet();
+        mConnected.incrementAndGet();
+    }
+
+    public void disconnect(VirtualCentral central) {
+        synchronized (central) {
+            if (!central.setConnected(false)) return;
+            mCallback.onConnectionStateChange(central, false);
+        }
+        mDisconnects.incrementAndGet();
+        mConnected.decrementAndGet();
+    }
+
+    public void read(VirtualCentral central, UUID characteristic) {
+        int requestId = begin(mReadLatencies);
+        mCallback.onCharacteristicReadRequest(central, requestId, 0, characteristic);
+    }
+
+    public void writeDescriptor(VirtualCentral central, UUID characteristic, UUID descriptor,
+                                byte[] value) {
+        int requestId = begin(mWriteLatencies);
+        mCallback.onDescriptorWriteRequest(central, requestId, characteristic, descriptor,
+                false, true, 0, value);
+    }
+
+    private int begin(LatencyRecorder latencies) {
+        int requestId = mNextRequestId.incrementAndGet();
+        mPending.put(requestId, new PendingRequest(System.nanoTime(), latencies));
+        return requestId;
+    }
+
+    @Override
+    public void sendResponse(VirtualCentral device, int requestId, int status,
+                             int offset, byte[] value) {
+        PendingRequest request = mPending.remove(requestId);
+        if (request == null) return;
+
+        request.latencies.record(System.nanoTime() - request.startNanos);
+        if (status != GattStatus.GATT_SUCCESS) {
+            mErrors.incrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(final VirtualCentral device, UUID characteristic,
+                                               byte[] value, boolean confirm) {
+        if (!device.isConnected()) return false;
+
+        mNotifications.incrementAndGet();
+        mNotificationBytes.addAndGet(value.length);
+        long delayMicros = mLinkDelayMicros;
+        if (confirm) {
+            mIndications.incrementAndGet();
+            if (ThreadLocalRandom.current().nextDouble() < mConfirmLoss) {
+                mLostConfirmations.incrementAndGet();
+                return true;
+            }
+            delayMicros *= 2;
+        }
+        mRadio.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onNotificationSent(device, GattStatus.GATT_SUCCESS);
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+        return true;
+    }
+
+    @Override
+    public void cancelConnection(final VirtualCentral device) {
+        mRadio.execute(new Runnable() {
+            @Override
+            public void run() {
+                disconnect(device);
+            }
+        });
+    }
+
+    public LatencyRecorder getReadLatencies() {
+        return mReadLatencies;
+    }
+
+    public LatencyRecorder getWriteLatencies() {
+        return mWriteLatencies;
+    }
+
+    /**
+     * Return the number of requests still waiting for a response.
+     */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    public int getConnectedCount() {
+        return mConnected.get();
+    }
+
+    public long getConnectCount() {
+        return mConnects.get();
+    }
+
+    public long getDisconnectCount() {
+        return mDisconnects.get();
+    }
+
+    /**
+     * Return the number of responses with a status other than success.
+     */
+    public long getErrorCount() {
+        return mErrors.get();
+    }
+
+    public long getNotificationCount() {
+        return mNotifications.get();
+    }
+
+    public long getNotificationBytes() {
+        return mNotificationBytes.get();
+    }
+
+    /**
+     * Return the number of notifications sent as indications, including
+     * those whose confirmation was lost.
+     */
+    public long getIndicationCount() {
+        return mIndications.get();
+    }
+
+    public long getLostConfirmationCount() {
+        return mLostConfirmations.get();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.gattserver.simulator;
+
+/**
+ * Simulated remote device. Used as the device key by the server, so
+ * equality is identity.
+ */
+public class VirtualCentral {
+
+    private final int mId;
+    private final boolean mSubscriber;
+    private final boolean mIndicating;
+    private volatile boolean mConnected;
+    private volatile int mSession;
+
+    public VirtualCentral(int id, boolean subscriber, boolean indicating) {
+        mId = id;
+        mSubscriber = subscriber;
+        mIndicating = indicating;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * Return true if this central enables Current Time notifications
+     * after connecting.
+     */
+    public boolean isSubscriber() {
+        return mSubscriber;
+    }
+
+    /**
+     * Return true if this central subscribes with indications rather
+     * than notifications.
+     */
+    public boolean isIndicating() {
+        return mIndicating;
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Return the number of the current connection, which increases every
+     * time the central connects.
+     */
+    public int getSession() {
+        return mSession;
+    }
+
+    /**
+     * Update the link state. Callers hold the central's monitor.
+     * @return true if the state changed.
+     */
+    boolean setConnected(boolean connected) {
+        if (mConnected == connected) return false;
+        if (connected) {
+            mSession++;
+        }
+        mConnected = connected;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "central-" + mId;
+    }
+}